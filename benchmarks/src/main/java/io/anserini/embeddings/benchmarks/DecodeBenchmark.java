@@ -0,0 +1,87 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings.benchmarks;
+
+import io.anserini.embeddings.Vectors;
+import org.apache.lucene.util.BytesRef;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of decoding a vector from the stored field and the packed doc values layouts, into a new array or a reused
+ * one.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DecodeBenchmark {
+  @Param({"50", "300"})
+  public int dimensions;
+
+  private BytesRef stored;
+  private BytesRef packed;
+  private float[] vector;
+
+  @Setup
+  public void setup() {
+    float[] value = Fixtures.vectors(1, dimensions)[0];
+    ByteBuffer buffer = ByteBuffer.allocate(Vectors.storedLength(dimensions));
+    Vectors.encodeStored(value, buffer);
+    stored = new BytesRef(buffer.array());
+    buffer = ByteBuffer.allocate(Vectors.packedLength(dimensions));
+    Vectors.encodePacked(value, buffer);
+    packed = new BytesRef(buffer.array());
+    vector = new float[dimensions];
+  }
+
+  @Benchmark
+  public float[] decodeStored() {
+    return Vectors.decodeStored(stored);
+  }
+
+  @Benchmark
+  public float[] decodeStoredInto() {
+    Vectors.decodeStored(stored, vector);
+    return vector;
+  }
+
+  @Benchmark
+  public float[] decodePacked() {
+    return Vectors.decodePacked(packed);
+  }
+
+  @Benchmark
+  public float[] decodePackedInto() {
+    Vectors.decodePacked(packed, vector);
+    return vector;
+  }
+}
@@ -0,0 +1,101 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+/**
+ * Synthetic embeddings for the benchmarks, so that they run offline. Vectors are drawn around a few hundred random
+ * centers, which gives them neighbourhoods like real embeddings have, and words are named {@code w0}, {@code w1}, etc.
+ */
+final class Fixtures {
+  private static final int CENTERS = 256;
+  private static final long SEED = 42;
+
+  private Fixtures() {}
+
+  static String word(int i) {
+    return "w" + i;
+  }
+
+  /**
+   * Generates {@code count} random vectors.
+   */
+  static float[][] vectors(int count, int dimensions) {
+    Random random = new Random(SEED);
+    float[][] centers = new float[CENTERS][dimensions];
+    for (float[] center : centers) {
+      for (int j = 0; j < dimensions; j++) {
+        center[j] = (float) random.nextGaussian();
+      }
+    }
+    float[][] vectors = new float[count][dimensions];
+    for (float[] vector : vectors) {
+      float[] center = centers[random.nextInt(CENTERS)];
+      for (int j = 0; j < dimensions; j++) {
+        vector[j] = center[j] + 0.5f * (float) random.nextGaussian();
+      }
+    }
+    return vectors;
+  }
+
+  /**
+   * Writes random embeddings in the GloVe format to {@code file}.
+   */
+  static Path embeddings(Path file, int count, int dimensions) throws IOException {
+    float[][] vectors = vectors(count, dimensions);
+    try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+      for (int i = 0; i < count; i++) {
+        writer.write(word(i));
+        for (float v : vectors[i]) {
+          writer.write(' ');
+          writer.write(Float.toString(v));
+        }
+        writer.newLine();
+      }
+    }
+    return file;
+  }
+
+  static Path temporaryDirectory() throws IOException {
+    return Files.createTempDirectory("anserini-embeddings-benchmarks");
+  }
+
+  static void delete(Path directory) throws IOException {
+    Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+}
@@ -0,0 +1,110 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings.benchmarks;
+
+import io.anserini.embeddings.EnglishStemmingAnalyzer;
+import io.anserini.embeddings.IndexReducedWordEmbeddings;
+import io.anserini.embeddings.IndexWordEmbeddings;
+import io.anserini.embeddings.Projection;
+import io.anserini.embeddings.WordDocument;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.MMapDirectory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-document indexing throughput of the encode paths of {@link IndexWordEmbeddings} (word, key and full vector) and
+ * {@link IndexReducedWordEmbeddings} (projection, point and reduced vector), through the {@link WordDocument}s the
+ * indexers reuse, into a temporary directory that is recreated for every iteration.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class IndexingBenchmark {
+  private static final int WORDS = 10000;
+
+  @Param({"300"})
+  public int dimensions;
+
+  @Param({"false", "true"})
+  public boolean docValues;
+
+  private static final int REDUCED_DIMENSIONS = 8;
+
+  private float[][] vectors;
+  private Projection projection;
+  private WordDocument document;
+  private WordDocument reducedDocument;
+  private float[] reduced;
+  private Path directory;
+  private IndexWriter writer;
+  private int next;
+
+  @Setup
+  public void setup() {
+    vectors = Fixtures.vectors(WORDS, dimensions);
+    projection = Projection.fit(vectors, 1000, REDUCED_DIMENSIONS);
+    document = WordDocument.full(docValues, null, null);
+    reducedDocument = WordDocument.reduced(docValues, REDUCED_DIMENSIONS, false, null);
+    reduced = new float[REDUCED_DIMENSIONS];
+  }
+
+  @Setup(Level.Iteration)
+  public void open() throws IOException {
+    directory = Fixtures.temporaryDirectory();
+    writer = new IndexWriter(new MMapDirectory(directory),
+        new IndexWriterConfig(new EnglishStemmingAnalyzer("porter")));
+  }
+
+  @TearDown(Level.Iteration)
+  public void close() throws IOException {
+    writer.close();
+    Fixtures.delete(directory);
+  }
+
+  @Benchmark
+  public long indexWord() throws IOException {
+    int i = next++ % WORDS;
+    return writer.addDocument(document.set(Fixtures.word(i), vectors[i], null, i));
+  }
+
+  @Benchmark
+  public long indexReducedWord() throws IOException {
+    int i = next++ % WORDS;
+    projection.project(vectors[i], reduced);
+    return writer.addDocument(reducedDocument.set(Fixtures.word(i), vectors[i], reduced, i));
+  }
+}
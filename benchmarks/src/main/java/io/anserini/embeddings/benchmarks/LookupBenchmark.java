@@ -0,0 +1,137 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings.benchmarks;
+
+import io.anserini.embeddings.IndexFlatWordEmbeddings;
+import io.anserini.embeddings.IndexWordEmbeddings;
+import io.anserini.embeddings.WordEmbeddings;
+import org.apache.lucene.util.BytesRef;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of looking up words through {@link WordEmbeddings}, as {@code LookupWordEmbeddings} does, one at a time and
+ * in batches, on a Lucene index with stored fields or doc values and on a flat store.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LookupBenchmark {
+  private static final int QUERIES = 4096;
+
+  @Param({"100000"})
+  public int words;
+
+  @Param({"300"})
+  public int dimensions;
+
+  @Param({"stored", "docValues", "flat"})
+  public String store;
+
+  @Param({"100"})
+  public int batchSize;
+
+  private Path directory;
+  private WordEmbeddings embeddings;
+  private String[] queries;
+  private BytesRef[] queryBytes;
+  private List<List<String>> batches;
+
+  @Setup
+  public void setup() throws Exception {
+    directory = Fixtures.temporaryDirectory();
+    Path input = Fixtures.embeddings(directory.resolve("embeddings.txt"), words, dimensions);
+    Path index = directory.resolve("index");
+    if (store.equals("flat")) {
+      IndexFlatWordEmbeddings.main(new String[] {"-input", input.toString(), "-index", index.toString()});
+    } else if (store.equals("docValues")) {
+      IndexWordEmbeddings.main(new String[] {"-input", input.toString(), "-index", index.toString(), "-docValues"});
+    } else {
+      IndexWordEmbeddings.main(new String[] {"-input", input.toString(), "-index", index.toString()});
+    }
+    embeddings = WordEmbeddings.open(index);
+
+    // Queries are drawn uniformly, so that lookups don't all hit the same (cached) part of the index.
+    Random random = new Random(42);
+    queries = new String[QUERIES];
+    queryBytes = new BytesRef[QUERIES];
+    for (int i = 0; i < QUERIES; i++) {
+      queries[i] = Fixtures.word(random.nextInt(words));
+      queryBytes[i] = new BytesRef(queries[i]);
+    }
+    batches = new ArrayList<>();
+    for (int i = 0; i + batchSize <= QUERIES; i += batchSize) {
+      List<String> batch = new ArrayList<>();
+      for (int j = i; j < i + batchSize; j++) {
+        batch.add(queries[j]);
+      }
+      batches.add(batch);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    embeddings.close();
+    Fixtures.delete(directory);
+  }
+
+  @State(Scope.Thread)
+  public static class Cursor {
+    int next;
+    float[] vector;
+  }
+
+  @Benchmark
+  public float[] lookup(Cursor cursor) throws IOException {
+    return embeddings.lookup(queries[cursor.next++ % QUERIES]);
+  }
+
+  @Benchmark
+  public Map<String, float[]> lookupBatch(Cursor cursor) throws IOException {
+    return embeddings.lookupAll(batches.get(cursor.next++ % batches.size()));
+  }
+
+  @Benchmark
+  public float[] lookupBytes(Cursor cursor) throws IOException {
+    if (cursor.vector == null) {
+      cursor.vector = new float[dimensions];
+    }
+    embeddings.getStore().lookup(queryBytes[cursor.next++ % QUERIES], cursor.vector);
+    return cursor.vector;
+  }
+}
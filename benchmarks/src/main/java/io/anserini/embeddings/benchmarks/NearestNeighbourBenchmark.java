@@ -0,0 +1,136 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings.benchmarks;
+
+import io.anserini.embeddings.EmbeddingStore;
+import io.anserini.embeddings.ExactNearestNeighbourSearcher;
+import io.anserini.embeddings.HnswGraph;
+import io.anserini.embeddings.HnswNearestNeighbourSearcher;
+import io.anserini.embeddings.IndexHnswWordEmbeddings;
+import io.anserini.embeddings.IndexWordEmbeddings;
+import io.anserini.embeddings.LshNearestNeighbourSearcher;
+import io.anserini.embeddings.LuceneEmbeddingStore;
+import io.anserini.embeddings.NearestNeighbourSearcher;
+import io.anserini.embeddings.Neighbour;
+import io.anserini.embeddings.QuantizedMatrix;
+import io.anserini.embeddings.Similarity;
+import io.anserini.embeddings.VectorEncoding;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Query latency of the nearest neighbour search methods of {@code NearestNeighbour} on full vectors: exact search on
+ * a single thread, on floats and on {@code FLOAT16} and {@code INT8} codes, HNSW and LSH.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class NearestNeighbourBenchmark {
+  private static final int QUERIES = 1024;
+
+  @Param({"100000"})
+  public int words;
+
+  @Param({"100"})
+  public int dimensions;
+
+  @Param({"exact", "exact-float16", "exact-int8", "hnsw", "lsh"})
+  public String method;
+
+  @Param({"10"})
+  public int k;
+
+  private Path directory;
+  private EmbeddingStore store;
+  private NearestNeighbourSearcher searcher;
+  private float[][] queries;
+
+  @Setup
+  public void setup() throws Exception {
+    directory = Fixtures.temporaryDirectory();
+    Path input = Fixtures.embeddings(directory.resolve("embeddings.txt"), words, dimensions);
+    Path index = directory.resolve("index");
+    IndexWordEmbeddings.main(new String[] {"-input", input.toString(), "-index", index.toString(),
+        "-lshTables", "32", "-lshBits", "12"});
+    store = LuceneEmbeddingStore.open(index, IndexWordEmbeddings.FIELD_VECTOR);
+
+    switch (method) {
+      case "exact":
+        searcher = new ExactNearestNeighbourSearcher(store, Similarity.COSINE, new ForkJoinPool(1));
+        break;
+      case "exact-float16":
+        searcher = new ExactNearestNeighbourSearcher(store, QuantizedMatrix.load(store, VectorEncoding.FLOAT16),
+            Similarity.COSINE, new ForkJoinPool(1), 0);
+        break;
+      case "exact-int8":
+        searcher = new ExactNearestNeighbourSearcher(store, QuantizedMatrix.load(store, VectorEncoding.INT8),
+            Similarity.COSINE, new ForkJoinPool(1), 0);
+        break;
+      case "hnsw":
+        IndexHnswWordEmbeddings.main(new String[] {"-index", index.toString()});
+        searcher = new HnswNearestNeighbourSearcher(store, HnswGraph.open(index.resolve(HnswGraph.GRAPH_FILE)), 64);
+        break;
+      case "lsh":
+        searcher = new LshNearestNeighbourSearcher((LuceneEmbeddingStore) store, Similarity.COSINE, 1000);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown method " + method);
+    }
+
+    Random random = new Random(42);
+    queries = new float[QUERIES][];
+    for (int i = 0; i < QUERIES; i++) {
+      queries[i] = store.lookup(Fixtures.word(random.nextInt(words)));
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    store.close();
+    Fixtures.delete(directory);
+  }
+
+  @State(Scope.Thread)
+  public static class Cursor {
+    int next;
+  }
+
+  @Benchmark
+  public List<Neighbour> search(Cursor cursor) throws IOException {
+    return searcher.search(queries[cursor.next++ % QUERIES], k);
+  }
+}
@@ -0,0 +1,236 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Turns texts into single vectors by pooling the vectors of their terms, e.g., to represent queries and documents.
+ * Terms are read from a {@link TokenStream} and looked up as UTF-8 bytes with
+ * {@link EmbeddingStore#lookup(BytesRef, float[])}, so no String or vector is allocated per term; with a
+ * {@link FlatEmbeddingStore}, aggregating a text allocates nothing beyond what the analyzer does. The analyzer must
+ * produce terms the way the store matches them: {@link EnglishStemmingAnalyzer} for a Lucene index with
+ * {@link LuceneEmbeddingStore.Matching#STEMMED}, and an analyzer that keeps words as they are otherwise.
+ * Instances are thread-safe.
+ */
+public class EmbeddingAggregator {
+  /**
+   * How term vectors are pooled.
+   */
+  public enum Pooling {
+    /** Average of the term vectors. */
+    MEAN,
+    /** Average of the term vectors weighted by the {@link TermWeights} of their terms, e.g., IDF. */
+    IDF_MEAN,
+    /** Component-wise maximum of the term vectors. */
+    MAX
+  }
+
+  /**
+   * Weights of terms for {@link Pooling#IDF_MEAN}.
+   */
+  public interface TermWeights {
+    float weight(BytesRef term) throws IOException;
+
+    /**
+     * Returns the inverse document frequencies of terms in a field of a collection index, as computed by BM25; terms
+     * that don't occur in the collection get the highest weight.
+     */
+    static TermWeights idf(IndexReader reader, String field) {
+      long docCount = reader.numDocs();
+      return term -> {
+        int docFreq = reader.docFreq(new Term(field, term));
+        return (float) Math.log(1 + (docCount - docFreq + 0.5) / (docFreq + 0.5));
+      };
+    }
+  }
+
+  // Texts aggregated by a single task before it stops splitting.
+  private static final int TASK_TEXTS = 64;
+
+  private final EmbeddingStore store;
+  private final Analyzer analyzer;
+  private final Pooling pooling;
+  private final TermWeights weights;
+  private final ThreadLocal<Scratch> scratch;
+
+  /**
+   * @param analyzer analyzer used by {@link #aggregate(String, float[])}
+   * @param weights term weights, required for {@link Pooling#IDF_MEAN} and ignored otherwise
+   */
+  public EmbeddingAggregator(EmbeddingStore store, Analyzer analyzer, Pooling pooling, TermWeights weights) {
+    if (pooling == Pooling.IDF_MEAN && weights == null) {
+      throw new IllegalArgumentException("IDF pooling needs term weights");
+    }
+    this.store = store;
+    this.analyzer = analyzer;
+    this.pooling = pooling;
+    this.weights = weights;
+    this.scratch = ThreadLocal.withInitial(() -> new Scratch(store.dimensions()));
+  }
+
+  public int dimensions() {
+    return store.dimensions();
+  }
+
+  /**
+   * Aggregates the vectors of the terms of a text, analyzed with the analyzer of this aggregator.
+   *
+   * @param output buffer of {@link #dimensions()} components for the result, zeroed if no term is found
+   * @return the number of terms found
+   */
+  public int aggregate(String text, float[] output) throws IOException {
+    try (TokenStream stream = analyzer.tokenStream(IndexWordEmbeddings.FIELD_WORD, text)) {
+      return aggregate(stream, output);
+    }
+  }
+
+  /**
+   * Aggregates the vectors of the terms of a token stream, which is consumed but not closed.
+   *
+   * @param output buffer of {@link #dimensions()} components for the result, zeroed if no term is found
+   * @return the number of terms found
+   */
+  public int aggregate(TokenStream stream, float[] output) throws IOException {
+    int dimensions = store.dimensions();
+    Scratch scratch = this.scratch.get();
+    float[] vector = scratch.vector;
+    BytesRefBuilder term = scratch.term;
+    CharTermAttribute termAttribute = stream.addAttribute(CharTermAttribute.class);
+
+    Arrays.fill(output, 0, dimensions, pooling == Pooling.MAX ? Float.NEGATIVE_INFINITY : 0);
+    int found = 0;
+    double totalWeight = 0;
+    stream.reset();
+    while (stream.incrementToken()) {
+      term.copyChars(termAttribute);
+      if (!store.lookup(term.get(), vector)) {
+        continue;
+      }
+      found++;
+      switch (pooling) {
+        case MEAN:
+          for (int i = 0; i < dimensions; i++) {
+            output[i] += vector[i];
+          }
+          break;
+        case IDF_MEAN:
+          float weight = weights.weight(term.get());
+          totalWeight += weight;
+          for (int i = 0; i < dimensions; i++) {
+            output[i] += weight * vector[i];
+          }
+          break;
+        case MAX:
+          for (int i = 0; i < dimensions; i++) {
+            output[i] = Math.max(output[i], vector[i]);
+          }
+          break;
+      }
+    }
+    stream.end();
+
+    if (found == 0) {
+      Arrays.fill(output, 0, dimensions, 0);
+    } else if (pooling != Pooling.MAX) {
+      double total = pooling == Pooling.MEAN ? found : totalWeight;
+      if (total > 0) {
+        float scale = (float) (1 / total);
+        for (int i = 0; i < dimensions; i++) {
+          output[i] *= scale;
+        }
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Aggregates many texts in parallel.
+   *
+   * @param outputs buffers for the results, one per text
+   * @return the number of terms found in each text
+   */
+  public int[] aggregateAll(List<String> texts, float[][] outputs, ForkJoinPool pool) throws IOException {
+    int[] found = new int[texts.size()];
+    try {
+      pool.invoke(new AggregateTask(texts, outputs, found, 0, texts.size()));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    return found;
+  }
+
+  private final class AggregateTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> texts;
+    private final float[][] outputs;
+    private final int[] found;
+    private final int start;
+    private final int end;
+
+    AggregateTask(List<String> texts, float[][] outputs, int[] found, int start, int end) {
+      this.texts = texts;
+      this.outputs = outputs;
+      this.found = found;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected void compute() {
+      if (end - start > TASK_TEXTS) {
+        int middle = (start + end) >>> 1;
+        invokeAll(new AggregateTask(texts, outputs, found, start, middle),
+            new AggregateTask(texts, outputs, found, middle, end));
+        return;
+      }
+      try {
+        for (int i = start; i < end; i++) {
+          found[i] = aggregate(texts.get(i), outputs[i]);
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  /**
+   * Per-thread buffers, reused across texts.
+   */
+  private static final class Scratch {
+    final float[] vector;
+    final BytesRefBuilder term = new BytesRefBuilder();
+
+    Scratch(int dimensions) {
+      this.vector = new float[dimensions];
+    }
+  }
+}
@@ -0,0 +1,335 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Streams word embeddings from GloVe text, word2vec text/binary and fastText {@code .vec} files one record at a
+ * time, without materializing the model. Vectors are parsed straight into a reusable {@code float[]}, so memory use
+ * is bounded by what the caller keeps rather than by the size of the vocabulary.
+ */
+public final class EmbeddingReader implements Closeable {
+  public enum Format {
+    /** Guesses the format from the file name and the first line. */
+    AUTO,
+    /** One {@code word v1 ... vn} line per word, no header. */
+    GLOVE,
+    /** A {@code count dimensions} header followed by one {@code word v1 ... vn} line per word. */
+    WORD2VEC_TEXT,
+    /** A {@code count dimensions} header followed by {@code word} and n little-endian floats per word. */
+    WORD2VEC_BINARY,
+    /** fastText {@code .vec} files, which are laid out as word2vec text. */
+    FASTTEXT
+  }
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final InputStream in;
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private int position;
+  private int limit;
+
+  private final boolean binary;
+  private final long size;
+  private final int dimensions;
+
+  private byte[] line = new byte[1024];
+  private int lineLength;
+  private boolean pendingLine;
+
+  private final byte[] floatBytes;
+  private final ByteBuffer floatBuffer;
+
+  private String word;
+  private final float[] vector;
+  private long count;
+
+  private EmbeddingReader(InputStream in, Format format) throws IOException {
+    this.in = in;
+
+    if (!readLine()) {
+      throw new IOException("Empty embeddings file");
+    }
+    long[] header = parseHeader();
+    if (format == Format.AUTO) {
+      format = header == null ? Format.GLOVE : Format.WORD2VEC_TEXT;
+    }
+
+    if (format == Format.GLOVE) {
+      // No header: the first line is already a record, the dimensionality is the number of values on it.
+      this.size = -1;
+      this.dimensions = countValues();
+      this.pendingLine = true;
+    } else {
+      if (header == null) {
+        throw new IOException("Missing '<count> <dimensions>' header for " + format + " embeddings");
+      }
+      this.size = header[0];
+      this.dimensions = (int) header[1];
+    }
+
+    this.binary = format == Format.WORD2VEC_BINARY;
+    this.vector = new float[dimensions];
+    this.floatBytes = binary ? new byte[Float.BYTES * dimensions] : null;
+    this.floatBuffer = binary ? ByteBuffer.wrap(floatBytes).order(ByteOrder.LITTLE_ENDIAN) : null;
+  }
+
+  /**
+   * Opens an embeddings file. Files ending in {@code .gz} are decompressed on the fly; with {@link Format#AUTO},
+   * files ending in {@code .bin} are read as word2vec binary.
+   */
+  public static EmbeddingReader open(File file, Format format) throws IOException {
+    String name = file.getName();
+    InputStream in = new FileInputStream(file);
+    if (name.endsWith(".gz")) {
+      in = new GZIPInputStream(in, BUFFER_SIZE);
+      name = name.substring(0, name.length() - 3);
+    }
+    if (format == Format.AUTO && name.endsWith(".bin")) {
+      format = Format.WORD2VEC_BINARY;
+    }
+
+    try {
+      return new EmbeddingReader(in, format);
+    } catch (IOException e) {
+      in.close();
+      throw e;
+    }
+  }
+
+  public static EmbeddingReader open(File file) throws IOException {
+    return open(file, Format.AUTO);
+  }
+
+  /**
+   * Returns the number of words in an embeddings file, from its header if it has one, by reading it through
+   * otherwise.
+   */
+  public static long count(File file, Format format) throws IOException {
+    try (EmbeddingReader reader = open(file, format)) {
+      if (reader.size() >= 0) {
+        return reader.size();
+      }
+      while (reader.next()) {
+        // Just counting.
+      }
+      return reader.count();
+    }
+  }
+
+  public int dimensions() {
+    return dimensions;
+  }
+
+  /**
+   * Returns the number of words announced in the header, or -1 for formats without one.
+   */
+  public long size() {
+    return size;
+  }
+
+  /**
+   * Returns the number of words read so far.
+   */
+  public long count() {
+    return count;
+  }
+
+  /**
+   * Advances to the next word.
+   *
+   * @return false at the end of the file
+   */
+  public boolean next() throws IOException {
+    if (binary ? nextBinary() : nextText()) {
+      count++;
+      return true;
+    }
+    word = null;
+    return false;
+  }
+
+  /**
+   * Returns the current word.
+   */
+  public String word() {
+    return word;
+  }
+
+  /**
+   * Returns the vector of the current word. The array is reused and overwritten by {@link #next()}.
+   */
+  public float[] vector() {
+    return vector;
+  }
+
+  /**
+   * Reads up to {@code words.length} words into the given arrays, reusing the {@code float[]}s already in
+   * {@code vectors} when they have the right dimensionality.
+   *
+   * @return the number of words read, 0 at the end of the file
+   */
+  public int read(String[] words, float[][] vectors) throws IOException {
+    int n = 0;
+    while (n < words.length && next()) {
+      if (vectors[n] == null || vectors[n].length != dimensions) {
+        vectors[n] = new float[dimensions];
+      }
+      words[n] = word;
+      System.arraycopy(vector, 0, vectors[n], 0, dimensions);
+      n++;
+    }
+    return n;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  private boolean nextText() throws IOException {
+    do {
+      if (pendingLine) {
+        pendingLine = false;
+      } else if (!readLine()) {
+        return false;
+      }
+    } while (lineLength == 0);
+
+    // Values are parsed from the end of the line, since some GloVe releases contain words with spaces in them.
+    int end = lineLength;
+    for (int d = dimensions - 1; d >= 0; d--) {
+      int start = end - 1;
+      while (start >= 0 && line[start] != ' ') {
+        start--;
+      }
+      if (start < 0) {
+        throw new IOException("Expected " + dimensions + " values for record " + (count + 1));
+      }
+      vector[d] = Float.parseFloat(new String(line, start + 1, end - start - 1, StandardCharsets.US_ASCII));
+      end = start;
+      while (end > 0 && line[end - 1] == ' ') {
+        end--;
+      }
+    }
+    word = new String(line, 0, end, StandardCharsets.UTF_8);
+    return true;
+  }
+
+  private boolean nextBinary() throws IOException {
+    int b = readByte();
+    // Records are usually, but not always, terminated by a newline.
+    while (b == '\n' || b == '\r') {
+      b = readByte();
+    }
+    if (b == -1) {
+      return false;
+    }
+
+    lineLength = 0;
+    while (b != ' ') {
+      if (b == -1) {
+        throw new EOFException("Truncated record " + (count + 1));
+      }
+      append(b);
+      b = readByte();
+    }
+    word = new String(line, 0, lineLength, StandardCharsets.UTF_8);
+
+    int read = Math.min(limit - position, floatBytes.length);
+    System.arraycopy(buffer, position, floatBytes, 0, read);
+    position += read;
+    while (read < floatBytes.length) {
+      int n = in.read(floatBytes, read, floatBytes.length - read);
+      if (n < 0) {
+        throw new EOFException("Truncated vector for '" + word + "'");
+      }
+      read += n;
+    }
+    floatBuffer.clear();
+    floatBuffer.asFloatBuffer().get(vector);
+    return true;
+  }
+
+  private boolean readLine() throws IOException {
+    lineLength = 0;
+    int b = readByte();
+    if (b == -1) {
+      return false;
+    }
+    while (b != -1 && b != '\n') {
+      append(b);
+      b = readByte();
+    }
+    while (lineLength > 0 && (line[lineLength - 1] == '\r' || line[lineLength - 1] == ' ')) {
+      lineLength--;
+    }
+    return true;
+  }
+
+  private int readByte() throws IOException {
+    if (position == limit) {
+      limit = in.read(buffer, 0, buffer.length);
+      position = 0;
+      if (limit <= 0) {
+        limit = 0;
+        return -1;
+      }
+    }
+    return buffer[position++] & 0xFF;
+  }
+
+  private void append(int b) {
+    if (lineLength == line.length) {
+      line = Arrays.copyOf(line, line.length * 2);
+    }
+    line[lineLength++] = (byte) b;
+  }
+
+  private long[] parseHeader() {
+    String[] parts = new String(line, 0, lineLength, StandardCharsets.UTF_8).trim().split(" +");
+    if (parts.length != 2) {
+      return null;
+    }
+    try {
+      return new long[] { Long.parseLong(parts[0]), Long.parseLong(parts[1]) };
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private int countValues() {
+    int values = 0;
+    for (int i = 0; i < lineLength; i++) {
+      if (line[i] == ' ' && i + 1 < lineLength && line[i + 1] != ' ') {
+        values++;
+      }
+    }
+    return values;
+  }
+}
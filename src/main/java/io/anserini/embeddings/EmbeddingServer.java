@@ -0,0 +1,643 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.kohsuke.args4j.OptionHandlerFilter;
+import org.kohsuke.args4j.ParserProperties;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serves word lookups and nearest neighbours over HTTP from an index that stays open, so that clients don't pay for
+ * starting a JVM and opening the index on every request. Endpoints answer with JSON:
+ * <ul>
+ *   <li>{@code GET /lookup?word=a&word=b}, or {@code POST /lookup} with one word per line: the vectors of the words
+ *   that are found, as an object from words to arrays;</li>
+ *   <li>{@code GET /neighbours?word=a&k=10}, or {@code ?expression=...} for a {@link VectorQuery}, with
+ *   {@code -neighbours}: the neighbours as an array of {@code {"word", "score"}} objects;</li>
+ *   <li>{@code GET /health}: the size of the index, how many times it has been opened, how many lookup requests are
+ *   waiting and how many coalesced batches have been looked up;</li>
+ *   <li>{@code POST /reopen}: reopens the index right away.</li>
+ * </ul>
+ * Lookups of concurrent requests are coalesced: requests wait in a bounded queue, and lookup threads drain them in
+ * batches of up to {@code -maxBatch} words, each looked up with a single {@link EmbeddingStore#lookupAll} call that
+ * walks the term dictionary once. When the queue is full, or too many neighbour searches are in flight, requests are
+ * turned away with 503 rather than queued without bound. The index directory is checked for changes every
+ * {@code -reopenSeconds}; a changed index is opened next to the current one, swapped in, and the old one is closed
+ * once the requests using it are done. With {@code -subwords}, vectors of words that are not found are synthesized
+ * from their character n-grams, both for lookups and neighbour searches.
+ */
+public class EmbeddingServer implements Closeable {
+  private static final Logger LOG = LogManager.getLogger(EmbeddingServer.class);
+
+  // How long a request waits for its lookups before giving up.
+  private static final long LOOKUP_TIMEOUT_SECONDS = 30;
+
+  /**
+   * Options of {@link NearestNeighbour} for the {@code /neighbours} endpoint, where {@code -word} and
+   * {@code -queries} are ignored.
+   */
+  public static final class Args extends NearestNeighbour.Args {
+    @Option(name = "-port", metaVar = "[int]", usage = "port to listen on, 0 for any free port")
+    public int port = 8080;
+
+    @Option(name = "-httpThreads", metaVar = "[int]", usage = "number of threads handling requests")
+    public int httpThreads = 16;
+
+    @Option(name = "-lookupThreads", metaVar = "[int]", usage = "number of threads looking up coalesced batches")
+    public int lookupThreads = 2;
+
+    @Option(name = "-maxBatch", metaVar = "[int]", usage = "max number of words looked up in one coalesced batch")
+    public int maxBatch = 1024;
+
+    @Option(name = "-queueSize", metaVar = "[int]",
+        usage = "max number of lookup requests waiting, and of neighbour searches in flight, before turning away")
+    public int queueSize = 1024;
+
+    @Option(name = "-neighbours", usage = "serve nearest neighbours, which may load the vectors on the heap")
+    public boolean neighbours = false;
+
+    @Option(name = "-reopenSeconds", metaVar = "[int]",
+        usage = "how often to check the index for changes and reopen it; 0 disables")
+    public int reopenSeconds = 10;
+  }
+
+  private final Args args;
+  private final HttpServer server;
+  private final ExecutorService httpExecutor;
+  private final BlockingQueue<Pending> queue;
+  private final List<Thread> lookupThreads = new CopyOnWriteArrayList<>();
+  private final LongAdder batches = new LongAdder();
+  private final Semaphore searches;
+  private final ScheduledExecutorService reopener;
+
+  private final Object reopenLock = new Object();
+  private volatile Generation current;
+  private volatile boolean closed;
+
+  public EmbeddingServer(Args args) throws IOException {
+    this.args = args;
+    this.current = Generation.open(args, 1);
+    this.queue = new ArrayBlockingQueue<>(args.queueSize);
+    this.searches = new Semaphore(args.queueSize);
+
+    this.server = HttpServer.create(new InetSocketAddress(args.port), 0);
+    server.createContext("/lookup", exchange -> handle(exchange, this::lookup));
+    server.createContext("/neighbours", exchange -> handle(exchange, this::neighbours));
+    server.createContext("/health", exchange -> handle(exchange, this::health));
+    server.createContext("/reopen", exchange -> handle(exchange, this::reopen));
+    this.httpExecutor = Executors.newFixedThreadPool(args.httpThreads);
+    server.setExecutor(httpExecutor);
+
+    this.reopener = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "reopen");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  public static void main(String[] args) throws Exception {
+    Args serverArgs = new Args();
+    CmdLineParser parser = new CmdLineParser(serverArgs, ParserProperties.defaults().withUsageWidth(90));
+
+    try {
+      parser.parseArgument(args);
+    } catch (CmdLineException e) {
+      System.err.println(e.getMessage());
+      parser.printUsage(System.err);
+      System.err.println("Example: "+ EmbeddingServer.class.getSimpleName() +
+          parser.printExample(OptionHandlerFilter.REQUIRED) + " -port 8080");
+      return;
+    }
+
+    EmbeddingServer server = new EmbeddingServer(serverArgs);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      try {
+        server.close();
+      } catch (IOException e) {
+        LOG.error(e);
+      }
+    }));
+    server.start();
+  }
+
+  public void start() {
+    for (int i = 0; i < args.lookupThreads; i++) {
+      startLookupThread();
+    }
+    if (args.reopenSeconds > 0) {
+      reopener.scheduleWithFixedDelay(() -> {
+        try {
+          reopenIfChanged(false);
+        } catch (Exception e) {
+          // The index may be half written; the current one keeps being served until the next attempt.
+          LOG.warn("Could not reopen " + args.index + ": " + e.getMessage());
+        }
+      }, args.reopenSeconds, args.reopenSeconds, TimeUnit.SECONDS);
+    }
+    server.start();
+    LOG.info("Serving " + args.index + " on port " + port());
+  }
+
+  /**
+   * Returns the port the server listens on, which is useful with {@code -port 0}.
+   */
+  public int port() {
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * Reopens the index if its directory has changed since it was opened, or unconditionally with {@code force}.
+   *
+   * @return true if the index was reopened
+   */
+  public boolean reopenIfChanged(boolean force) throws IOException {
+    synchronized (reopenLock) {
+      Generation old = current;
+      if (closed || (!force && version(args.index).equals(old.version))) {
+        return false;
+      }
+      Generation next = Generation.open(args, old.number + 1);
+      current = next;
+      old.retire();
+      LOG.info("Reopened " + args.index + " (" + next.embeddings.getStore().size() + " words)");
+      return true;
+    }
+  }
+
+  /**
+   * Stops accepting requests, fails the lookups still waiting, and closes the index.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (reopenLock) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+    }
+    server.stop(1);
+    reopener.shutdownNow();
+    for (Thread thread : lookupThreads) {
+      thread.interrupt();
+    }
+    httpExecutor.shutdown();
+    Pending pending;
+    while ((pending = queue.poll()) != null) {
+      pending.result.completeExceptionally(new IOException("Server closed"));
+    }
+    current.retire();
+  }
+
+  /**
+   * Starts one more lookup thread. With {@code -lookupThreads 0}, requests only wait in the queue until this is
+   * called, which lets them be queued up before any is looked up.
+   */
+  synchronized void startLookupThread() {
+    Thread thread = new Thread(this::lookupLoop, "lookup-" + lookupThreads.size());
+    thread.setDaemon(true);
+    lookupThreads.add(thread);
+    thread.start();
+  }
+
+  /**
+   * Looks up batches of waiting requests until interrupted.
+   */
+  private void lookupLoop() {
+    List<Pending> batch = new ArrayList<>();
+    Set<String> words = new LinkedHashSet<>();
+    while (!closed) {
+      batch.clear();
+      words.clear();
+      try {
+        Pending first = queue.take();
+        batch.add(first);
+        words.addAll(first.words);
+      } catch (InterruptedException e) {
+        return;
+      }
+      Pending next;
+      while (words.size() < args.maxBatch && (next = queue.poll()) != null) {
+        batch.add(next);
+        words.addAll(next.words);
+      }
+
+      Generation generation = acquire();
+      if (generation == null) {
+        for (Pending pending : batch) {
+          pending.result.completeExceptionally(new IOException("Server closed"));
+        }
+        return;
+      }
+      batches.increment();
+      try {
+        Map<String, float[]> vectors = generation.embeddings.lookupAll(words);
+        for (Pending pending : batch) {
+          Map<String, float[]> found = new HashMap<>();
+          for (String word : pending.words) {
+            float[] vector = vectors.get(word);
+            if (vector != null) {
+              found.put(word, vector);
+            }
+          }
+          pending.result.complete(found);
+        }
+      } catch (IOException | RuntimeException e) {
+        for (Pending pending : batch) {
+          pending.result.completeExceptionally(e);
+        }
+      } finally {
+        generation.release();
+      }
+    }
+  }
+
+  private Response lookup(HttpExchange exchange) throws IOException {
+    List<String> words;
+    if ("POST".equals(exchange.getRequestMethod())) {
+      words = new ArrayList<>();
+      try (BufferedReader in = new BufferedReader(
+          new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))) {
+        String line;
+        while ((line = in.readLine()) != null) {
+          if (!line.trim().isEmpty()) {
+            words.add(line.trim());
+          }
+        }
+      }
+    } else {
+      words = parameters(exchange).getOrDefault("word", Collections.emptyList());
+    }
+    if (words.isEmpty()) {
+      return Response.error(400, "No words to look up");
+    }
+
+    if (closed) {
+      return Response.error(503, "Server closed");
+    }
+    Pending pending = new Pending(words);
+    if (!queue.offer(pending)) {
+      return Response.error(503, "Too many lookups waiting");
+    }
+    Map<String, float[]> vectors;
+    try {
+      vectors = pending.result.get(LOOKUP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException | TimeoutException e) {
+      return Response.error(503, "Lookup timed out");
+    } catch (ExecutionException e) {
+      if (closed) {
+        return Response.error(503, "Server closed");
+      }
+      throw new IOException(e.getCause());
+    }
+
+    StringBuilder json = new StringBuilder("{");
+    for (String word : new LinkedHashSet<>(words)) {
+      float[] vector = vectors.get(word);
+      if (vector == null) {
+        continue;
+      }
+      if (json.length() > 1) {
+        json.append(", ");
+      }
+      appendString(json, word).append(": [");
+      for (int i = 0; i < vector.length; i++) {
+        if (i > 0) {
+          json.append(", ");
+        }
+        json.append(vector[i]);
+      }
+      json.append(']');
+    }
+    return Response.ok(json.append('}').toString());
+  }
+
+  private Response neighbours(HttpExchange exchange) throws IOException {
+    if (!args.neighbours) {
+      return Response.error(404, "Nearest neighbours are not served, restart with -neighbours");
+    }
+    Map<String, List<String>> parameters = parameters(exchange);
+    String word = first(parameters, "word");
+    String expression = first(parameters, "expression");
+    if ((word == null) == (expression == null)) {
+      return Response.error(400, "Exactly one of word and expression is required");
+    }
+    int k;
+    VectorQuery query = null;
+    try {
+      k = parameters.containsKey("k") ? Integer.parseInt(first(parameters, "k")) : args.k;
+      if (expression != null) {
+        query = VectorQuery.parse(expression);
+      }
+    } catch (IllegalArgumentException e) {
+      return Response.error(400, e.getMessage());
+    }
+
+    if (!searches.tryAcquire()) {
+      return Response.error(503, "Too many searches in flight");
+    }
+    Generation generation = acquire();
+    if (generation == null) {
+      searches.release();
+      return Response.error(503, "Server closed");
+    }
+    List<Neighbour> neighbours;
+    try {
+      neighbours = query != null ? generation.index.search(query, k) : generation.index.search(word, k);
+    } finally {
+      generation.release();
+      searches.release();
+    }
+    if (neighbours == null) {
+      return Response.error(404, "Not found");
+    }
+
+    StringBuilder json = new StringBuilder("[");
+    for (Neighbour neighbour : neighbours) {
+      if (json.length() > 1) {
+        json.append(", ");
+      }
+      json.append("{\"word\": ");
+      appendString(json, neighbour.word).append(", \"score\": ").append(neighbour.score).append('}');
+    }
+    return Response.ok(json.append(']').toString());
+  }
+
+  private Response health(HttpExchange exchange) {
+    Generation generation = current;
+    return Response.ok("{\"words\": " + generation.embeddings.getStore().size() + ", \"dimensions\": " +
+        generation.embeddings.dimensions() + ", \"generation\": " + generation.number + ", \"waiting\": " + queue.size() +
+        ", \"batches\": " + batches.sum() + "}");
+  }
+
+  private Response reopen(HttpExchange exchange) throws IOException {
+    if (!"POST".equals(exchange.getRequestMethod())) {
+      return Response.error(405, "Use POST");
+    }
+    reopenIfChanged(true);
+    return health(exchange);
+  }
+
+  /**
+   * Returns the current generation, which must be released once the request is done with it.
+   *
+   * @return the generation, or null once the server is closed
+   */
+  private Generation acquire() {
+    while (!closed) {
+      Generation generation = current;
+      if (generation.tryAcquire()) {
+        return generation;
+      }
+      // Retired between the read and the acquire; the new one is already in place, unless the server was closed.
+    }
+    return null;
+  }
+
+  private interface Handler {
+    Response handle(HttpExchange exchange) throws IOException;
+  }
+
+  private static void handle(HttpExchange exchange, Handler handler) throws IOException {
+    Response response;
+    try {
+      response = handler.handle(exchange);
+    } catch (Exception e) {
+      LOG.error("Error handling " + exchange.getRequestURI(), e);
+      response = Response.error(500, String.valueOf(e.getMessage()));
+    }
+
+    byte[] body = response.body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+    if (response.status == 503) {
+      exchange.getResponseHeaders().set("Retry-After", "1");
+    }
+    exchange.sendResponseHeaders(response.status, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  private static Map<String, List<String>> parameters(HttpExchange exchange) throws UnsupportedEncodingException {
+    Map<String, List<String>> parameters = new HashMap<>();
+    String query = exchange.getRequestURI().getRawQuery();
+    if (query == null) {
+      return parameters;
+    }
+    for (String pair : query.split("&")) {
+      if (pair.isEmpty()) {
+        continue;
+      }
+      int equals = pair.indexOf('=');
+      String name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), "UTF-8");
+      String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+      parameters.computeIfAbsent(name, key -> new ArrayList<>()).add(value);
+    }
+    return parameters;
+  }
+
+  private static String first(Map<String, List<String>> parameters, String name) {
+    List<String> values = parameters.get(name);
+    return values == null ? null : values.get(0);
+  }
+
+  private static StringBuilder appendString(StringBuilder json, String value) {
+    json.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        json.append('\\').append(c);
+      } else if (c < 0x20) {
+        json.append(String.format("\\u%04x", (int) c));
+      } else {
+        json.append(c);
+      }
+    }
+    return json.append('"');
+  }
+
+  /**
+   * Returns a token that changes whenever the index in a directory does: the last commit generation of a Lucene
+   * index, or the modification times of the files of a flat store, plus those of an HNSW graph, a projection and a
+   * subword table.
+   */
+  private static String version(Path index) throws IOException {
+    StringBuilder version = new StringBuilder();
+    Path vectors = index.resolve(FlatEmbeddingStore.VECTORS_FILE);
+    if (ShardLayout.exists(index)) {
+      // A sharded index changes when its layout or any of its shards does.
+      ShardLayout layout = ShardLayout.read(index);
+      version.append(Files.getLastModifiedTime(index.resolve(ShardLayout.SHARDS_FILE)).toMillis());
+      for (int i = 0; i < layout.shards(); i++) {
+        version.append('[').append(version(layout.path(i))).append(']');
+      }
+    } else if (Files.exists(vectors)) {
+      version.append(Files.getLastModifiedTime(vectors).toMillis()).append('/')
+          .append(Files.getLastModifiedTime(index.resolve(FlatEmbeddingStore.DICTIONARY_FILE)).toMillis());
+    } else {
+      try (Directory dir = FSDirectory.open(index)) {
+        version.append(SegmentInfos.getLastCommitGeneration(dir));
+      }
+    }
+    for (String file : new String[] {HnswGraph.GRAPH_FILE, Projection.PROJECTION_FILE, SubwordTable.SUBWORDS_FILE}) {
+      Path path = index.resolve(file);
+      version.append('/').append(Files.exists(path) ? Files.getLastModifiedTime(path).toMillis() : 0);
+    }
+    return version.toString();
+  }
+
+  private static final class Pending {
+    final List<String> words;
+    final CompletableFuture<Map<String, float[]>> result = new CompletableFuture<>();
+
+    Pending(List<String> words) {
+      this.words = words;
+    }
+  }
+
+  private static final class Response {
+    final int status;
+    final String body;
+
+    private Response(int status, String body) {
+      this.status = status;
+      this.body = body;
+    }
+
+    static Response ok(String body) {
+      return new Response(200, body);
+    }
+
+    static Response error(int status, String message) {
+      return new Response(status, appendString(new StringBuilder("{\"error\": "), message).append('}').toString());
+    }
+  }
+
+  /**
+   * An opened index, reference counted so that it is only closed once it has been replaced and the last request
+   * using it is done.
+   */
+  private static final class Generation {
+    final int number;
+    final String version;
+    final WordEmbeddings embeddings;
+    final NearestNeighbourIndex index;
+    // One reference is held by the server until the generation is retired.
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private Generation(int number, String version, WordEmbeddings embeddings, NearestNeighbourIndex index) {
+      this.number = number;
+      this.version = version;
+      this.embeddings = embeddings;
+      this.index = index;
+    }
+
+    /**
+     * Opens the index. The version is read first, so that a change made while opening is picked up next time.
+     */
+    static Generation open(Args args, int number) throws IOException {
+      String version = version(args.index);
+      if (!args.neighbours) {
+        EmbeddingStore store = EmbeddingStore.open(args.index, IndexWordEmbeddings.FIELD_VECTOR, args.preload);
+        try {
+          return new Generation(number, version,
+              new WordEmbeddings(store, null, args.subwords ? SubwordTable.open(args.index) : null), null);
+        } catch (IOException | RuntimeException e) {
+          store.close();
+          throw e;
+        }
+      }
+      NearestNeighbourIndex index = NearestNeighbourIndex.open(args);
+      EmbeddingStore store = index.getFullStore();
+      if (store == null) {
+        index.close();
+        throw new IllegalArgumentException(args.index + " does not store full vectors to look up");
+      }
+      return new Generation(number, version, new WordEmbeddings(store, null, index.getSubwords()), index);
+    }
+
+    boolean tryAcquire() {
+      int count;
+      do {
+        count = references.get();
+        if (count == 0) {
+          return false;
+        }
+      } while (!references.compareAndSet(count, count + 1));
+      return true;
+    }
+
+    void release() {
+      if (references.decrementAndGet() == 0) {
+        try {
+          // The store and subword table of a neighbours index belong to it.
+          if (index != null) {
+            index.close();
+          } else {
+            embeddings.close();
+          }
+        } catch (IOException e) {
+          LOG.error(e);
+        }
+      }
+    }
+
+    void retire() {
+      release();
+    }
+  }
+}
@@ -0,0 +1,116 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import org.apache.lucene.util.BytesRef;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Read access to a set of word embeddings. Words are numbered from 0 to {@link #size()} - 1; these row numbers
+ * allow implementations to be scanned, e.g., for nearest neighbour search. Implementations are thread-safe.
+ */
+public interface EmbeddingStore extends Closeable {
+  /**
+   * Returns the dimensionality of the vectors.
+   */
+  int dimensions();
+
+  /**
+   * Returns the number of rows. Some rows may be empty, see {@link #vector(int, float[])}.
+   */
+  int size();
+
+  /**
+   * Looks up the vector of a word.
+   *
+   * @return the vector, or null if the word is not found
+   */
+  float[] lookup(String word) throws IOException;
+
+  /**
+   * Looks up the vectors of several words.
+   *
+   * @return the vectors of the words that are found
+   */
+  default Map<String, float[]> lookupAll(Collection<String> words) throws IOException {
+    Map<String, float[]> vectors = new HashMap<>();
+    for (String word : words) {
+      float[] vector = lookup(word);
+      if (vector != null) {
+        vectors.put(word, vector);
+      }
+    }
+    return vectors;
+  }
+
+  /**
+   * Looks up the vector of a term produced by an analyzer, given as UTF-8 bytes, into {@code vector}. Terms are
+   * matched as they are, without further analysis, so the analyzer must agree with how the store matches words.
+   * Implementations avoid allocating where they can, for lookups on the hot path.
+   *
+   * @return false if the term is not found
+   */
+  default boolean lookup(BytesRef term, float[] vector) throws IOException {
+    float[] value = lookup(term.utf8ToString());
+    if (value == null) {
+      return false;
+    }
+    System.arraycopy(value, 0, vector, 0, vector.length);
+    return true;
+  }
+
+  /**
+   * Returns the word at a row.
+   */
+  String word(int row) throws IOException;
+
+  /**
+   * Copies the vector at a row into {@code vector}.
+   *
+   * @return false if the row is empty, e.g., because its word has been deleted
+   */
+  boolean vector(int row, float[] vector) throws IOException;
+
+  /**
+   * Opens the embeddings at {@code path}: a {@link ShardedEmbeddingStore} if the directory holds a
+   * {@link ShardLayout}, a {@link FlatEmbeddingStore} if it holds one, a {@link LuceneEmbeddingStore} reading vectors
+   * from {@code field} otherwise.
+   */
+  static EmbeddingStore open(Path path, String field) throws IOException {
+    return open(path, field, false);
+  }
+
+  /**
+   * Opens the embeddings at {@code path}, with {@code preload}, reading their files into the page cache on open.
+   */
+  static EmbeddingStore open(Path path, String field, boolean preload) throws IOException {
+    if (ShardLayout.exists(path)) {
+      return ShardedEmbeddingStore.open(path, field, preload);
+    }
+    if (Files.exists(path.resolve(FlatEmbeddingStore.VECTORS_FILE))) {
+      return FlatEmbeddingStore.open(path, preload);
+    }
+    return LuceneEmbeddingStore.open(path, field, preload);
+  }
+}
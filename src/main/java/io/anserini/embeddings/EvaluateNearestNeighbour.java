@@ -0,0 +1,233 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.kohsuke.args4j.OptionHandlerFilter;
+import org.kohsuke.args4j.ParserProperties;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Evaluates a nearest neighbour search method against exact search on the full vectors. For each query word, the
+ * ground truth is the exact top k by brute force, and the method is scored by recall@k and by the mean reciprocal
+ * rank of the true nearest neighbour. The query word itself is left out of both lists. Queries are then timed at the
+ * given concurrency, after a warm-up, for latency percentiles and throughput. Results are printed, and written as
+ * JSON with {@code -output}.
+ */
+public class EvaluateNearestNeighbour {
+  private static final Logger LOG = LogManager.getLogger(EvaluateNearestNeighbour.class);
+
+  /**
+   * Options of {@link NearestNeighbour}, where {@code -queries} is required and {@code -word} is ignored.
+   */
+  public static final class Args extends NearestNeighbour.Args {
+    @Option(name = "-warmup", metaVar = "[int]", usage = "number of queries run before timing")
+    public int warmup = 100;
+
+    @Option(name = "-output", metaVar = "[file]", usage = "file to write the results to, as JSON")
+    public Path output;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Args evalArgs = new Args();
+    CmdLineParser parser = new CmdLineParser(evalArgs, ParserProperties.defaults().withUsageWidth(90));
+
+    try {
+      parser.parseArgument(args);
+      if (evalArgs.queries == null) {
+        throw new CmdLineException(parser, "Option \"-queries\" is required", null);
+      }
+    } catch (CmdLineException e) {
+      System.err.println(e.getMessage());
+      parser.printUsage(System.err);
+      System.err.println("Example: "+ EvaluateNearestNeighbour.class.getSimpleName() +
+          parser.printExample(OptionHandlerFilter.REQUIRED) + " -queries queries.txt");
+      return;
+    }
+
+    List<String> queries = new ArrayList<>();
+    try (BufferedReader in = "-".equals(evalArgs.queries) ?
+        new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)) :
+        Files.newBufferedReader(Paths.get(evalArgs.queries), StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = in.readLine()) != null) {
+        if (!line.trim().isEmpty()) {
+          queries.add(line.trim());
+        }
+      }
+    }
+
+    try (NearestNeighbourIndex index = NearestNeighbourIndex.open(evalArgs)) {
+      EmbeddingStore fullStore = index.getFullStore();
+      if (fullStore == null) {
+        System.err.println("Error: the index does not store full vectors for the ground truth, rebuild it with " +
+            "-storeVectors!");
+        System.exit(-1);
+      }
+
+      // The query word is its own nearest neighbour, so one more neighbour is retrieved to leave it out.
+      int k = evalArgs.k;
+      LOG.info("Computing exact ground truth for " + queries.size() + " queries...");
+      // Exact search is its own ground truth, and loading the vectors twice would be wasteful, unless it scans
+      // quantized codes.
+      boolean reuse = index.method() == NearestNeighbour.Method.EXACT && index.encoding() == VectorEncoding.FLOAT32;
+      ExactNearestNeighbourSearcher exact = reuse ? null :
+          new ExactNearestNeighbourSearcher(fullStore, evalArgs.similarity);
+      List<String> found = new ArrayList<>();
+      List<List<String>> truth = new ArrayList<>();
+      for (String query : queries) {
+        float[] vector = fullStore.lookup(query);
+        if (vector == null) {
+          continue;
+        }
+        List<Neighbour> neighbours = exact != null ? exact.search(vector, k + 1) : index.search(query, k + 1);
+        found.add(query);
+        truth.add(words(neighbours, query, k));
+      }
+      if (found.isEmpty()) {
+        System.err.println("Error: none of the query words were found!");
+        System.exit(-1);
+      }
+      LOG.info(found.size() + " of " + queries.size() + " query words found.");
+
+      LOG.info("Running " + Math.min(evalArgs.warmup, found.size()) + " warm-up queries...");
+      for (int i = 0; i < Math.min(evalArgs.warmup, found.size()); i++) {
+        index.search(found.get(i), k + 1);
+      }
+
+      LOG.info("Running " + found.size() + " queries with " + index.method() + " at concurrency " +
+          evalArgs.concurrency + "...");
+      long[] latencies = new long[found.size()];
+      List<List<String>> results = new ArrayList<>(found.size());
+      for (int i = 0; i < found.size(); i++) {
+        results.add(null);
+      }
+      AtomicInteger next = new AtomicInteger();
+      ExecutorService executor = Executors.newFixedThreadPool(evalArgs.concurrency);
+      long start = System.nanoTime();
+      try {
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < evalArgs.concurrency; t++) {
+          futures.add(executor.submit(() -> {
+            int i;
+            while ((i = next.getAndIncrement()) < found.size()) {
+              long queryStart = System.nanoTime();
+              List<Neighbour> neighbours = index.search(found.get(i), k + 1);
+              latencies[i] = System.nanoTime() - queryStart;
+              results.set(i, words(neighbours, found.get(i), k));
+            }
+            return null;
+          }));
+        }
+        for (Future<?> future : futures) {
+          future.get();
+        }
+      } finally {
+        executor.shutdown();
+      }
+      double seconds = (System.nanoTime() - start) / 1e9;
+
+      double recall = 0;
+      double reciprocalRank = 0;
+      for (int i = 0; i < found.size(); i++) {
+        List<String> expected = truth.get(i);
+        List<String> actual = results.get(i);
+        Set<String> expectedSet = new HashSet<>(expected);
+        int hits = 0;
+        for (String word : actual) {
+          if (expectedSet.contains(word)) {
+            hits++;
+          }
+        }
+        recall += expected.isEmpty() ? 1 : (double) hits / expected.size();
+        int rank = expected.isEmpty() ? -1 : actual.indexOf(expected.get(0));
+        reciprocalRank += rank < 0 ? 0 : 1.0 / (rank + 1);
+      }
+      recall /= found.size();
+      reciprocalRank /= found.size();
+      Arrays.sort(latencies);
+
+      String summary = String.format(Locale.ROOT, "{\"method\": \"%s\", \"k\": %d, \"queries\": %d, " +
+              "\"recall\": %.4f, \"mrr\": %.4f, \"latency_ms\": {\"mean\": %.3f, \"p50\": %.3f, \"p95\": %.3f, " +
+              "\"p99\": %.3f}, \"concurrency\": %d, \"throughput_qps\": %.1f}",
+          index.method().name().toLowerCase(Locale.ROOT), k, found.size(), recall, reciprocalRank,
+          mean(latencies) / 1e6, percentile(latencies, 50) / 1e6, percentile(latencies, 95) / 1e6,
+          percentile(latencies, 99) / 1e6, evalArgs.concurrency, found.size() / seconds);
+
+      System.out.println(String.format(Locale.ROOT, "recall@%d\t%.4f", k, recall));
+      System.out.println(String.format(Locale.ROOT, "mrr\t%.4f", reciprocalRank));
+      System.out.println(String.format(Locale.ROOT, "latency p50/p95/p99 (ms)\t%.3f/%.3f/%.3f",
+          percentile(latencies, 50) / 1e6, percentile(latencies, 95) / 1e6, percentile(latencies, 99) / 1e6));
+      System.out.println(String.format(Locale.ROOT, "throughput (queries/s)\t%.1f", found.size() / seconds));
+      if (evalArgs.output != null) {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(evalArgs.output, StandardCharsets.UTF_8))) {
+          out.println(summary);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the words of the first k neighbours other than the query word.
+   */
+  private static List<String> words(List<Neighbour> neighbours, String query, int k) {
+    List<String> words = new ArrayList<>(k);
+    for (Neighbour neighbour : neighbours) {
+      if (words.size() < k && !neighbour.word.equals(query)) {
+        words.add(neighbour.word);
+      }
+    }
+    return words;
+  }
+
+  private static double mean(long[] values) {
+    double sum = 0;
+    for (long value : values) {
+      sum += value;
+    }
+    return sum / values.length;
+  }
+
+  /**
+   * Returns a percentile of sorted values, by the nearest-rank method.
+   */
+  private static long percentile(long[] sorted, int percentile) {
+    int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+    return sorted[Math.max(0, rank - 1)];
+  }
+}
@@ -0,0 +1,190 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Exact nearest neighbour search by brute force over the full vectors of an {@link EmbeddingStore}. The vectors are
+ * copied into a {@link VectorMatrix} (normalized for {@link Similarity#COSINE}), and every query scans all of them,
+ * partitioned across the threads of a {@link ForkJoinPool} that each keep their own bounded heap. The scan itself
+ * does not allocate. To scan less memory, the vectors can instead be held as the codes of a {@link QuantizedMatrix},
+ * optionally re-scoring the best candidates on the vectors of the store in full precision.
+ */
+public class ExactNearestNeighbourSearcher implements NearestNeighbourSearcher {
+  // Rows scanned by a single task before it stops splitting.
+  private static final int TASK_ROWS = 1 << 14;
+
+  private final EmbeddingStore store;
+  private final Similarity similarity;
+  private final ForkJoinPool pool;
+  private final VectorMatrix vectors;
+  private final QuantizedMatrix codes;
+  private final int rerank;
+
+  public ExactNearestNeighbourSearcher(EmbeddingStore store, Similarity similarity) throws IOException {
+    this(store, similarity, ForkJoinPool.commonPool());
+  }
+
+  public ExactNearestNeighbourSearcher(EmbeddingStore store, Similarity similarity, ForkJoinPool pool)
+      throws IOException {
+    this(store, VectorMatrix.load(store, similarity == Similarity.COSINE), similarity, pool);
+  }
+
+  /**
+   * @param vectors vectors of the store, normalized if the similarity is {@link Similarity#COSINE}
+   */
+  public ExactNearestNeighbourSearcher(EmbeddingStore store, VectorMatrix vectors, Similarity similarity,
+                                       ForkJoinPool pool) {
+    this.store = store;
+    this.vectors = vectors;
+    this.codes = null;
+    this.similarity = similarity;
+    this.pool = pool;
+    this.rerank = 0;
+  }
+
+  /**
+   * Creates a searcher scanning quantized codes.
+   *
+   * @param codes vectors of the store
+   * @param rerank number of candidates found on the codes to re-score on the vectors of the store, which only helps
+   *     if they are more precise than the codes; 0 (or at most k) returns the scores of the codes
+   */
+  public ExactNearestNeighbourSearcher(EmbeddingStore store, QuantizedMatrix codes, Similarity similarity,
+                                       ForkJoinPool pool, int rerank) {
+    this.store = store;
+    this.vectors = null;
+    this.codes = codes;
+    this.similarity = similarity;
+    this.pool = pool;
+    this.rerank = rerank;
+  }
+
+  public EmbeddingStore getStore() {
+    return store;
+  }
+
+  public Similarity getSimilarity() {
+    return similarity;
+  }
+
+  @Override
+  public List<Neighbour> search(float[] query, int k) throws IOException {
+    TopK top = searchRows(query, k);
+    int[] ids = new int[top.size()];
+    float[] scores = new float[top.size()];
+    int n = top.drain(ids, scores);
+
+    List<Neighbour> neighbours = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      neighbours.add(new Neighbour(store.word(ids[i]), scores[i]));
+    }
+    return neighbours;
+  }
+
+  /**
+   * Returns the store rows of the k nearest neighbours of a vector.
+   */
+  public TopK searchRows(float[] query, int k) throws IOException {
+    int dimensions = codes != null ? codes.dimensions() : vectors.dimensions();
+    if (query.length != dimensions) {
+      throw new IllegalArgumentException("Expected a " + dimensions + "-dimensional query but got " + query.length);
+    }
+    float[] q = query;
+    if (similarity == Similarity.COSINE) {
+      q = query.clone();
+      Similarity.normalize(q);
+    }
+    if (codes == null) {
+      return pool.invoke(new ScanTask(q, null, k, 0, vectors.size()));
+    }
+
+    TopK candidates = pool.invoke(new ScanTask(null, codes.prepare(similarity, q), Math.max(k, rerank), 0,
+        codes.size()));
+    if (rerank <= k) {
+      return candidates;
+    }
+    int[] rows = new int[candidates.size()];
+    int n = candidates.drain(rows, new float[rows.length]);
+    TopK top = new TopK(k);
+    float[] vector = new float[dimensions];
+    for (int i = 0; i < n; i++) {
+      if (!store.vector(rows[i], vector)) {
+        continue;
+      }
+      if (similarity == Similarity.COSINE) {
+        Similarity.normalize(vector);
+      }
+      top.offer(rows[i], similarity.score(q, 0, vector, 0, dimensions));
+    }
+    return top;
+  }
+
+  private final class ScanTask extends RecursiveTask<TopK> {
+    private static final long serialVersionUID = 1L;
+
+    private final float[] query;
+    private final QuantizedMatrix.Query quantized;
+    private final int k;
+    private final int start;
+    private final int end;
+
+    ScanTask(float[] query, QuantizedMatrix.Query quantized, int k, int start, int end) {
+      this.query = query;
+      this.quantized = quantized;
+      this.k = k;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected TopK compute() {
+      if (end - start > TASK_ROWS) {
+        int middle = (start + end) >>> 1;
+        ScanTask left = new ScanTask(query, quantized, k, start, middle);
+        left.fork();
+        TopK top = new ScanTask(query, quantized, k, middle, end).compute();
+        top.addAll(left.join());
+        return top;
+      }
+
+      TopK top = new TopK(k);
+      if (quantized != null) {
+        for (int i = start; i < end; i++) {
+          float score = codes.score(quantized, i);
+          if (score > top.threshold()) {
+            top.offer(codes.row(i), score);
+          }
+        }
+        return top;
+      }
+      int dimensions = vectors.dimensions();
+      for (int i = start; i < end; i++) {
+        float score = similarity.score(query, 0, vectors.block(i), vectors.offset(i), dimensions);
+        if (score > top.threshold()) {
+          top.offer(vectors.row(i), score);
+        }
+      }
+      return top;
+    }
+  }
+}
@@ -0,0 +1,457 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FutureArrays;
+import org.apache.lucene.util.StringHelper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {@link EmbeddingStore} laid out as two flat files that are memory-mapped on open:
+ * <ul>
+ *   <li>{@value #VECTORS_FILE}: a header followed by the vectors as a contiguous row-major matrix, of little-endian
+ *   floats or, to save space and bandwidth, of half floats or 8-bit codes (see {@link VectorEncoding});</li>
+ *   <li>{@value #DICTIONARY_FILE}: the UTF-8 bytes of the words, their offsets, and an open-addressing hash table
+ *   mapping words to rows.</li>
+ * </ul>
+ * Lookups are a hash probe and a read from the mapped matrix, and since the data lives in the page cache it is shared
+ * by all processes on a host that open the same store. Words are matched exactly, without analysis. Quantized vectors
+ * are decoded on lookup, and their codes can be scanned as they are with a {@link QuantizedMatrix}.
+ */
+public class FlatEmbeddingStore implements EmbeddingStore {
+  public static final String VECTORS_FILE = "vectors.bin";
+  public static final String DICTIONARY_FILE = "words.bin";
+
+  private static final int VECTORS_MAGIC = 0x56454353;
+  private static final int DICTIONARY_MAGIC = 0x574f5244;
+  private static final int VERSION = 1;
+  // Version 2 of the vectors file adds the encoding to the header, followed by the quantizer for INT8.
+  private static final int VECTORS_VERSION = 2;
+  private static final int HEADER_LENGTH = 16;
+  private static final int VECTORS_HEADER_LENGTH = 20;
+  private static final int HASH_SEED = 0;
+
+  private final int size;
+  private final int dimensions;
+  private final VectorEncoding encoding;
+  private final ScalarQuantizer quantizer;
+
+  // The matrix is mapped in chunks of whole rows, since a single mapping can't exceed 2GB.
+  private final ByteBuffer[] chunks;
+  private final int rowsPerChunk;
+  private final int rowBytes;
+
+  private final LongBuffer offsets;
+  private final IntBuffer table;
+  private final ByteBuffer words;
+
+  private FlatEmbeddingStore(Path directory, boolean preload) throws IOException {
+    try (FileChannel channel = FileChannel.open(directory.resolve(VECTORS_FILE), StandardOpenOption.READ)) {
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+          Math.min(channel.size(), VECTORS_HEADER_LENGTH)).order(ByteOrder.LITTLE_ENDIAN);
+      int version = checkHeader(header, VECTORS_MAGIC, VECTORS_FILE, VECTORS_VERSION);
+      this.size = header.getInt();
+      this.dimensions = header.getInt();
+      if (dimensions < 1) {
+        throw new IOException(VECTORS_FILE + " has " + dimensions + " dimensions, expected at least 1");
+      }
+      this.encoding = version == 1 ? VectorEncoding.FLOAT32 : VectorEncoding.values()[header.getInt()];
+
+      long start = version == 1 ? HEADER_LENGTH : VECTORS_HEADER_LENGTH;
+      if (encoding == VectorEncoding.INT8) {
+        this.quantizer = ScalarQuantizer.read(channel.map(FileChannel.MapMode.READ_ONLY, start,
+            ScalarQuantizer.length(dimensions)).order(ByteOrder.LITTLE_ENDIAN), dimensions);
+        start += ScalarQuantizer.length(dimensions);
+      } else {
+        this.quantizer = null;
+      }
+
+      this.rowBytes = encoding.bytes() * dimensions;
+      this.rowsPerChunk = Math.max(1, Integer.MAX_VALUE / rowBytes);
+      this.chunks = new ByteBuffer[(size + rowsPerChunk - 1) / rowsPerChunk];
+      for (int i = 0; i < chunks.length; i++) {
+        int rows = Math.min(rowsPerChunk, size - i * rowsPerChunk);
+        MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY,
+            start + (long) i * rowsPerChunk * rowBytes, (long) rows * rowBytes);
+        if (preload) {
+          chunk.load();
+        }
+        chunks[i] = chunk.order(ByteOrder.LITTLE_ENDIAN);
+      }
+    }
+
+    try (FileChannel channel = FileChannel.open(directory.resolve(DICTIONARY_FILE), StandardOpenOption.READ)) {
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (preload) {
+        mapped.load();
+      }
+      ByteBuffer buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+      checkHeader(buffer, DICTIONARY_MAGIC, DICTIONARY_FILE, VERSION);
+      int rows = buffer.getInt();
+      int capacity = buffer.getInt();
+      if (rows != size) {
+        throw new IOException(DICTIONARY_FILE + " has " + rows + " words but " + VECTORS_FILE + " has " + size);
+      }
+
+      buffer.position(HEADER_LENGTH);
+      this.offsets = slice(buffer, Long.BYTES * (rows + 1)).asLongBuffer();
+      this.table = slice(buffer, Integer.BYTES * capacity).asIntBuffer();
+      this.words = slice(buffer, buffer.remaining());
+    }
+  }
+
+  public static FlatEmbeddingStore open(Path directory) throws IOException {
+    return new FlatEmbeddingStore(directory, false);
+  }
+
+  /**
+   * Opens a store, with {@code preload}, reading its files into the page cache on open.
+   */
+  public static FlatEmbeddingStore open(Path directory, boolean preload) throws IOException {
+    return new FlatEmbeddingStore(directory, preload);
+  }
+
+  @Override
+  public int dimensions() {
+    return dimensions;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  public VectorEncoding encoding() {
+    return encoding;
+  }
+
+  /**
+   * Returns the quantizer of {@link VectorEncoding#INT8} vectors, or null for other encodings.
+   */
+  public ScalarQuantizer quantizer() {
+    return quantizer;
+  }
+
+  @Override
+  public float[] lookup(String word) {
+    int row = row(word);
+    if (row < 0) {
+      return null;
+    }
+    float[] vector = new float[dimensions];
+    vector(row, vector);
+    return vector;
+  }
+
+  /**
+   * Returns the row of a word, or -1 if the word is not found.
+   */
+  public int row(String word) {
+    return row(new BytesRef(word));
+  }
+
+  /**
+   * Returns the row of a word given as UTF-8 bytes, or -1 if the word is not found.
+   */
+  public int row(BytesRef word) {
+    int mask = table.capacity() - 1;
+    int slot = StringHelper.murmurhash3_x86_32(word, HASH_SEED) & mask;
+    while (true) {
+      int entry = table.get(slot);
+      if (entry == 0) {
+        return -1;
+      }
+      if (matches(entry - 1, word)) {
+        return entry - 1;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  /**
+   * Looks up the vector of a term without allocating.
+   */
+  @Override
+  public boolean lookup(BytesRef term, float[] vector) {
+    int row = row(term);
+    return row >= 0 && vector(row, vector);
+  }
+
+  @Override
+  public String word(int row) {
+    int start = (int) offsets.get(row);
+    int length = (int) offsets.get(row + 1) - start;
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = words.get(start + i);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public boolean vector(int row, float[] vector) {
+    ByteBuffer chunk = chunks[row / rowsPerChunk];
+    int base = (row % rowsPerChunk) * rowBytes;
+    switch (encoding) {
+      case FLOAT16:
+        for (int i = 0; i < dimensions; i++) {
+          vector[i] = Float16.decode(chunk.getShort(base + Short.BYTES * i));
+        }
+        break;
+      case INT8:
+        for (int i = 0; i < dimensions; i++) {
+          vector[i] = quantizer.decode(chunk.get(base + i), i);
+        }
+        break;
+      default:
+        for (int i = 0; i < dimensions; i++) {
+          vector[i] = chunk.getFloat(base + Float.BYTES * i);
+        }
+    }
+    return true;
+  }
+
+  /**
+   * Copies the encoded vector at a row, {@code dimensions() * encoding().bytes()} bytes, into {@code codes} starting
+   * at {@code offset}.
+   */
+  public void codes(int row, byte[] codes, int offset) {
+    ByteBuffer chunk = chunks[row / rowsPerChunk];
+    int base = (row % rowsPerChunk) * rowBytes;
+    for (int i = 0; i < rowBytes; i++) {
+      codes[offset + i] = chunk.get(base + i);
+    }
+  }
+
+  /**
+   * Nothing to release: mappings are unmapped when they are garbage collected.
+   */
+  @Override
+  public void close() {
+  }
+
+  private boolean matches(int row, BytesRef word) {
+    int start = (int) offsets.get(row);
+    if (offsets.get(row + 1) - start != word.length) {
+      return false;
+    }
+    for (int i = 0; i < word.length; i++) {
+      if (words.get(start + i) != word.bytes[word.offset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int checkHeader(ByteBuffer header, int magic, String name, int maxVersion) throws IOException {
+    if (header.getInt() != magic) {
+      throw new IOException(name + " is not a flat embeddings file");
+    }
+    int version = header.getInt();
+    if (version < 1 || version > maxVersion) {
+      throw new IOException("Unsupported " + name + " version " + version);
+    }
+    return version;
+  }
+
+  private static ByteBuffer slice(ByteBuffer buffer, int length) {
+    ByteBuffer slice = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    slice.limit(length);
+    buffer.position(buffer.position() + length);
+    return slice;
+  }
+
+  /**
+   * Writes a {@link FlatEmbeddingStore}. Vectors are streamed to disk as they are added; only the words are kept in
+   * memory to build the dictionary on {@link #close()}.
+   */
+  public static class Writer implements Closeable {
+    private final Path directory;
+    private final int dimensions;
+    private final VectorEncoding encoding;
+    private final ScalarQuantizer quantizer;
+    private final int rowBytes;
+    private final FileChannel vectors;
+    private final ByteBuffer buffer;
+
+    private byte[] words = new byte[1 << 16];
+    private long[] offsets = new long[1024];
+    private int size;
+
+    public Writer(Path directory, int dimensions) throws IOException {
+      this(directory, dimensions, VectorEncoding.FLOAT32, null);
+    }
+
+    /**
+     * @param quantizer quantizer for {@link VectorEncoding#INT8}, ignored for other encodings
+     */
+    public Writer(Path directory, int dimensions, VectorEncoding encoding, ScalarQuantizer quantizer)
+        throws IOException {
+      if (dimensions < 1) {
+        throw new IllegalArgumentException("Expected at least 1 dimension but got " + dimensions);
+      }
+      if (encoding == VectorEncoding.INT8 && (quantizer == null || quantizer.dimensions() != dimensions)) {
+        throw new IllegalArgumentException("INT8 vectors need a " + dimensions + "-dimensional quantizer");
+      }
+      this.directory = directory;
+      this.dimensions = dimensions;
+      this.encoding = encoding;
+      this.quantizer = encoding == VectorEncoding.INT8 ? quantizer : null;
+      this.rowBytes = encoding.bytes() * dimensions;
+
+      Files.createDirectories(directory);
+      this.vectors = FileChannel.open(directory.resolve(VECTORS_FILE), StandardOpenOption.CREATE,
+          StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+      this.vectors.position(headerLength());
+      this.buffer = ByteBuffer.allocateDirect(Math.max(1 << 20, rowBytes)).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private int headerLength() {
+      return VECTORS_HEADER_LENGTH + (quantizer == null ? 0 : ScalarQuantizer.length(dimensions));
+    }
+
+    /**
+     * Appends a word and its vector as the next row.
+     */
+    public void add(String word, float[] vector) throws IOException {
+      if (vector.length != dimensions) {
+        throw new IllegalArgumentException("Expected " + dimensions + " dimensions for '" + word + "' but got " +
+            vector.length);
+      }
+
+      if (buffer.remaining() < rowBytes) {
+        flush();
+      }
+      switch (encoding) {
+        case FLOAT16:
+          for (float value : vector) {
+            buffer.putShort(Float16.encode(value));
+          }
+          break;
+        case INT8:
+          for (int i = 0; i < dimensions; i++) {
+            buffer.put((byte) quantizer.code(vector[i], i));
+          }
+          break;
+        default:
+          buffer.asFloatBuffer().put(vector);
+          buffer.position(buffer.position() + rowBytes);
+      }
+
+      byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+      offsets = ArrayUtil.grow(offsets, size + 2);
+      long start = offsets[size];
+      if (start + bytes.length > ArrayUtil.MAX_ARRAY_LENGTH) {
+        throw new IOException("Dictionary too large");
+      }
+      words = ArrayUtil.grow(words, (int) start + bytes.length);
+      System.arraycopy(bytes, 0, words, (int) start, bytes.length);
+      offsets[size + 1] = start + bytes.length;
+      size++;
+    }
+
+    /**
+     * Returns the number of words added so far.
+     */
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+      ByteBuffer header = ByteBuffer.allocate(headerLength()).order(ByteOrder.LITTLE_ENDIAN);
+      header.putInt(VECTORS_MAGIC).putInt(VECTORS_VERSION).putInt(size).putInt(dimensions).putInt(encoding.ordinal());
+      if (quantizer != null) {
+        quantizer.write(header);
+      }
+      header.flip();
+      while (header.hasRemaining()) {
+        vectors.write(header, header.position());
+      }
+      vectors.close();
+
+      writeDictionary();
+    }
+
+    private void flush() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        vectors.write(buffer);
+      }
+      buffer.clear();
+    }
+
+    private void writeDictionary() throws IOException {
+      // Linear probing in a power-of-two table at most half full; slots hold row + 1 so that 0 means empty.
+      int capacity = Integer.highestOneBit(Math.max(2, size) * 2 - 1) << 1;
+      int mask = capacity - 1;
+      int[] table = new int[capacity];
+      BytesRef word = new BytesRef(words);
+      for (int row = 0; row < size; row++) {
+        word.offset = (int) offsets[row];
+        word.length = (int) (offsets[row + 1] - offsets[row]);
+        int slot = StringHelper.murmurhash3_x86_32(word, HASH_SEED) & mask;
+        boolean duplicate = false;
+        while (table[slot] != 0 && !duplicate) {
+          int other = table[slot] - 1;
+          duplicate = FutureArrays.equals(words, (int) offsets[other], (int) offsets[other + 1],
+              words, word.offset, word.offset + word.length);
+          slot = (slot + 1) & mask;
+        }
+        // A word that occurs more than once resolves to its first row.
+        if (!duplicate) {
+          table[slot] = row + 1;
+        }
+      }
+
+      long length = HEADER_LENGTH + Long.BYTES * (size + 1L) + Integer.BYTES * (long) capacity + offsets[size];
+      if (length > Integer.MAX_VALUE) {
+        throw new IOException("Dictionary too large");
+      }
+      ByteBuffer out = ByteBuffer.allocate((int) length).order(ByteOrder.LITTLE_ENDIAN);
+      out.putInt(DICTIONARY_MAGIC).putInt(VERSION).putInt(size).putInt(capacity);
+      out.asLongBuffer().put(offsets, 0, size + 1);
+      out.position(out.position() + Long.BYTES * (size + 1));
+      out.asIntBuffer().put(table);
+      out.position(out.position() + Integer.BYTES * capacity);
+      out.put(words, 0, (int) offsets[size]);
+      out.flip();
+
+      try (FileChannel channel = FileChannel.open(directory.resolve(DICTIONARY_FILE), StandardOpenOption.CREATE,
+          StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+        while (out.hasRemaining()) {
+          channel.write(out);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+/**
+ * Conversion between floats and IEEE 754 half-precision floats (1 sign, 5 exponent and 10 mantissa bits), held in
+ * shorts. Encoding rounds to the nearest half, ties to even; decoding is a lookup in a table of all 65536 halves, so
+ * it is cheap enough to do in the inner loop of a scan.
+ */
+public final class Float16 {
+  private static final float[] DECODED = new float[1 << 16];
+
+  static {
+    for (int i = 0; i < DECODED.length; i++) {
+      int sign = (i & 0x8000) << 16;
+      int exponent = (i >>> 10) & 0x1f;
+      int mantissa = i & 0x3ff;
+      if (exponent == 0) {
+        // Zero or subnormal: mantissa * 2^-24.
+        float value = mantissa * 0x1p-24f;
+        DECODED[i] = sign == 0 ? value : -value;
+      } else if (exponent == 0x1f) {
+        DECODED[i] = Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+      } else {
+        DECODED[i] = Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+      }
+    }
+  }
+
+  private Float16() {}
+
+  /**
+   * Returns the half closest to a float. Floats too large for a half become infinite, and NaN stays NaN.
+   */
+  public static short encode(float value) {
+    int bits = Float.floatToRawIntBits(value);
+    int sign = (bits >>> 16) & 0x8000;
+    int exponent = (bits >>> 23) & 0xff;
+    int mantissa = bits & 0x7fffff;
+    if (exponent == 0xff) {
+      return (short) (sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+    }
+
+    int halfExponent = exponent - 112;
+    if (halfExponent >= 0x1f) {
+      return (short) (sign | 0x7c00);
+    }
+    int half;
+    int shift;
+    if (halfExponent <= 0) {
+      if (halfExponent < -10) {
+        return (short) sign;
+      }
+      // Subnormal half: the implicit leading bit becomes explicit and the mantissa is shifted to an exponent of -24.
+      mantissa |= 0x800000;
+      shift = 14 - halfExponent;
+      half = mantissa >>> shift;
+    } else {
+      shift = 13;
+      half = (halfExponent << 10) | (mantissa >>> shift);
+    }
+    int remainder = mantissa & ((1 << shift) - 1);
+    int midpoint = 1 << (shift - 1);
+    // A carry out of the mantissa correctly rounds up into the exponent, or to infinity.
+    if (remainder > midpoint || (remainder == midpoint && (half & 1) != 0)) {
+      half++;
+    }
+    return (short) (sign | half);
+  }
+
+  public static float decode(short half) {
+    return DECODED[half & 0xffff];
+  }
+
+  /**
+   * Decodes the little-endian half made of the bytes at {@code offset} and {@code offset + 1}.
+   */
+  public static float decode(byte[] bytes, int offset) {
+    return DECODED[(bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8];
+  }
+}
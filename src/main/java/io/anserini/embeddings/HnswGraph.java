@@ -0,0 +1,734 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hierarchical navigable small world graph (Malkov and Yashunin, 2016) over the vectors of a {@link VectorMatrix},
+ * for approximate nearest neighbour search. Nodes are positions in the matrix. Graphs are built in parallel with
+ * {@link #build}, written with {@link #write}, and memory-mapped with {@link #open}.
+ */
+public abstract class HnswGraph {
+  private static final Logger LOG = LogManager.getLogger(HnswGraph.class);
+
+  public static final String GRAPH_FILE = "hnsw.bin";
+
+  private static final int MAGIC = 0x484e5357;
+  private static final int VERSION = 1;
+  private static final int HEADER_LENGTH = 32;
+
+  protected final int size;
+  protected final int m;
+  protected final Similarity similarity;
+
+  private final ThreadLocal<Visited> visited;
+
+  protected HnswGraph(int size, int m, Similarity similarity) {
+    this.size = size;
+    this.m = m;
+    this.similarity = similarity;
+    this.visited = ThreadLocal.withInitial(() -> new Visited(size));
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the maximum number of neighbours of a node on levels above 0; level 0 allows twice as many.
+   */
+  public int m() {
+    return m;
+  }
+
+  public Similarity similarity() {
+    return similarity;
+  }
+
+  /**
+   * Returns the maximum number of neighbours of a node on a level.
+   */
+  protected int maxNeighbours(int level) {
+    return level == 0 ? 2 * m : m;
+  }
+
+  protected abstract int entryPoint();
+
+  protected abstract int maxLevel();
+
+  /**
+   * Copies the neighbours of a node on a level into {@code buffer}.
+   *
+   * @return the number of neighbours
+   */
+  protected abstract int neighbours(int level, int node, int[] buffer);
+
+  /**
+   * Returns the k approximate nearest neighbours of a query, as matrix positions.
+   *
+   * @param vectors the vectors the graph was built on, normalized for {@link Similarity#COSINE}
+   * @param query the query, normalized for {@link Similarity#COSINE}
+   * @param ef size of the dynamic candidate list; higher is slower but more accurate
+   */
+  public TopK search(VectorMatrix vectors, float[] query, int k, int ef) {
+    int entryPoint = entryPoint();
+    if (entryPoint < 0) {
+      return new TopK(k);
+    }
+
+    int[] buffer = new int[2 * m];
+    int node = entryPoint;
+    float score = vectors.score(similarity, query, node);
+    for (int level = maxLevel(); level > 0; level--) {
+      long best = greedy(vectors, query, node, score, level, buffer);
+      node = (int) (best >>> 32);
+      score = Float.intBitsToFloat((int) best);
+    }
+
+    TopK candidates = searchLevel(vectors, query, node, score, Math.max(ef, k), 0, buffer);
+    int[] ids = new int[candidates.size()];
+    float[] scores = new float[candidates.size()];
+    int n = candidates.drain(ids, scores);
+    TopK top = new TopK(k);
+    for (int i = 0; i < Math.min(n, k); i++) {
+      top.offer(ids[i], scores[i]);
+    }
+    return top;
+  }
+
+  /**
+   * Walks a level greedily towards the query.
+   *
+   * @return the closest node found in the upper 32 bits, and the bits of its score in the lower 32 bits
+   */
+  protected long greedy(VectorMatrix vectors, float[] query, int node, float score, int level, int[] buffer) {
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      int n = neighbours(level, node, buffer);
+      for (int i = 0; i < n; i++) {
+        float candidateScore = vectors.score(similarity, query, buffer[i]);
+        if (candidateScore > score) {
+          score = candidateScore;
+          node = buffer[i];
+          changed = true;
+        }
+      }
+    }
+    return ((long) node << 32) | (Float.floatToRawIntBits(score) & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Best-first search of a level from an entry point, keeping the {@code ef} closest nodes found.
+   */
+  protected TopK searchLevel(VectorMatrix vectors, float[] query, int entryPoint, float entryScore, int ef,
+                             int level, int[] buffer) {
+    Visited visited = this.visited.get();
+    visited.clear();
+    visited.add(entryPoint);
+
+    Candidates candidates = new Candidates(ef);
+    TopK results = new TopK(ef);
+    candidates.push(entryPoint, entryScore);
+    results.offer(entryPoint, entryScore);
+    while (candidates.size() > 0) {
+      float score = candidates.topScore();
+      if (score < results.threshold()) {
+        break;
+      }
+      int node = candidates.pop();
+      int n = neighbours(level, node, buffer);
+      for (int i = 0; i < n; i++) {
+        int neighbour = buffer[i];
+        if (!visited.add(neighbour)) {
+          continue;
+        }
+        float neighbourScore = vectors.score(similarity, query, neighbour);
+        if (neighbourScore > results.threshold()) {
+          candidates.push(neighbour, neighbourScore);
+          results.offer(neighbour, neighbourScore);
+        }
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Builds a graph over all vectors of a matrix.
+   *
+   * @param vectors the vectors, normalized for {@link Similarity#COSINE}
+   * @param m maximum number of neighbours per node on levels above 0, twice that on level 0
+   * @param efConstruction size of the dynamic candidate list while inserting
+   * @param threads number of threads inserting nodes concurrently
+   */
+  public static HnswGraph build(VectorMatrix vectors, Similarity similarity, int m, int efConstruction, int threads)
+      throws Exception {
+    Builder builder = new Builder(vectors, similarity, m, efConstruction);
+    if (vectors.size() == 0) {
+      return builder;
+    }
+
+    // Nodes are inserted in matrix order, so the first words of the embeddings (usually the most frequent) are in
+    // the graph early on and make good hubs.
+    builder.insert(0);
+    AtomicInteger next = new AtomicInteger(1);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        futures.add(executor.submit(() -> {
+          int node;
+          while ((node = next.getAndIncrement()) < vectors.size()) {
+            builder.insert(node);
+            if ((node + 1) % 100000 == 0) {
+              LOG.info((node + 1) + " nodes inserted.");
+            }
+          }
+          return null;
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    return builder;
+  }
+
+  /**
+   * Memory-maps a graph written by {@link #write}.
+   */
+  public static HnswGraph open(Path file) throws IOException {
+    return new Mapped(file);
+  }
+
+  /**
+   * Writes the graph. The file holds a header, the level of each node, the fixed-size neighbour lists of level 0,
+   * and for each upper level the sorted nodes on it followed by their neighbour lists; each list is a count followed
+   * by that many neighbours, padded to the maximum.
+   */
+  public void write(Path file) throws IOException {
+    int maxLevel = maxLevel();
+    int[] levels = new int[size];
+    for (int node = 0; node < size; node++) {
+      levels[node] = level(node);
+    }
+
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+      buffer.putInt(MAGIC).putInt(VERSION).putInt(size).putInt(m).putInt(similarity.ordinal())
+          .putInt(maxLevel).putInt(entryPoint()).putInt(0);
+      for (int level : levels) {
+        buffer = put(channel, buffer, level);
+      }
+
+      int[] neighbours = new int[2 * m];
+      for (int level = 0; level <= maxLevel; level++) {
+        List<Integer> nodes = new ArrayList<>();
+        for (int node = 0; node < size; node++) {
+          if (levels[node] >= level) {
+            nodes.add(node);
+          }
+        }
+        if (level > 0) {
+          buffer = put(channel, buffer, nodes.size());
+          for (int node : nodes) {
+            buffer = put(channel, buffer, node);
+          }
+        }
+        for (int node : nodes) {
+          int n = neighbours(level, node, neighbours);
+          buffer = put(channel, buffer, n);
+          for (int i = 0; i < maxNeighbours(level); i++) {
+            buffer = put(channel, buffer, i < n ? neighbours[i] : -1);
+          }
+        }
+      }
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+  }
+
+  /**
+   * Returns the highest level a node is on.
+   */
+  protected abstract int level(int node);
+
+  private static ByteBuffer put(FileChannel channel, ByteBuffer buffer, int value) throws IOException {
+    if (!buffer.hasRemaining()) {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      buffer.clear();
+    }
+    return buffer.putInt(value);
+  }
+
+  /**
+   * Graph under construction, with neighbour lists on the heap. Nodes are inserted concurrently; neighbour lists
+   * are guarded by striped locks, and readers copy them out under the lock.
+   */
+  private static final class Builder extends HnswGraph {
+    private static final int LOCKS = 1 << 12;
+
+    private final VectorMatrix vectors;
+    private final int efConstruction;
+    private final int[] levels;
+    // Level 0 lists are laid out flat, one slot of a count followed by 2m neighbours per node.
+    private final int[] level0;
+    // Lists of upper levels, per node, one slot of a count followed by m neighbours per level above 0.
+    private final int[][] upper;
+    private final Object[] locks = new Object[LOCKS];
+    private final Object entryLock = new Object();
+    private volatile int entryPoint = -1;
+    private volatile int maxLevel = -1;
+
+    Builder(VectorMatrix vectors, Similarity similarity, int m, int efConstruction) {
+      super(vectors.size(), m, similarity);
+      this.vectors = vectors;
+      this.efConstruction = efConstruction;
+      this.levels = new int[size];
+      this.level0 = new int[size * (2 * m + 1)];
+      this.upper = new int[size][];
+      for (int i = 0; i < LOCKS; i++) {
+        locks[i] = new Object();
+      }
+
+      // Levels are drawn up front so that the graph doesn't depend on how insertions are scheduled.
+      Random random = new Random(42);
+      double ml = 1 / Math.log(Math.max(2, m));
+      for (int node = 0; node < size; node++) {
+        levels[node] = (int) (-Math.log(1 - random.nextDouble()) * ml);
+        if (levels[node] > 0) {
+          upper[node] = new int[levels[node] * (m + 1)];
+        }
+      }
+    }
+
+    @Override
+    protected int entryPoint() {
+      return entryPoint;
+    }
+
+    @Override
+    protected int maxLevel() {
+      return maxLevel;
+    }
+
+    @Override
+    protected int level(int node) {
+      return levels[node];
+    }
+
+    @Override
+    protected int neighbours(int level, int node, int[] buffer) {
+      synchronized (lock(node)) {
+        int[] slots = slots(level, node);
+        int base = base(level, node);
+        int n = slots[base];
+        System.arraycopy(slots, base + 1, buffer, 0, n);
+        return n;
+      }
+    }
+
+    void insert(int node) {
+      int level = levels[node];
+      int entryPoint;
+      int maxLevel;
+      synchronized (entryLock) {
+        entryPoint = this.entryPoint;
+        maxLevel = this.maxLevel;
+        if (entryPoint < 0) {
+          this.entryPoint = node;
+          this.maxLevel = level;
+          return;
+        }
+      }
+
+      float[] query = new float[vectors.dimensions()];
+      vectors.copy(node, query);
+      int[] buffer = new int[2 * m];
+      int[] ids = new int[efConstruction];
+      float[] scores = new float[efConstruction];
+      int[] selected = new int[2 * m];
+
+      int current = entryPoint;
+      float score = vectors.score(similarity, query, current);
+      for (int l = maxLevel; l > level; l--) {
+        long best = greedy(vectors, query, current, score, l, buffer);
+        current = (int) (best >>> 32);
+        score = Float.intBitsToFloat((int) best);
+      }
+
+      for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+        TopK candidates = searchLevel(vectors, query, current, score, efConstruction, l, buffer);
+        int n = candidates.drain(ids, scores);
+        int count = select(node, ids, scores, n, maxNeighbours(l), selected);
+        synchronized (lock(node)) {
+          int[] slots = slots(l, node);
+          int base = base(l, node);
+          slots[base] = count;
+          System.arraycopy(selected, 0, slots, base + 1, count);
+        }
+        for (int i = 0; i < count; i++) {
+          link(selected[i], node, l);
+        }
+        current = ids[0];
+        score = scores[0];
+      }
+
+      if (level > maxLevel) {
+        synchronized (entryLock) {
+          if (level > this.maxLevel) {
+            this.maxLevel = level;
+            this.entryPoint = node;
+          }
+        }
+      }
+    }
+
+    /**
+     * Adds {@code node} to the neighbours of {@code target}, pruning them with the selection heuristic if the list is
+     * full.
+     */
+    private void link(int target, int node, int level) {
+      synchronized (lock(target)) {
+        int[] slots = slots(level, target);
+        int base = base(level, target);
+        int n = slots[base];
+        int max = maxNeighbours(level);
+        if (n < max) {
+          slots[base + 1 + n] = node;
+          slots[base] = n + 1;
+          return;
+        }
+
+        int[] ids = new int[n + 1];
+        float[] scores = new float[n + 1];
+        for (int i = 0; i <= n; i++) {
+          ids[i] = i < n ? slots[base + 1 + i] : node;
+          scores[i] = vectors.score(similarity, target, ids[i]);
+        }
+        sort(ids, scores);
+        int[] selected = new int[max];
+        int count = select(target, ids, scores, n + 1, max, selected);
+        slots[base] = count;
+        System.arraycopy(selected, 0, slots, base + 1, count);
+      }
+    }
+
+    /**
+     * Neighbour selection heuristic: a candidate is kept if it is closer to the base node than to any candidate kept
+     * before it, which favours neighbours in diverse directions. Remaining slots are filled with the closest
+     * candidates that were skipped.
+     *
+     * @param ids candidates, closest to the base node first
+     */
+    private int select(int base, int[] ids, float[] scores, int n, int max, int[] selected) {
+      int count = 0;
+      boolean[] kept = new boolean[n];
+      for (int i = 0; i < n && count < max; i++) {
+        if (ids[i] == base) {
+          kept[i] = true;
+          continue;
+        }
+        boolean diverse = true;
+        for (int j = 0; j < count; j++) {
+          if (vectors.score(similarity, ids[i], selected[j]) > scores[i]) {
+            diverse = false;
+            break;
+          }
+        }
+        if (diverse) {
+          selected[count++] = ids[i];
+          kept[i] = true;
+        }
+      }
+      for (int i = 0; i < n && count < max; i++) {
+        if (!kept[i]) {
+          selected[count++] = ids[i];
+        }
+      }
+      return count;
+    }
+
+    private int[] slots(int level, int node) {
+      return level == 0 ? level0 : upper[node];
+    }
+
+    private int base(int level, int node) {
+      return level == 0 ? node * (2 * m + 1) : (level - 1) * (m + 1);
+    }
+
+    private Object lock(int node) {
+      return locks[node & (LOCKS - 1)];
+    }
+
+    /**
+     * Sorts candidates by decreasing score; lists are short, so insertion sort will do.
+     */
+    private static void sort(int[] ids, float[] scores) {
+      for (int i = 1; i < ids.length; i++) {
+        int id = ids[i];
+        float score = scores[i];
+        int j = i - 1;
+        while (j >= 0 && scores[j] < score) {
+          ids[j + 1] = ids[j];
+          scores[j + 1] = scores[j];
+          j--;
+        }
+        ids[j + 1] = id;
+        scores[j + 1] = score;
+      }
+    }
+  }
+
+  /**
+   * Read-only graph memory-mapped from a file written by {@link #write}.
+   */
+  private static final class Mapped extends HnswGraph {
+    private final int entryPoint;
+    private final int maxLevel;
+    private final IntBuffer levels;
+    private final IntBuffer level0;
+    private final IntBuffer[] nodes;
+    private final IntBuffer[] lists;
+
+    Mapped(Path file) throws IOException {
+      this(file, FileChannel.open(file, StandardOpenOption.READ));
+    }
+
+    private Mapped(Path file, FileChannel channel) throws IOException {
+      this(channel, header(file, channel));
+    }
+
+    private Mapped(FileChannel channel, ByteBuffer header) throws IOException {
+      super(header.getInt(8), header.getInt(12), Similarity.values()[header.getInt(16)]);
+      this.maxLevel = header.getInt(20);
+      this.entryPoint = header.getInt(24);
+
+      try {
+        long position = HEADER_LENGTH;
+        this.levels = map(channel, position, size);
+        position += (long) Integer.BYTES * size;
+        this.level0 = map(channel, position, (long) size * (2 * m + 1));
+        position += (long) Integer.BYTES * size * (2 * m + 1);
+
+        this.nodes = new IntBuffer[Math.max(0, maxLevel) + 1];
+        this.lists = new IntBuffer[Math.max(0, maxLevel) + 1];
+        for (int level = 1; level <= maxLevel; level++) {
+          int count = map(channel, position, 1).get(0);
+          position += Integer.BYTES;
+          nodes[level] = map(channel, position, count);
+          position += (long) Integer.BYTES * count;
+          lists[level] = map(channel, position, (long) count * (m + 1));
+          position += (long) Integer.BYTES * count * (m + 1);
+        }
+      } finally {
+        channel.close();
+      }
+    }
+
+    private static ByteBuffer header(Path file, FileChannel channel) throws IOException {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+      channel.read(header, 0);
+      if (header.getInt(0) != MAGIC) {
+        channel.close();
+        throw new IOException(file + " is not an HNSW graph");
+      }
+      if (header.getInt(4) != VERSION) {
+        channel.close();
+        throw new IOException("Unsupported HNSW graph version " + header.getInt(4));
+      }
+      return header;
+    }
+
+    private static IntBuffer map(FileChannel channel, long position, long ints) throws IOException {
+      long length = Integer.BYTES * ints;
+      if (length > Integer.MAX_VALUE) {
+        throw new IOException("HNSW graph level too large to map, use a smaller M");
+      }
+      return channel.map(FileChannel.MapMode.READ_ONLY, position, length).order(ByteOrder.LITTLE_ENDIAN)
+          .asIntBuffer();
+    }
+
+    @Override
+    protected int entryPoint() {
+      return entryPoint;
+    }
+
+    @Override
+    protected int maxLevel() {
+      return maxLevel;
+    }
+
+    @Override
+    protected int level(int node) {
+      return levels.get(node);
+    }
+
+    @Override
+    protected int neighbours(int level, int node, int[] buffer) {
+      IntBuffer slots;
+      int base;
+      if (level == 0) {
+        slots = level0;
+        base = node * (2 * m + 1);
+      } else {
+        slots = lists[level];
+        base = binarySearch(nodes[level], node) * (m + 1);
+      }
+      int n = slots.get(base);
+      for (int i = 0; i < n; i++) {
+        buffer[i] = slots.get(base + 1 + i);
+      }
+      return n;
+    }
+
+    private static int binarySearch(IntBuffer nodes, int node) {
+      int low = 0;
+      int high = nodes.limit() - 1;
+      while (low <= high) {
+        int middle = (low + high) >>> 1;
+        int value = nodes.get(middle);
+        if (value < node) {
+          low = middle + 1;
+        } else if (value > node) {
+          high = middle - 1;
+        } else {
+          return middle;
+        }
+      }
+      throw new IllegalArgumentException("Node " + node + " is not on this level");
+    }
+  }
+
+  /**
+   * Set of visited nodes, cleared in constant time by bumping a generation counter.
+   */
+  private static final class Visited {
+    private final int[] marks;
+    private int generation;
+
+    Visited(int size) {
+      this.marks = new int[size];
+    }
+
+    void clear() {
+      if (++generation == Integer.MAX_VALUE) {
+        Arrays.fill(marks, 0);
+        generation = 1;
+      }
+    }
+
+    boolean add(int node) {
+      if (marks[node] == generation) {
+        return false;
+      }
+      marks[node] = generation;
+      return true;
+    }
+  }
+
+  /**
+   * Growable max-heap of candidates to expand, closest first.
+   */
+  private static final class Candidates {
+    private int[] ids;
+    private float[] scores;
+    private int size;
+
+    Candidates(int capacity) {
+      this.ids = new int[Math.max(1, capacity)];
+      this.scores = new float[Math.max(1, capacity)];
+    }
+
+    int size() {
+      return size;
+    }
+
+    float topScore() {
+      return scores[0];
+    }
+
+    void push(int id, float score) {
+      if (size == ids.length) {
+        ids = Arrays.copyOf(ids, size * 2);
+        scores = Arrays.copyOf(scores, size * 2);
+      }
+      int i = size++;
+      while (i > 0) {
+        int parent = (i - 1) >>> 1;
+        if (scores[parent] >= score) {
+          break;
+        }
+        ids[i] = ids[parent];
+        scores[i] = scores[parent];
+        i = parent;
+      }
+      ids[i] = id;
+      scores[i] = score;
+    }
+
+    int pop() {
+      int top = ids[0];
+      size--;
+      int id = ids[size];
+      float score = scores[size];
+      int i = 0;
+      int half = size >>> 1;
+      while (i < half) {
+        int child = 2 * i + 1;
+        if (child + 1 < size && scores[child + 1] > scores[child]) {
+          child++;
+        }
+        if (score >= scores[child]) {
+          break;
+        }
+        ids[i] = ids[child];
+        scores[i] = scores[child];
+        i = child;
+      }
+      ids[i] = id;
+      scores[i] = score;
+      return top;
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Approximate nearest neighbour search over the full vectors of an {@link EmbeddingStore} with an {@link HnswGraph}
+ * built by {@link IndexHnswWordEmbeddings}. Queries visit a few thousand vectors rather than all of them, so this is
+ * orders of magnitude faster than {@link ExactNearestNeighbourSearcher} on large vocabularies, at the cost of
+ * occasionally missing a neighbour; recall is traded against speed with {@code efSearch}.
+ */
+public class HnswNearestNeighbourSearcher implements NearestNeighbourSearcher {
+  private final EmbeddingStore store;
+  private final HnswGraph graph;
+  private final VectorMatrix vectors;
+  private final int efSearch;
+
+  /**
+   * @param efSearch size of the dynamic candidate list; at least k is used
+   */
+  public HnswNearestNeighbourSearcher(EmbeddingStore store, HnswGraph graph, int efSearch) throws IOException {
+    this(store, VectorMatrix.load(store, graph.similarity() == Similarity.COSINE), graph, efSearch);
+  }
+
+  /**
+   * @param vectors vectors of the store the graph was built on, normalized if its similarity is
+   *                {@link Similarity#COSINE}
+   */
+  public HnswNearestNeighbourSearcher(EmbeddingStore store, VectorMatrix vectors, HnswGraph graph, int efSearch) {
+    if (graph.size() != vectors.size()) {
+      throw new IllegalArgumentException("Graph has " + graph.size() + " nodes but the store has " + vectors.size() +
+          " vectors; rebuild the graph");
+    }
+    this.store = store;
+    this.graph = graph;
+    this.vectors = vectors;
+    this.efSearch = efSearch;
+  }
+
+  public EmbeddingStore getStore() {
+    return store;
+  }
+
+  public HnswGraph getGraph() {
+    return graph;
+  }
+
+  @Override
+  public List<Neighbour> search(float[] query, int k) throws IOException {
+    TopK top = searchRows(query, k);
+    int[] ids = new int[top.size()];
+    float[] scores = new float[top.size()];
+    int n = top.drain(ids, scores);
+
+    List<Neighbour> neighbours = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      neighbours.add(new Neighbour(store.word(ids[i]), scores[i]));
+    }
+    return neighbours;
+  }
+
+  /**
+   * Returns the store rows of the approximate k nearest neighbours of a vector.
+   */
+  public TopK searchRows(float[] query, int k) {
+    if (query.length != vectors.dimensions()) {
+      throw new IllegalArgumentException("Expected a " + vectors.dimensions() + "-dimensional query but got " +
+          query.length);
+    }
+    float[] q = query;
+    if (graph.similarity() == Similarity.COSINE) {
+      q = query.clone();
+      Similarity.normalize(q);
+    }
+
+    TopK positions = graph.search(vectors, q, k, efSearch);
+    int[] ids = new int[positions.size()];
+    float[] scores = new float[positions.size()];
+    int n = positions.drain(ids, scores);
+    TopK top = new TopK(k);
+    for (int i = 0; i < n; i++) {
+      top.offer(vectors.row(ids[i]), scores[i]);
+    }
+    return top;
+  }
+}
@@ -0,0 +1,157 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import org.apache.commons.lang3.time.DurationFormatUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.kohsuke.args4j.OptionHandlerFilter;
+import org.kohsuke.args4j.ParserProperties;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes word embeddings and writes them as a memory-mapped {@link FlatEmbeddingStore}, an alternative to the Lucene
+ * index built by {@link IndexWordEmbeddings} for pure lookup. Vectors can be stored as half floats or 8-bit codes, for
+ * a half or a quarter of the size; for the latter, the range of each dimension is fitted on a sample of the vectors in
+ * a first pass over the input. With {@code -shards}, the vocabulary is partitioned across several stores, described by
+ * a {@link ShardLayout} in the index directory.
+ */
+public class IndexFlatWordEmbeddings {
+  private static final Logger LOG = LogManager.getLogger(IndexFlatWordEmbeddings.class);
+
+  public static final class Args {
+    @Option(name = "-input", metaVar = "[file]", required = true,
+        usage = "embeddings file: GloVe, word2vec text/binary or fastText .vec, optionally gzipped")
+    public File input;
+
+    @Option(name = "-format", metaVar = "[format]", usage = "embeddings file format")
+    public EmbeddingReader.Format format = EmbeddingReader.Format.AUTO;
+
+    @Option(name = "-index", metaVar = "[path]", required = true, usage = "index path")
+    public Path index;
+
+    @Option(name = "-encoding", metaVar = "[encoding]", usage = "encoding of the vectors: FLOAT32, FLOAT16 or INT8")
+    public VectorEncoding encoding = VectorEncoding.FLOAT32;
+
+    @Option(name = "-sample", metaVar = "[int]", usage = "number of vectors the INT8 quantizer is fitted on")
+    public int sample = 100000;
+
+    @Option(name = "-shards", metaVar = "[int]", usage = "number of shards to partition the vocabulary across")
+    public int shards = 1;
+
+    @Option(name = "-partition", metaVar = "[partition]",
+        usage = "partition the vocabulary by HASH of the word or into ranges of RANK in the input")
+    public ShardLayout.Partition partition = ShardLayout.Partition.HASH;
+
+    @Option(name = "-shardPath", metaVar = "[path]",
+        usage = "directory of the next shard, e.g., on another disk; defaults to subdirectories of the index")
+    public List<Path> shardPaths;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Args indexArgs = new Args();
+    CmdLineParser parser = new CmdLineParser(indexArgs, ParserProperties.defaults().withUsageWidth(90));
+
+    try {
+      parser.parseArgument(args);
+    } catch (CmdLineException e) {
+      System.err.println(e.getMessage());
+      parser.printUsage(System.err);
+      System.err.println("Example: "+ IndexFlatWordEmbeddings.class.getSimpleName() +
+          parser.printExample(OptionHandlerFilter.REQUIRED));
+      return;
+    }
+
+    if (indexArgs.shards < 1 || (indexArgs.shardPaths != null && indexArgs.shardPaths.size() != indexArgs.shards)) {
+      System.err.println("Error: -shards must be positive, with one -shardPath per shard if any");
+      System.exit(-1);
+    }
+
+    final long start = System.nanoTime();
+
+    ScalarQuantizer quantizer = null;
+    long size = -1;
+    if (indexArgs.encoding == VectorEncoding.INT8) {
+      LOG.info("Sampling vectors...");
+      Projection.Sampler sampler = new Projection.Sampler(indexArgs.sample);
+      int dimensions;
+      try (EmbeddingReader reader = EmbeddingReader.open(indexArgs.input, indexArgs.format)) {
+        dimensions = reader.dimensions();
+        while (reader.next()) {
+          sampler.offer(reader.vector());
+        }
+        size = reader.count();
+      }
+      LOG.info("Fitting quantizer on " + sampler.size() + " vectors...");
+      quantizer = ScalarQuantizer.fit(sampler.sample(), sampler.size(), dimensions);
+    }
+
+    // The layout is only written once all shards are, and any previous one is removed until then.
+    Files.deleteIfExists(indexArgs.index.resolve(ShardLayout.SHARDS_FILE));
+    ShardLayout layout = null;
+    if (indexArgs.shards > 1) {
+      if (indexArgs.partition == ShardLayout.Partition.RANK && size < 0) {
+        size = EmbeddingReader.count(indexArgs.input, indexArgs.format);
+      }
+      layout = ShardLayout.create(indexArgs.index, indexArgs.partition, indexArgs.shards, indexArgs.shardPaths,
+          Math.max(size, 0));
+      LOG.info("Partitioning words across " + layout.shards() + " shards by " + layout.partition());
+    }
+
+    LOG.info("Starting indexer...");
+    int numIndexed = 0;
+    try (EmbeddingReader reader = EmbeddingReader.open(indexArgs.input, indexArgs.format)) {
+      FlatEmbeddingStore.Writer[] writers = new FlatEmbeddingStore.Writer[layout == null ? 1 : layout.shards()];
+      try {
+        for (int i = 0; i < writers.length; i++) {
+          writers[i] = new FlatEmbeddingStore.Writer(layout == null ? indexArgs.index : layout.path(i),
+              reader.dimensions(), indexArgs.encoding, quantizer);
+        }
+        while (reader.next()) {
+          FlatEmbeddingStore.Writer writer =
+              layout == null ? writers[0] : writers[layout.shard(reader.word(), reader.count() - 1)];
+          writer.add(reader.word(), reader.vector());
+          if (reader.count() % 100000 == 0) {
+            LOG.info(reader.count() + " words added.");
+          }
+        }
+      } finally {
+        for (FlatEmbeddingStore.Writer writer : writers) {
+          if (writer != null) {
+            numIndexed += writer.size();
+            writer.close();
+          }
+        }
+      }
+    }
+    if (layout != null) {
+      layout.write(indexArgs.index);
+    }
+
+    long duration = TimeUnit.MILLISECONDS.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    LOG.info("Total " + numIndexed + " words indexed in " +
+        DurationFormatUtils.formatDuration(duration, "HH:mm:ss"));
+  }
+}
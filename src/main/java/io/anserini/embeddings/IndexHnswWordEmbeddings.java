@@ -0,0 +1,109 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import org.apache.commons.lang3.time.DurationFormatUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.kohsuke.args4j.OptionHandlerFilter;
+import org.kohsuke.args4j.ParserProperties;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds an {@link HnswGraph} over the full vectors of an index built by {@link IndexWordEmbeddings} or a
+ * {@link FlatEmbeddingStore}, for approximate nearest neighbour search with {@link HnswNearestNeighbourSearcher}. The
+ * graph refers to vectors by position, so it must be rebuilt whenever the embeddings are re-indexed. For a sharded
+ * index, a graph is built in each shard, since shards are searched separately.
+ */
+public class IndexHnswWordEmbeddings {
+  private static final Logger LOG = LogManager.getLogger(IndexHnswWordEmbeddings.class);
+
+  public static final class Args {
+    @Option(name = "-index", metaVar = "[path]", required = true, usage = "index path")
+    public Path index;
+
+    @Option(name = "-graph", metaVar = "[file]", usage = "graph file, defaults to " + HnswGraph.GRAPH_FILE +
+        " in the index directory")
+    public Path graph;
+
+    @Option(name = "-M", metaVar = "[int]", usage = "maximum number of neighbours per node, twice that on level 0")
+    public int m = 16;
+
+    @Option(name = "-efConstruction", metaVar = "[int]",
+        usage = "size of the candidate list while building; higher gives a better graph but builds slower")
+    public int efConstruction = 100;
+
+    @Option(name = "-similarity", metaVar = "[similarity]", usage = "similarity the graph is built for")
+    public Similarity similarity = Similarity.COSINE;
+
+    @Option(name = "-threads", metaVar = "[int]", usage = "number of building threads")
+    public int threads = Runtime.getRuntime().availableProcessors();
+  }
+
+  public static void main(String[] args) throws Exception {
+    Args indexArgs = new Args();
+    CmdLineParser parser = new CmdLineParser(indexArgs, ParserProperties.defaults().withUsageWidth(90));
+
+    try {
+      parser.parseArgument(args);
+    } catch (CmdLineException e) {
+      System.err.println(e.getMessage());
+      parser.printUsage(System.err);
+      System.err.println("Example: "+ IndexHnswWordEmbeddings.class.getSimpleName() +
+          parser.printExample(OptionHandlerFilter.REQUIRED));
+      return;
+    }
+
+    if (ShardLayout.exists(indexArgs.index)) {
+      if (indexArgs.graph != null) {
+        System.err.println("Error: -graph can't be used with sharded indexes, which have a graph per shard");
+        System.exit(-1);
+      }
+      ShardLayout layout = ShardLayout.read(indexArgs.index);
+      for (int i = 0; i < layout.shards(); i++) {
+        LOG.info("Shard " + i + " of " + layout.shards() + ":");
+        build(indexArgs, layout.path(i), layout.path(i).resolve(HnswGraph.GRAPH_FILE));
+      }
+    } else {
+      build(indexArgs, indexArgs.index,
+          indexArgs.graph != null ? indexArgs.graph : indexArgs.index.resolve(HnswGraph.GRAPH_FILE));
+    }
+  }
+
+  private static void build(Args indexArgs, Path index, Path graphFile) throws Exception {
+    final long start = System.nanoTime();
+
+    HnswGraph graph;
+    try (EmbeddingStore store = EmbeddingStore.open(index, IndexWordEmbeddings.FIELD_VECTOR)) {
+      LOG.info("Loading vectors...");
+      VectorMatrix vectors = VectorMatrix.load(store, indexArgs.similarity == Similarity.COSINE);
+      LOG.info("Building graph over " + vectors.size() + " vectors with " + indexArgs.threads + " threads...");
+      graph = HnswGraph.build(vectors, indexArgs.similarity, indexArgs.m, indexArgs.efConstruction,
+          indexArgs.threads);
+    }
+    graph.write(graphFile);
+
+    long duration = TimeUnit.MILLISECONDS.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    LOG.info("Graph of " + graph.size() + " nodes written to " + graphFile + " in " +
+        DurationFormatUtils.formatDuration(duration, "HH:mm:ss"));
+  }
+}
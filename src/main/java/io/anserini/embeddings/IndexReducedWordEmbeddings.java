@@ -21,43 +21,82 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.*;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
-import org.deeplearning4j.models.embeddings.loader.WordVectorSerializer;
-import org.deeplearning4j.models.word2vec.Word2Vec;
 import org.kohsuke.args4j.*;
-import org.nd4j.linalg.api.ndarray.INDArray;
-import org.nd4j.linalg.dimensionalityreduction.PCA;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Takes word embeddings and creates a Lucene index for lookup and nearest neighbour search.
- * Embeddings dimensionality is reduced using PCA to allow indexing them as {@link FloatPoint}s.
+ * Embeddings dimensionality is reduced using PCA to allow indexing them as {@link FloatPoint}s. PCA is fitted on a
+ * sample of the vectors, and the resulting {@link Projection} is written next to the index. The full vectors can
+ * be stored alongside, in {@link IndexWordEmbeddings#FIELD_VECTOR}, so that neighbours found on the reduced vectors
+ * can be re-ranked exactly with {@link RerankingNearestNeighbourSearcher}. With {@code -update}, an existing index is
+ * updated in place with its persisted projection, which is not refitted: words in the input replace the vectors of the
+ * same words (by key) or are added, and words listed with {@code -delete} are removed. As with
+ * {@link IndexWordEmbeddings}, {@code -sort} and {@code -optimize} lay the index out for serving.
  */
 public class IndexReducedWordEmbeddings {
   private static final Logger LOG = LogManager.getLogger(IndexReducedWordEmbeddings.class);
 
   public static final class Args {
-    @Option(name = "-input", metaVar = "[file]", required = true, usage = "GloVe data")
+    @Option(name = "-input", metaVar = "[file]",
+        usage = "embeddings file: GloVe, word2vec text/binary or fastText .vec, optionally gzipped")
     public File input;
 
+    @Option(name = "-format", metaVar = "[format]", usage = "embeddings file format")
+    public EmbeddingReader.Format format = EmbeddingReader.Format.AUTO;
+
     @Option(name = "-index", metaVar = "[path]", required = true, usage = "index path")
     public Path index;
 
     @Option(name = "-dimensions", metaVar = "[int]", required = false, usage = "dimensions")
     public int dimensions;
+
+    @Option(name = "-sample", metaVar = "[int]", usage = "number of vectors PCA is fitted on, sampled uniformly")
+    public int sample = 100000;
+
+    @Option(name = "-batchSize", metaVar = "[int]", usage = "number of vectors projected at a time")
+    public int batchSize = 10000;
+
+    @Option(name = "-docValues", usage = "store vectors as packed little-endian floats in BinaryDocValues")
+    public boolean docValues = false;
+
+    @Option(name = "-storeVectors", usage = "also store the full vectors, for re-ranking reduced nearest neighbours")
+    public boolean storeVectors = false;
+
+    @Option(name = "-update", usage = "update an existing index in place with its persisted projection, instead of " +
+        "fitting a new one")
+    public boolean update = false;
+
+    @Option(name = "-delete", metaVar = "[file]", depends = {"-update"},
+        usage = "file of words to delete from the index, one per line; deletions are applied before the input")
+    public Path delete;
+
+    @Option(name = "-forceMergeDeletes", depends = {"-update"},
+        usage = "merge away segments with deleted words once updated, instead of leaving it to the merge policy")
+    public boolean forceMergeDeletes = false;
+
+    @Option(name = "-sort", metaVar = "[order]",
+        usage = "sort documents by WORD or by RANK in the input; can't be changed by an update")
+    public WordOrder sort;
+
+    @Option(name = "-optimize", usage = "merge the index into a single segment once built, for serving")
+    public boolean optimize = false;
   }
 
   public static final String FIELD_WORD = "word";
+  public static final String FIELD_KEY = "key";
   public static final String FIELD_REDUCED_VECTOR = "reduced_vector";
   public static final String FIELD_POINT = "point";
 
@@ -75,71 +114,152 @@ public class IndexReducedWordEmbeddings {
       return;
     }
 
-    long startTime = System.currentTimeMillis();
-    LOG.info("Loading vectors...");
-    Word2Vec wordVectors = WordVectorSerializer.readWord2VecModel(indexArgs.input);
-    LOG.info("Completed in " + (System.currentTimeMillis()-startTime)/1000 + "s elapsed.");
+    if (indexArgs.input == null && indexArgs.delete == null) {
+      System.err.println("Error: -input is required, unless deleting words with -update -delete");
+      System.exit(-1);
+    }
+
+    final Directory dir = FSDirectory.open(indexArgs.index);
+
+    // When updating, words must be projected and stored the same way as those already in the index, so the persisted
+    // projection and the layout of the existing index are reused rather than fitted and chosen anew.
+    Projection projection = null;
+    boolean docValues = indexArgs.docValues;
+    boolean storeVectors = indexArgs.storeVectors;
+    WordOrder sort = indexArgs.sort;
+    long rank = 0;
+    boolean appending = false;
+    DirectoryReader ranked = null;
+    if (indexArgs.update) {
+      try (DirectoryReader existing = IndexUpdates.openExisting(dir)) {
+        if (existing != null) {
+          Path projectionFile = indexArgs.index.resolve(Projection.PROJECTION_FILE);
+          if (!Files.exists(projectionFile)) {
+            System.err.println("Error: the index has no " + Projection.PROJECTION_FILE + " to project words with");
+            System.exit(-1);
+          }
+          if (new LuceneEmbeddingStore(existing, FIELD_REDUCED_VECTOR).getMatching() !=
+              LuceneEmbeddingStore.Matching.EXACT) {
+            System.err.println("Error: the index has no " + FIELD_KEY + " field to update words by, rebuild it");
+            System.exit(-1);
+          }
+          appending = true;
+          projection = Projection.read(projectionFile);
+          docValues = Vectors.hasDocValues(existing, FIELD_REDUCED_VECTOR);
+          storeVectors = existing.leaves().stream().anyMatch(context ->
+              context.reader().getFieldInfos().fieldInfo(IndexWordEmbeddings.FIELD_VECTOR) != null);
+          sort = WordOrder.of(existing);
+          if (sort == WordOrder.RANK) {
+            rank = IndexUpdates.nextRank(existing);
+            // Kept open while indexing, to look up the ranks of the words that are replaced.
+            existing.incRef();
+            ranked = existing;
+          }
+          LOG.info("Updating an index of " + existing.numDocs() + " words, with a " + projection.inputDimensions() +
+              " to " + projection.outputDimensions() + " dimensional projection");
+          if (docValues != indexArgs.docValues || storeVectors != indexArgs.storeVectors ||
+              (indexArgs.sort != null && indexArgs.sort != sort)) {
+            LOG.warn("Ignoring -docValues, -storeVectors and -sort, which can't be changed by an update");
+          }
+        }
+      }
+    }
+
+    if (projection == null) {
+      if (indexArgs.input == null) {
+        System.err.println("Error: -input is required to fit the projection of a new index");
+        System.exit(-1);
+      }
+
+      long startTime = System.currentTimeMillis();
+      LOG.info("Sampling vectors...");
+      // PCA is only fitted on a sample of the vectors, so memory use and fitting time don't grow with the vocabulary.
+      Projection.Sampler sampler = new Projection.Sampler(indexArgs.sample);
+      try (EmbeddingReader reader = EmbeddingReader.open(indexArgs.input, indexArgs.format)) {
+        while (reader.next()) {
+          sampler.offer(reader.vector());
+        }
+      }
+      LOG.info("Completed in " + (System.currentTimeMillis()-startTime)/1000 + "s elapsed.");
+
+      LOG.info("Fitting PCA on " + sampler.size() + " vectors...");
+      startTime = System.currentTimeMillis();
+      projection = Projection.fit(sampler.sample(), sampler.size(), indexArgs.dimensions);
+      LOG.info("Completed in " + (System.currentTimeMillis()-startTime)/1000 + "s elapsed.");
+    }
 
     final long start = System.nanoTime();
     LOG.info("Starting indexer...");
 
-    final int dimensions = indexArgs.dimensions;
-    final Directory dir = FSDirectory.open(indexArgs.index);
     final Analyzer analyzer = new EnglishStemmingAnalyzer("porter"); // Default used in indexing.
     final IndexWriterConfig config = new IndexWriterConfig(analyzer);
-    config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+    config.setOpenMode(indexArgs.update ?
+        IndexWriterConfig.OpenMode.CREATE_OR_APPEND : IndexWriterConfig.OpenMode.CREATE);
+    if (sort != null) {
+      config.setIndexSort(sort.sort());
+    }
 
     final IndexWriter writer = new IndexWriter(dir, config);
     final AtomicInteger cnt = new AtomicInteger();
 
-    LOG.info("Reducing vectors...");
-
-    startTime = System.currentTimeMillis();
-    INDArray weights = wordVectors.lookupTable().getWeights();
-    INDArray reduced = PCA.pca(weights, dimensions, true);
-
-    LOG.info("Completed in " + (System.currentTimeMillis()-startTime)/1000 + "s elapsed.");
-
-    for (int i = 0; i < reduced.rows(); i++) {
-      Document doc = new Document();
-
-      String word = wordVectors.vocab().wordAtIndex(i);
-
-      doc.add(new TextField(FIELD_WORD, word, Field.Store.YES));
-      doc.add(new FloatPoint(FIELD_POINT, reduced.getRow(i).toFloatVector()));
+    if (indexArgs.delete != null) {
+      LOG.info(IndexUpdates.deleteWords(writer, indexArgs.delete) + " words to delete read from " + indexArgs.delete);
+    }
 
-      ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
-      try {
-        DataOutputStream dataOut = new DataOutputStream(bytesOut);
-        double[] vector = reduced.getRow(i).toDoubleVector();
-        dataOut.writeInt(vector.length);
-        for (double v : vector) {
-          dataOut.writeFloat((float) v);
+    if (indexArgs.input != null) {
+      String[] words = new String[indexArgs.batchSize];
+      float[][] vectors = new float[indexArgs.batchSize][];
+      float[] vector = new float[projection.outputDimensions()];
+      WordDocument document = WordDocument.reduced(docValues, projection.outputDimensions(), storeVectors, sort);
+      try (EmbeddingReader reader = EmbeddingReader.open(indexArgs.input, indexArgs.format)) {
+        if (reader.dimensions() != projection.inputDimensions()) {
+          writer.rollback();
+          System.err.println("Error: the projection takes " + projection.inputDimensions() + "-dimensional vectors");
+          System.exit(-1);
         }
-        dataOut.close();
-      } catch (IOException e) {
-        LOG.error(e);
-      }
+        int size;
+        while ((size = reader.read(words, vectors)) > 0) {
+          for (int i = 0; i < size; i++) {
+            projection.project(vectors[i], vector);
+            long existingRank = ranked == null ? -1 : IndexUpdates.rank(ranked, words[i]);
+            Document doc = document.set(words[i], vectors[i], vector, existingRank < 0 ? rank : existingRank);
+            rank++;
 
-      doc.add(new StoredField(FIELD_REDUCED_VECTOR, bytesOut.toByteArray()));
-      i++;
-      try {
-        writer.addDocument(doc);
-        int cur = cnt.incrementAndGet();
-        if (cur % 100000 == 0) {
-          LOG.info(cnt + " words added.");
+            try {
+              if (indexArgs.update) {
+                writer.updateDocument(new Term(FIELD_KEY, words[i]), doc);
+              } else {
+                writer.addDocument(doc);
+              }
+              int cur = cnt.incrementAndGet();
+              if (cur % 100000 == 0) {
+                LOG.info(cnt + " words added.");
+              }
+            } catch (IOException e) {
+              LOG.error(e);
+            }
+          }
         }
-      } catch (IOException e) {
-        LOG.error(e);
       }
+    }
 
+    if (ranked != null) {
+      ranked.decRef();
     }
 
     LOG.info(cnt.get() + " words added.");
-    int numIndexed = writer.maxDoc();
+    int numIndexed;
 
     try {
+      if (indexArgs.optimize) {
+        LOG.info("Merging into a single segment...");
+        writer.forceMerge(1);
+      } else if (indexArgs.forceMergeDeletes) {
+        LOG.info("Merging away deleted words...");
+        writer.forceMergeDeletes();
+      }
       writer.commit();
+      numIndexed = writer.numDocs();
     } finally {
       try {
         writer.close();
@@ -148,9 +268,14 @@ public class IndexReducedWordEmbeddings {
       }
     }
 
+    if (appending) {
+      IndexUpdates.removeGraph(indexArgs.index);
+    } else {
+      projection.write(indexArgs.index.resolve(Projection.PROJECTION_FILE));
+    }
+
     long duration = TimeUnit.MILLISECONDS.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS);
     LOG.info("Total " + numIndexed + " reduced words indexed in " +
         DurationFormatUtils.formatDuration(duration, "HH:mm:ss"));
   }
-
 }
@@ -0,0 +1,192 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import org.apache.commons.lang3.time.DurationFormatUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.kohsuke.args4j.OptionHandlerFilter;
+import org.kohsuke.args4j.ParserProperties;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Extracts the character n-gram vectors of a fastText {@code .bin} model into a {@link SubwordTable} in an index
+ * directory, so that vectors of out-of-vocabulary words can be synthesized at lookup. The word vectors themselves
+ * are indexed from the {@code .vec} file of the same model by {@link IndexWordEmbeddings} or
+ * {@link IndexFlatWordEmbeddings}. Quantized ({@code .ftz}) and pruned models are not supported.
+ */
+public class IndexSubwordEmbeddings {
+  private static final Logger LOG = LogManager.getLogger(IndexSubwordEmbeddings.class);
+
+  private static final int FASTTEXT_MAGIC = 793712314;
+  private static final int FASTTEXT_MIN_VERSION = 11;
+  private static final int FASTTEXT_MAX_VERSION = 12;
+  private static final int SUPERVISED_MODEL = 3;
+
+  public static final class Args {
+    @Option(name = "-model", metaVar = "[file]", required = true, usage = "fastText .bin model")
+    public Path model;
+
+    @Option(name = "-index", metaVar = "[path]", required = true, usage = "index path")
+    public Path index;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Args indexArgs = new Args();
+    CmdLineParser parser = new CmdLineParser(indexArgs, ParserProperties.defaults().withUsageWidth(90));
+
+    try {
+      parser.parseArgument(args);
+    } catch (CmdLineException e) {
+      System.err.println(e.getMessage());
+      parser.printUsage(System.err);
+      System.err.println("Example: "+ IndexSubwordEmbeddings.class.getSimpleName() +
+          parser.printExample(OptionHandlerFilter.REQUIRED));
+      return;
+    }
+
+    final long start = System.nanoTime();
+
+    // The n-grams must live in the space of the indexed word vectors.
+    int indexDimensions = 0;
+    boolean indexed = false;
+    if (Files.isDirectory(indexArgs.index)) {
+      try (Stream<Path> files = Files.list(indexArgs.index)) {
+        indexed = files.anyMatch(file -> !file.getFileName().toString().equals(SubwordTable.SUBWORDS_FILE));
+      }
+    }
+    if (indexed) {
+      try (EmbeddingStore store = EmbeddingStore.open(indexArgs.index, IndexWordEmbeddings.FIELD_VECTOR)) {
+        indexDimensions = store.dimensions();
+      }
+    }
+
+    int buckets;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexArgs.model),
+        1 << 16))) {
+      if (readInt(in) != FASTTEXT_MAGIC) {
+        throw new IOException(indexArgs.model + " is not a fastText model");
+      }
+      int version = readInt(in);
+      if (version < FASTTEXT_MIN_VERSION || version > FASTTEXT_MAX_VERSION) {
+        throw new IOException("Unsupported fastText model version " + version);
+      }
+
+      // Args: dim, ws, epoch, minCount, neg, wordNgrams, loss, model, bucket, minn, maxn, lrUpdateRate, then t.
+      int[] modelArgs = new int[12];
+      for (int i = 0; i < modelArgs.length; i++) {
+        modelArgs[i] = readInt(in);
+      }
+      readLong(in);
+      int dimensions = modelArgs[0];
+      buckets = modelArgs[8];
+      int minn = modelArgs[9];
+      int maxn = modelArgs[10];
+      if (version == FASTTEXT_MIN_VERSION && modelArgs[7] == SUPERVISED_MODEL) {
+        // Supervised models of the first version stored n-gram lengths they didn't use.
+        maxn = 0;
+      }
+      if (maxn == 0 || buckets == 0) {
+        throw new IllegalArgumentException(indexArgs.model + " has no character n-grams");
+      }
+      if (indexDimensions > 0 && indexDimensions != dimensions) {
+        throw new IllegalArgumentException("The model has " + dimensions + " dimensions but the index has " +
+            indexDimensions);
+      }
+
+      // Dictionary: size, words, labels, tokens, pruned n-grams, then the entries, which are skipped since only the
+      // number of word rows preceding the n-gram rows matters.
+      int entries = readInt(in);
+      int words = readInt(in);
+      readInt(in);
+      readLong(in);
+      if (readLong(in) >= 0) {
+        throw new IllegalArgumentException("Pruned fastText models are not supported");
+      }
+      for (int i = 0; i < entries; i++) {
+        while (readByte(in) != 0) {
+          // Skip the null-terminated word.
+        }
+        // Count and entry type.
+        in.skipBytes(Long.BYTES + 1);
+      }
+
+      if (readByte(in) != 0) {
+        throw new IllegalArgumentException("Quantized fastText models are not supported");
+      }
+      long rows = readLong(in);
+      long columns = readLong(in);
+      if (rows != (long) words + buckets || columns != dimensions) {
+        throw new IOException("Expected an input matrix of " + words + " + " + buckets + " rows and " + dimensions +
+            " columns but got " + rows + " x " + columns);
+      }
+
+      byte[] bytes = new byte[Float.BYTES * dimensions];
+      ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+      float[] row = new float[dimensions];
+      LOG.info("Skipping " + words + " word vectors...");
+      for (int i = 0; i < words; i++) {
+        in.readFully(bytes);
+      }
+
+      LOG.info("Writing " + buckets + " n-gram vectors of " + minn + " to " + maxn + " characters...");
+      try (SubwordTable.Writer writer = new SubwordTable.Writer(indexArgs.index, buckets, dimensions, minn, maxn)) {
+        for (int i = 0; i < buckets; i++) {
+          in.readFully(bytes);
+          buffer.asFloatBuffer().get(row);
+          writer.add(row);
+          if ((i + 1) % 500000 == 0) {
+            LOG.info((i + 1) + " n-gram vectors written.");
+          }
+        }
+      }
+    }
+
+    long duration = TimeUnit.MILLISECONDS.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    LOG.info("Total " + buckets + " n-gram vectors indexed in " +
+        DurationFormatUtils.formatDuration(duration, "HH:mm:ss"));
+  }
+
+  private static int readByte(DataInputStream in) throws IOException {
+    int b = in.read();
+    if (b < 0) {
+      throw new EOFException();
+    }
+    return b;
+  }
+
+  private static int readInt(DataInputStream in) throws IOException {
+    return Integer.reverseBytes(in.readInt());
+  }
+
+  private static long readLong(DataInputStream in) throws IOException {
+    return Long.reverseBytes(in.readLong());
+  }
+}
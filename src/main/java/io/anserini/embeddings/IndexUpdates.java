@@ -0,0 +1,148 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helpers for updating an existing index in place, shared by {@link IndexWordEmbeddings} and
+ * {@link IndexReducedWordEmbeddings}. Words are upserted and deleted by their exact
+ * {@link IndexWordEmbeddings#FIELD_KEY}, so only the words that change are re-indexed.
+ */
+final class IndexUpdates {
+  private static final Logger LOG = LogManager.getLogger(IndexUpdates.class);
+
+  private static final int DELETE_BATCH_SIZE = 1000;
+
+  private IndexUpdates() {}
+
+  /**
+   * Opens a reader on the index in {@code dir}, or returns null if there is no index yet.
+   */
+  static DirectoryReader openExisting(Directory dir) throws IOException {
+    return DirectoryReader.indexExists(dir) ? DirectoryReader.open(dir) : null;
+  }
+
+  /**
+   * Deletes the words listed in {@code file}, one per line. Words that are not in the index are ignored.
+   *
+   * @return the number of words listed
+   */
+  static int deleteWords(IndexWriter writer, Path file) throws IOException {
+    int count = 0;
+    List<Term> terms = new ArrayList<>(DELETE_BATCH_SIZE);
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String word = line.trim();
+        if (word.isEmpty()) {
+          continue;
+        }
+        terms.add(new Term(IndexWordEmbeddings.FIELD_KEY, word));
+        count++;
+        if (terms.size() == DELETE_BATCH_SIZE) {
+          writer.deleteDocuments(terms.toArray(new Term[0]));
+          terms.clear();
+        }
+      }
+    }
+    if (!terms.isEmpty()) {
+      writer.deleteDocuments(terms.toArray(new Term[0]));
+    }
+    return count;
+  }
+
+  /**
+   * Returns the {@link WordOrder#RANK} of a word in an index sorted by rank, or -1 if the word is not in the index.
+   * Words replaced by an update keep their rank, so that they stay where they are in the index rather than moving to
+   * its end. Safe to call from multiple threads.
+   */
+  static long rank(IndexReader reader, String word) throws IOException {
+    BytesRef term = new BytesRef(word);
+    for (LeafReaderContext context : reader.leaves()) {
+      LeafReader leafReader = context.reader();
+      Terms leafTerms = leafReader.terms(IndexWordEmbeddings.FIELD_KEY);
+      if (leafTerms == null) {
+        continue;
+      }
+      TermsEnum termsEnum = leafTerms.iterator();
+      if (!termsEnum.seekExact(term)) {
+        continue;
+      }
+      Bits leafLiveDocs = leafReader.getLiveDocs();
+      PostingsEnum postings = termsEnum.postings(null, PostingsEnum.NONE);
+      for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+        if (leafLiveDocs == null || leafLiveDocs.get(doc)) {
+          NumericDocValues ranks = DocValues.getNumeric(leafReader, IndexWordEmbeddings.FIELD_RANK);
+          return ranks.advanceExact(doc) ? ranks.longValue() : -1;
+        }
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the rank after the highest one in an index sorted by {@link WordOrder#RANK}, from which words added by an
+   * update are ranked. Earlier updates may have left gaps in the ranks, so this can be more than the number of words.
+   */
+  static long nextRank(IndexReader reader) throws IOException {
+    long next = 0;
+    for (LeafReaderContext context : reader.leaves()) {
+      NumericDocValues ranks = DocValues.getNumeric(context.reader(), IndexWordEmbeddings.FIELD_RANK);
+      while (ranks.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+        next = Math.max(next, ranks.longValue() + 1);
+      }
+    }
+    return next;
+  }
+
+  /**
+   * Removes the HNSW graph kept next to the index, if any. The graph refers to vectors by position, which updates
+   * shift, so searching it afterwards would silently return the wrong words.
+   */
+  static void removeGraph(Path index) throws IOException {
+    Path graph = index.resolve(HnswGraph.GRAPH_FILE);
+    if (Files.deleteIfExists(graph)) {
+      LOG.warn("Removed " + graph + ", which is stale after the update; rebuild it with " +
+          IndexHnswWordEmbeddings.class.getSimpleName());
+    }
+  }
+}
@@ -21,46 +21,127 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.document.Field;
-import org.apache.lucene.document.StoredField;
-import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TieredMergePolicy;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
-import org.deeplearning4j.models.embeddings.loader.WordVectorSerializer;
-import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
-import org.deeplearning4j.models.word2vec.wordstore.VocabCache;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 import org.kohsuke.args4j.OptionHandlerFilter;
 import org.kohsuke.args4j.ParserProperties;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Takes word embeddings and creates a Lucene index for lookup. This is treating Lucene as a simple key-value store.
+ * Each word is indexed twice: analyzed in {@link #FIELD_WORD} for stemmed matching, and as is in {@link #FIELD_KEY}
+ * for exact matching. With {@code -update}, an existing index is updated in place instead: words in the input replace
+ * the vectors of the same words (by key) or are added, and words listed with {@code -delete} are removed. For serving,
+ * {@code -sort} lays documents out in a {@link WordOrder} and {@code -optimize} merges the index into a single segment
+ * once built, so that lookups go through a single term dictionary and read vectors from one set of files. With
+ * {@code -shards}, the vocabulary is partitioned across several indexes, each built by its own {@link IndexWriter}
+ * from the same indexing threads, and described by a {@link ShardLayout} in the index directory; sharded indexes
+ * can't be updated.
  */
 public class IndexWordEmbeddings {
   private static final Logger LOG = LogManager.getLogger(IndexWordEmbeddings.class);
 
   public static final class Args {
-    @Option(name = "-input", metaVar = "[file]", required = true, usage = "GloVe data")
+    @Option(name = "-input", metaVar = "[file]",
+        usage = "embeddings file: GloVe, word2vec text/binary or fastText .vec, optionally gzipped")
     public File input;
 
+    @Option(name = "-format", metaVar = "[format]", usage = "embeddings file format")
+    public EmbeddingReader.Format format = EmbeddingReader.Format.AUTO;
+
     @Option(name = "-index", metaVar = "[path]", required = true, usage = "index path")
     public Path index;
+
+    @Option(name = "-docValues", usage = "store vectors as packed little-endian floats in BinaryDocValues")
+    public boolean docValues = false;
+
+    @Option(name = "-update", usage = "update an existing index in place, keeping its vector layout and LSH parameters")
+    public boolean update = false;
+
+    @Option(name = "-delete", metaVar = "[file]", depends = {"-update"},
+        usage = "file of words to delete from the index, one per line; deletions are applied before the input")
+    public Path delete;
+
+    @Option(name = "-forceMergeDeletes", depends = {"-update"},
+        usage = "merge away segments with deleted words once updated, instead of leaving it to the merge policy")
+    public boolean forceMergeDeletes = false;
+
+    @Option(name = "-sort", metaVar = "[order]",
+        usage = "sort documents by WORD or by RANK in the input; can't be changed by an update")
+    public WordOrder sort;
+
+    @Option(name = "-optimize", usage = "merge the index into a single segment once built, for serving")
+    public boolean optimize = false;
+
+    @Option(name = "-shards", metaVar = "[int]", usage = "number of shards to partition the vocabulary across")
+    public int shards = 1;
+
+    @Option(name = "-partition", metaVar = "[partition]",
+        usage = "partition the vocabulary by HASH of the word or into ranges of RANK in the input")
+    public ShardLayout.Partition partition = ShardLayout.Partition.HASH;
+
+    @Option(name = "-shardPath", metaVar = "[path]",
+        usage = "directory of the next shard, e.g., on another disk; defaults to subdirectories of the index")
+    public List<Path> shardPaths;
+
+    @Option(name = "-threads", metaVar = "[int]", usage = "number of indexing threads")
+    public int threads = 1;
+
+    @Option(name = "-batchSize", metaVar = "[int]", usage = "number of words handed to an indexing thread at once")
+    public int batchSize = 1000;
+
+    @Option(name = "-ramBufferSizeMB", metaVar = "[double]", usage = "IndexWriter RAM buffer size in MB")
+    public double ramBufferSizeMB = IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB;
+
+    @Option(name = "-segmentsPerTier", metaVar = "[double]", usage = "TieredMergePolicy segments per tier")
+    public double segmentsPerTier = 10.0;
+
+    @Option(name = "-maxMergeAtOnce", metaVar = "[int]", usage = "TieredMergePolicy max segments merged at once")
+    public int maxMergeAtOnce = 10;
+
+    @Option(name = "-maxMergedSegmentMB", metaVar = "[double]", usage = "TieredMergePolicy max merged segment size in MB")
+    public double maxMergedSegmentMB = 5 * 1024.0;
+
+    @Option(name = "-deletesPctAllowed", metaVar = "[double]",
+        usage = "TieredMergePolicy max percentage of deleted words before segments are merged to reclaim them")
+    public double deletesPctAllowed = 33.0;
+
+    @Option(name = "-lshTables", metaVar = "[int]",
+        usage = "number of LSH tables to index signature tokens for, for nearest neighbour search; 0 disables LSH")
+    public int lshTables = 0;
+
+    @Option(name = "-lshBits", metaVar = "[int]", usage = "number of bits per LSH signature")
+    public int lshBits = 12;
   }
 
   public static final String FIELD_WORD = "word";
+  public static final String FIELD_KEY = "key";
   public static final String FIELD_VECTOR = "vector";
+  public static final String FIELD_RANK = "rank";
+
+  private static final long LSH_SEED = 42;
 
   public static void main(String[] args) throws Exception {
     Args indexArgs = new Args();
@@ -76,68 +157,303 @@ public class IndexWordEmbeddings {
       return;
     }
 
-    long startTime = System.currentTimeMillis();
-    LOG.info("Loading GloVe vectors...");
-    WordVectors wordVectors = WordVectorSerializer.loadStaticModel(indexArgs.input);
-    LOG.info("Completed in " + (System.currentTimeMillis()-startTime)/1000 + "s elapsed.");
+    if (indexArgs.input == null && indexArgs.delete == null) {
+      System.err.println("Error: -input is required, unless deleting words with -update -delete");
+      System.exit(-1);
+    }
+
+    if (indexArgs.shards < 1 || (indexArgs.shardPaths != null && indexArgs.shardPaths.size() != indexArgs.shards)) {
+      System.err.println("Error: -shards must be positive, with one -shardPath per shard if any");
+      System.exit(-1);
+    }
+
+    if (indexArgs.update && (indexArgs.shards > 1 || ShardLayout.exists(indexArgs.index))) {
+      System.err.println("Error: sharded indexes can't be updated, rebuild them");
+      System.exit(-1);
+    }
 
     final long start = System.nanoTime();
     LOG.info("Starting indexer...");
 
     final Directory dir = FSDirectory.open(indexArgs.index);
-    final Analyzer analyzer = new EnglishStemmingAnalyzer("porter"); // Default used in indexing.
-    final IndexWriterConfig config = new IndexWriterConfig(analyzer);
-    config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
 
-    final IndexWriter writer = new IndexWriter(dir, config);
+    // When updating, the layout of the vectors and the LSH parameters are dictated by the existing index, since every
+    // word has to be encoded and hashed the same way for lookups and search to work.
+    boolean docValues = indexArgs.docValues;
+    LshHasher lsh = null;
+    WordOrder sort = indexArgs.sort;
+    int dimensions = 0;
+    long rank = 0;
+    boolean appending = false;
+    DirectoryReader ranked = null;
+    if (indexArgs.update) {
+      try (DirectoryReader existing = IndexUpdates.openExisting(dir)) {
+        if (existing != null) {
+          appending = true;
+          docValues = Vectors.hasDocValues(existing, FIELD_VECTOR);
+          lsh = LshHasher.fromCommitData(existing.getIndexCommit().getUserData());
+          sort = WordOrder.of(existing);
+          if (sort == WordOrder.RANK) {
+            rank = IndexUpdates.nextRank(existing);
+            // Kept open while indexing, to look up the ranks of the words that are replaced.
+            existing.incRef();
+            ranked = existing;
+          }
+          LuceneEmbeddingStore store = new LuceneEmbeddingStore(existing, FIELD_VECTOR);
+          if (store.getMatching() != LuceneEmbeddingStore.Matching.EXACT) {
+            System.err.println("Error: the index has no " + FIELD_KEY + " field to update words by, rebuild it");
+            System.exit(-1);
+          }
+          dimensions = store.dimensions();
+          LOG.info("Updating an index of " + existing.numDocs() + " words, with vectors in " +
+              (docValues ? "doc values" : "stored fields") +
+              (lsh == null ? "" : " and " + lsh.tables() + " LSH tables"));
+          if (docValues != indexArgs.docValues || (lsh == null ? 0 : lsh.tables()) != indexArgs.lshTables ||
+              (indexArgs.sort != null && indexArgs.sort != sort)) {
+            LOG.warn("Ignoring -docValues, -lshTables and -sort, which can't be changed by an update");
+          }
+        }
+      }
+    }
+
+    // The layout is only written once all shards are built, so that a failed build doesn't leave behind an index
+    // that opens with missing shards; until then, any previous layout is removed.
+    ShardLayout layout = null;
+    if (!indexArgs.update) {
+      Files.deleteIfExists(indexArgs.index.resolve(ShardLayout.SHARDS_FILE));
+    }
+    if (indexArgs.shards > 1) {
+      long size = 0;
+      if (indexArgs.partition == ShardLayout.Partition.RANK) {
+        size = EmbeddingReader.count(indexArgs.input, indexArgs.format);
+      }
+      layout = ShardLayout.create(indexArgs.index, indexArgs.partition, indexArgs.shards, indexArgs.shardPaths, size);
+      LOG.info("Partitioning " + (size > 0 ? size + " words " : "words ") + "across " + layout.shards() +
+          " shards by " + layout.partition());
+    }
+
+    // Each shard has its own writer, fed by all the indexing threads.
+    final IndexWriter[] writers = new IndexWriter[layout == null ? 1 : layout.shards()];
+    for (int i = 0; i < writers.length; i++) {
+      writers[i] = new IndexWriter(layout == null ? dir : FSDirectory.open(layout.path(i)), newConfig(indexArgs, sort));
+    }
     final AtomicInteger cnt = new AtomicInteger();
 
-    VocabCache vocab = wordVectors.vocab();
-    vocab.words().forEach(obj -> {
-      String word = (String) obj;
-      Document doc = new Document();
+    if (indexArgs.delete != null) {
+      LOG.info(IndexUpdates.deleteWords(writers[0], indexArgs.delete) + " words to delete read from " +
+          indexArgs.delete);
+    }
 
-      double[] vector = wordVectors.getWordVector(word);
-      ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
-      try {
-        DataOutputStream dataOut = new DataOutputStream(bytesOut);
-        dataOut.writeInt(vector.length);
-        for (double v : vector) {
-          dataOut.writeFloat((float) v);
+    // Vectors are streamed from the input on this thread into a fixed pool of batches, which are handed over to the
+    // indexing threads for encoding and adding to the (thread-safe) IndexWriter. Batches go back to the pool once
+    // indexed, so the number of vectors held in memory is bounded by the pool size rather than the vocabulary.
+    LOG.info("Indexing with " + indexArgs.threads + " threads...");
+    final ExecutorService executor = Executors.newFixedThreadPool(indexArgs.threads);
+    final BlockingQueue<Batch> pool = new ArrayBlockingQueue<>(indexArgs.threads * 2);
+    for (int i = 0; i < indexArgs.threads * 2; i++) {
+      pool.add(new Batch(indexArgs.batchSize));
+    }
+
+    // A malformed input fails the build: the indexing threads are stopped, since they would otherwise keep the JVM
+    // alive, and the writers are rolled back to release the index.
+    try {
+      if (indexArgs.input != null) {
+        try (EmbeddingReader reader = EmbeddingReader.open(indexArgs.input, indexArgs.format)) {
+          LOG.info("Reading " + reader.dimensions() + "-dimensional vectors from " + indexArgs.input);
+          if (dimensions != 0 && reader.dimensions() != dimensions) {
+            for (IndexWriter writer : writers) {
+              writer.rollback();
+            }
+            System.err.println("Error: the index holds " + dimensions + "-dimensional vectors");
+            System.exit(-1);
+          }
+          if (!appending && indexArgs.lshTables > 0) {
+            lsh = new LshHasher(reader.dimensions(), indexArgs.lshTables, indexArgs.lshBits, LSH_SEED);
+            for (IndexWriter writer : writers) {
+              writer.setLiveCommitData(lsh.toCommitData().entrySet());
+            }
+          }
+          while (true) {
+            Batch batch = pool.take();
+            batch.size = reader.read(batch.words, batch.vectors);
+            if (batch.size == 0) {
+              break;
+            }
+            batch.rank = rank;
+            rank += batch.size;
+            executor.execute(new IndexerThread(writers, layout, batch, pool, docValues, indexArgs.update, lsh,
+                sort, ranked, cnt));
+          }
         }
-        dataOut.close();
-      } catch (IOException e) {
-        LOG.error(e);
       }
-
-      doc.add(new TextField(FIELD_WORD, word, Field.Store.YES));
-      doc.add(new StoredField(FIELD_VECTOR, bytesOut.toByteArray()));
-      try {
-        writer.addDocument(doc);
-        int cur = cnt.incrementAndGet();
-        if (cur % 100000 == 0) {
-          LOG.info(cnt + " words added.");
+    } catch (Exception e) {
+      executor.shutdownNow();
+      for (IndexWriter writer : writers) {
+        try {
+          writer.rollback();
+        } catch (IOException suppressed) {
+          e.addSuppressed(suppressed);
         }
-      } catch (IOException e) {
-        LOG.error(e);
       }
-    });
+      if (ranked != null) {
+        ranked.decRef();
+      }
+      throw e;
+    }
+
+    executor.shutdown();
+    while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+      LOG.info(cnt.get() + " words added so far...");
+    }
+    if (ranked != null) {
+      ranked.decRef();
+    }
 
     LOG.info(cnt.get() + " words added.");
-    int numIndexed = writer.maxDoc();
+    int numIndexed = 0;
 
+    // Shards are merged and committed in parallel, since merging is most of the work left.
+    final ExecutorService committer = Executors.newFixedThreadPool(writers.length);
     try {
-      writer.commit();
+      List<Future<Integer>> futures = new ArrayList<>();
+      for (IndexWriter writer : writers) {
+        futures.add(committer.submit(() -> commit(writer, indexArgs)));
+      }
+      for (Future<Integer> future : futures) {
+        numIndexed += future.get();
+      }
     } finally {
-      try {
-        writer.close();
-      } catch (IOException e) {
-        LOG.error(e);
+      committer.shutdown();
+      for (IndexWriter writer : writers) {
+        try {
+          writer.close();
+        } catch (IOException e) {
+          LOG.error(e);
+        }
       }
     }
+    if (layout != null) {
+      layout.write(indexArgs.index);
+    }
 
     long duration = TimeUnit.MILLISECONDS.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS);
     LOG.info("Total " + numIndexed + " words indexed in " +
         DurationFormatUtils.formatDuration(duration, "HH:mm:ss"));
+    if (appending) {
+      IndexUpdates.removeGraph(indexArgs.index);
+    }
+  }
+
+  private static IndexWriterConfig newConfig(Args indexArgs, WordOrder sort) {
+    final Analyzer analyzer = new EnglishStemmingAnalyzer("porter"); // Default used in indexing.
+    final IndexWriterConfig config = new IndexWriterConfig(analyzer);
+    config.setOpenMode(indexArgs.update ?
+        IndexWriterConfig.OpenMode.CREATE_OR_APPEND : IndexWriterConfig.OpenMode.CREATE);
+    config.setRAMBufferSizeMB(indexArgs.ramBufferSizeMB);
+    if (sort != null) {
+      config.setIndexSort(sort.sort());
+    }
+
+    final TieredMergePolicy mergePolicy = new TieredMergePolicy();
+    mergePolicy.setSegmentsPerTier(indexArgs.segmentsPerTier);
+    mergePolicy.setMaxMergeAtOnce(indexArgs.maxMergeAtOnce);
+    mergePolicy.setMaxMergedSegmentMB(indexArgs.maxMergedSegmentMB);
+    mergePolicy.setDeletesPctAllowed(indexArgs.deletesPctAllowed);
+    config.setMergePolicy(mergePolicy);
+    return config;
+  }
+
+  /**
+   * Merges as asked and commits an index once all words are added.
+   *
+   * @return the number of words in the index
+   */
+  private static int commit(IndexWriter writer, Args indexArgs) throws IOException {
+    if (indexArgs.optimize) {
+      LOG.info("Merging " + writer.getDirectory() + " into a single segment...");
+      writer.forceMerge(1);
+    } else if (indexArgs.forceMergeDeletes) {
+      LOG.info("Merging away deleted words...");
+      writer.forceMergeDeletes();
+    }
+    writer.commit();
+    return writer.numDocs();
+  }
+
+  /**
+   * Words and vectors read from the input, recycled between the reading and the indexing threads.
+   */
+  private static final class Batch {
+    final String[] words;
+    final float[][] vectors;
+    int size;
+    // Rank of the first word in the input.
+    long rank;
+
+    Batch(int capacity) {
+      this.words = new String[capacity];
+      this.vectors = new float[capacity][];
+    }
+  }
+
+  /**
+   * Encodes and indexes a batch of word vectors, reusing a {@link WordDocument} across the batch. When updating, words
+   * replace any document with the same key through {@link IndexWriter#updateDocument}, keeping its rank if the index
+   * is sorted by {@link WordOrder#RANK}. Each word goes to the writer of its shard.
+   */
+  private static final class IndexerThread implements Runnable {
+    private final IndexWriter[] writers;
+    private final ShardLayout layout;
+    private final Batch batch;
+    private final BlockingQueue<Batch> pool;
+    private final boolean docValues;
+    private final boolean update;
+    private final LshHasher lsh;
+    private final WordOrder sort;
+    // Index being updated, to look up the ranks of existing words in, or null.
+    private final IndexReader ranked;
+    private final AtomicInteger cnt;
+
+    IndexerThread(IndexWriter[] writers, ShardLayout layout, Batch batch, BlockingQueue<Batch> pool,
+                  boolean docValues, boolean update, LshHasher lsh, WordOrder sort, IndexReader ranked,
+                  AtomicInteger cnt) {
+      this.writers = writers;
+      this.layout = layout;
+      this.batch = batch;
+      this.pool = pool;
+      this.docValues = docValues;
+      this.update = update;
+      this.lsh = lsh;
+      this.sort = sort;
+      this.ranked = ranked;
+      this.cnt = cnt;
+    }
+
+    @Override
+    public void run() {
+      WordDocument document = WordDocument.full(docValues, lsh, sort);
+      try {
+        for (int i = 0; i < batch.size; i++) {
+          IndexWriter writer = layout == null ? writers[0] : writers[layout.shard(batch.words[i], batch.rank + i)];
+          try {
+            long rank = ranked == null ? -1 : IndexUpdates.rank(ranked, batch.words[i]);
+            Document doc = document.set(batch.words[i], batch.vectors[i], null, rank < 0 ? batch.rank + i : rank);
+            if (update) {
+              writer.updateDocument(new Term(FIELD_KEY, batch.words[i]), doc);
+            } else {
+              writer.addDocument(doc);
+            }
+            int cur = cnt.incrementAndGet();
+            if (cur % 100000 == 0) {
+              LOG.info(cur + " words added.");
+            }
+          } catch (IOException e) {
+            LOG.error(e);
+          }
+        }
+      } finally {
+        pool.add(batch);
+      }
+    }
   }
 }
@@ -16,40 +16,62 @@
 
 package io.anserini.embeddings;
 
-import io.anserini.util.AnalyzerUtils;
-import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.core.SimpleAnalyzer;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.Term;
-import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.search.TermQuery;
-import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.store.FSDirectory;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 import org.kohsuke.args4j.OptionHandlerFilter;
 import org.kohsuke.args4j.ParserProperties;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 /**
- * Example illustrating how to look up word vectors. Note that terms are processed with a Lucene Analyzer, which means
- * that a query term may match multiple entries in the original word embeddings. It's up to the client to figure
- * out how to deal with this issue.
+ * Example illustrating how to look up word vectors with {@link WordEmbeddings}, either from a Lucene index built by
+ * {@link IndexWordEmbeddings} or from a {@link FlatEmbeddingStore}. Words are matched exactly. Note that with
+ * {@code -stemmed}, terms are processed with a Lucene Analyzer, which means that a query term may match multiple
+ * entries in the original word embeddings; the one with the lowest document id is returned. With {@code -subwords},
+ * vectors of words that are not found are synthesized from the {@link SubwordTable} of the index.
  */
 public class LookupWordEmbeddings {
   public static final class Args {
-    @Option(name = "-word", metaVar = "[word]", required = true, usage = "word to look up")
+    @Option(name = "-word", metaVar = "[word]", usage = "word to look up")
     public String word;
 
+    @Option(name = "-words", metaVar = "[file]", usage = "file with one word per line to look up, '-' for stdin")
+    public String words;
+
+    @Option(name = "-batchSize", metaVar = "[int]", usage = "number of words from -words looked up at once")
+    public int batchSize = 1000;
+
     @Option(name = "-index", metaVar = "[path]", required = true, usage = "index path")
     public Path index;
+
+    @Option(name = "-stemmed", usage = "match words by stem rather than exactly, on a Lucene index")
+    public boolean stemmed = false;
+
+    @Option(name = "-preload", usage = "read the index into the page cache on open")
+    public boolean preload = false;
+
+    @Option(name = "-subwords", usage = "synthesize vectors of words not found from the character n-grams indexed " +
+        "by IndexSubwordEmbeddings")
+    public boolean subwords = false;
+
+    @Option(name = "-cacheMB", metaVar = "[int]", usage = "size of the vector cache in MB, 0 for none")
+    public int cacheMB = 0;
+
+    @Option(name = "-warm", metaVar = "[file]", usage = "file with words to load into the cache on startup, " +
+        "most frequent first")
+    public Path warm;
   }
 
   public static void main(String[] args) throws Exception {
@@ -58,47 +80,94 @@ public class LookupWordEmbeddings {
 
     try {
       parser.parseArgument(args);
+      if ((lookupArgs.word == null) == (lookupArgs.words == null)) {
+        throw new CmdLineException(parser, "Exactly one of -word and -words is required", null);
+      }
     } catch (CmdLineException e) {
       System.err.println(e.getMessage());
       parser.printUsage(System.err);
       System.err.println("Example: "+ LookupWordEmbeddings.class.getSimpleName() +
-          parser.printExample(OptionHandlerFilter.REQUIRED));
+          parser.printExample(OptionHandlerFilter.REQUIRED) + " -word happy");
       return;
     }
 
-    IndexReader reader = DirectoryReader.open(FSDirectory.open(lookupArgs.index));
-    IndexSearcher searcher = new IndexSearcher(reader);
-
-    Analyzer analyzer = new EnglishStemmingAnalyzer("porter"); // Default used in indexing.
-    List<String> qtokens = AnalyzerUtils.tokenize(analyzer, lookupArgs.word);
-    if (qtokens.size() != 1) {
-      System.err.println("Error: word tokenizes to more than one token");
-      System.exit(-1);
-    }
-
-    TermQuery query = new TermQuery(new Term(IndexWordEmbeddings.FIELD_WORD, qtokens.get(0)));
-
-    TopDocs topDocs = searcher.search(query, Integer.MAX_VALUE);
-    if (topDocs.totalHits == 0) {
-      System.err.println("Error: term not found!");
-      System.exit(-1);
+    EmbeddingStore store = lookupArgs.stemmed ?
+        LuceneEmbeddingStore.open(lookupArgs.index, IndexWordEmbeddings.FIELD_VECTOR,
+            LuceneEmbeddingStore.Matching.STEMMED, lookupArgs.preload) :
+        EmbeddingStore.open(lookupArgs.index, IndexWordEmbeddings.FIELD_VECTOR, lookupArgs.preload);
+    VectorCache cache = lookupArgs.cacheMB > 0 ?
+        new VectorCache(lookupArgs.cacheMB * 1024L * 1024L, store.dimensions()) : null;
+    SubwordTable subwords = null;
+    if (lookupArgs.subwords) {
+      if (!SubwordTable.exists(lookupArgs.index)) {
+        System.err.println("Error: " + lookupArgs.index + " has no subword table, index one with " +
+            IndexSubwordEmbeddings.class.getSimpleName());
+        System.exit(-1);
+      }
+      subwords = SubwordTable.open(lookupArgs.index);
     }
+    try (WordEmbeddings embeddings = new WordEmbeddings(store, cache, subwords)) {
+      if (lookupArgs.warm != null && embeddings.getCache() != null) {
+        int cached = embeddings.warm(Files.readAllLines(lookupArgs.warm, StandardCharsets.UTF_8));
+        System.err.println(cached + " words loaded into the cache.");
+      }
 
+      if (lookupArgs.word != null) {
+        float[] vector = embeddings.lookup(lookupArgs.word);
+        if (vector == null) {
+          System.err.println("Error: term not found!");
+          System.exit(-1);
+        }
 
-    for ( int i=0; i<topDocs.scoreDocs.length; i++ ) {
-      Document doc = reader.document(topDocs.scoreDocs[i].doc);
-      List<String> tokens = AnalyzerUtils.tokenize(new SimpleAnalyzer(), doc.getField(IndexWordEmbeddings.FIELD_WORD).stringValue());
-      byte[] value = doc.getField(IndexWordEmbeddings.FIELD_VECTOR).binaryValue().bytes;
-      DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+        System.out.println(String.format("%s [%f, %f, %f, %f ... ]", lookupArgs.word,
+            vector[0], vector[1], vector[2], vector[3]));
+        return;
+      }
 
-      int cnt = in.readInt();
-      float[] vector = new float[cnt];
-      for (int n=0; n<vector.length; n++) {
-        vector[n] = in.readFloat();
+      // Words are looked up in batches and printed in input order, one "word v1 ... vn" line each, like GloVe.
+      BufferedReader in = "-".equals(lookupArgs.words) ?
+          new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)) :
+          Files.newBufferedReader(Paths.get(lookupArgs.words), StandardCharsets.UTF_8);
+      PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+      int missing = 0;
+      try {
+        List<String> batch = new ArrayList<>(lookupArgs.batchSize);
+        String line;
+        do {
+          line = in.readLine();
+          if (line != null && !line.trim().isEmpty()) {
+            batch.add(line.trim());
+          }
+          if (batch.size() == lookupArgs.batchSize || (line == null && !batch.isEmpty())) {
+            Map<String, float[]> vectors = embeddings.lookupAll(batch);
+            for (String word : batch) {
+              float[] vector = vectors.get(word);
+              if (vector == null) {
+                missing++;
+                continue;
+              }
+              out.print(word);
+              for (float v : vector) {
+                out.print(' ');
+                out.print(v);
+              }
+              out.println();
+            }
+            out.flush();
+            batch.clear();
+          }
+        } while (line != null);
+      } finally {
+        in.close();
+        out.flush();
       }
 
-      System.out.println(String.format("%s %d [%f, %f, %f, %f ... ]", doc.getField(IndexWordEmbeddings.FIELD_WORD).stringValue(),
-          tokens.size(), vector[0], vector[1], vector[2], vector[3]));
+      if (missing > 0) {
+        System.err.println(missing + " words not found.");
+      }
+      if (embeddings.getCache() != null) {
+        System.err.println("Cache: " + embeddings.getCache());
+      }
     }
   }
 }
@@ -0,0 +1,132 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Random hyperplane locality-sensitive hashing (Charikar, 2002). Each of {@link #tables()} tables hashes a vector to
+ * a signature of {@link #bits()} bits, one per random hyperplane, set if the vector is on its positive side; the
+ * closer the angle between two vectors, the more likely they share a signature. Signatures are turned into tokens
+ * that {@link IndexWordEmbeddings} indexes in {@link #FIELD_LSH}, so that candidate neighbours can be retrieved with
+ * an ordinary term query. Hyperplanes are drawn from a seeded generator, and the parameters are kept in the commit
+ * user data of the index, so that queries are hashed the same way as the indexed vectors.
+ */
+public final class LshHasher {
+  public static final String FIELD_LSH = "lsh";
+
+  private static final String TABLES_KEY = "lsh.tables";
+  private static final String BITS_KEY = "lsh.bits";
+  private static final String SEED_KEY = "lsh.seed";
+  private static final String DIMENSIONS_KEY = "lsh.dimensions";
+
+  private final int dimensions;
+  private final int tables;
+  private final int bits;
+  private final long seed;
+  // Hyperplane normals, one row of dimensions per bit, tables * bits rows.
+  private final float[] hyperplanes;
+
+  public LshHasher(int dimensions, int tables, int bits, long seed) {
+    if (tables < 1) {
+      throw new IllegalArgumentException("Number of tables must be positive");
+    }
+    if (bits < 1 || bits > Integer.SIZE) {
+      throw new IllegalArgumentException("Bits per table must be between 1 and " + Integer.SIZE);
+    }
+    this.dimensions = dimensions;
+    this.tables = tables;
+    this.bits = bits;
+    this.seed = seed;
+
+    Random random = new Random(seed);
+    this.hyperplanes = new float[tables * bits * dimensions];
+    for (int i = 0; i < hyperplanes.length; i++) {
+      hyperplanes[i] = (float) random.nextGaussian();
+    }
+  }
+
+  /**
+   * Returns the hasher an index was built with, from its commit user data, or null if the index has no LSH tokens.
+   */
+  public static LshHasher fromCommitData(Map<String, String> data) {
+    if (!data.containsKey(TABLES_KEY)) {
+      return null;
+    }
+    return new LshHasher(Integer.parseInt(data.get(DIMENSIONS_KEY)), Integer.parseInt(data.get(TABLES_KEY)),
+        Integer.parseInt(data.get(BITS_KEY)), Long.parseLong(data.get(SEED_KEY)));
+  }
+
+  /**
+   * Returns the parameters of this hasher, to be kept in the commit user data of the index.
+   */
+  public Map<String, String> toCommitData() {
+    Map<String, String> data = new HashMap<>();
+    data.put(DIMENSIONS_KEY, Integer.toString(dimensions));
+    data.put(TABLES_KEY, Integer.toString(tables));
+    data.put(BITS_KEY, Integer.toString(bits));
+    data.put(SEED_KEY, Long.toString(seed));
+    return data;
+  }
+
+  public int dimensions() {
+    return dimensions;
+  }
+
+  public int tables() {
+    return tables;
+  }
+
+  public int bits() {
+    return bits;
+  }
+
+  /**
+   * Returns the signature of a vector in a table.
+   */
+  public int signature(float[] vector, int table) {
+    if (vector.length != dimensions) {
+      throw new IllegalArgumentException("Expected a " + dimensions + "-dimensional vector but got " +
+          vector.length);
+    }
+    int signature = 0;
+    int offset = table * bits * dimensions;
+    for (int bit = 0; bit < bits; bit++, offset += dimensions) {
+      if (Similarity.dot(vector, 0, hyperplanes, offset, dimensions) > 0) {
+        signature |= 1 << bit;
+      }
+    }
+    return signature;
+  }
+
+  /**
+   * Returns the token of a vector in each table.
+   */
+  public String[] tokens(float[] vector) {
+    String[] tokens = new String[tables];
+    for (int table = 0; table < tables; table++) {
+      tokens[table] = token(table, signature(vector, table));
+    }
+    return tokens;
+  }
+
+  private static String token(int table, int signature) {
+    return table + "_" + Integer.toHexString(signature);
+  }
+}
@@ -0,0 +1,93 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Approximate nearest neighbour search on the full vectors of an index built by {@link IndexWordEmbeddings} with
+ * {@code -lshTables}. The query is hashed with the {@link LshHasher} of the index, and a disjunction of its tokens
+ * retrieves the words sharing a signature with it in at least one table, ranked by the number of tables they collide
+ * in. The best candidates are then re-scored exactly on their full vectors. Unlike points, this works on any number
+ * of dimensions. Random hyperplanes approximate angles, so {@link Similarity#COSINE} benefits the most.
+ */
+public class LshNearestNeighbourSearcher implements NearestNeighbourSearcher {
+  private final LuceneEmbeddingStore store;
+  private final LshHasher lsh;
+  private final Similarity similarity;
+  private final int candidateCount;
+
+  /**
+   * @param store store reading the full vectors of the index
+   * @param similarity similarity used for re-scoring
+   * @param candidateCount number of candidates re-scored
+   */
+  public LshNearestNeighbourSearcher(LuceneEmbeddingStore store, Similarity similarity, int candidateCount)
+      throws IOException {
+    IndexReader reader = store.getReader();
+    LshHasher lsh = reader instanceof DirectoryReader ?
+        LshHasher.fromCommitData(((DirectoryReader) reader).getIndexCommit().getUserData()) : null;
+    if (lsh == null) {
+      throw new IllegalArgumentException("The index has no LSH tokens, rebuild it with -lshTables");
+    }
+    this.store = store;
+    this.lsh = lsh;
+    this.similarity = similarity;
+    this.candidateCount = candidateCount;
+  }
+
+  public LshHasher getHasher() {
+    return lsh;
+  }
+
+  @Override
+  public List<Neighbour> search(float[] query, int k) throws IOException {
+    BooleanQuery.Builder builder = new BooleanQuery.Builder();
+    for (String token : lsh.tokens(query)) {
+      builder.add(new ConstantScoreQuery(new TermQuery(new Term(LshHasher.FIELD_LSH, token))),
+          BooleanClause.Occur.SHOULD);
+    }
+    ScoreDoc[] scoreDocs = store.getSearcher().search(builder.build(), Math.max(k, candidateCount)).scoreDocs;
+
+    int[] docs = new int[scoreDocs.length];
+    for (int i = 0; i < docs.length; i++) {
+      docs[i] = scoreDocs[i].doc;
+    }
+    TopK top = RerankingNearestNeighbourSearcher.rescore(store.getReader(), docs, IndexWordEmbeddings.FIELD_VECTOR,
+        similarity, query, k);
+
+    int[] ids = new int[top.size()];
+    float[] scores = new float[top.size()];
+    int n = top.drain(ids, scores);
+    List<Neighbour> neighbours = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      neighbours.add(new Neighbour(store.word(ids[i]), scores[i]));
+    }
+    return neighbours;
+  }
+}
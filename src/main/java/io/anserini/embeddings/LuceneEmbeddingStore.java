@@ -0,0 +1,312 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import io.anserini.util.AnalyzerUtils;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * {@link EmbeddingStore} backed by an index built by {@link IndexWordEmbeddings} or
+ * {@link IndexReducedWordEmbeddings}. Rows are Lucene document ids. Words are matched exactly on the unanalyzed
+ * {@link IndexWordEmbeddings#FIELD_KEY} by default, or, with {@link Matching#STEMMED} (and on indexes built before
+ * keys were added), the same way they are analyzed in {@link IndexWordEmbeddings#FIELD_WORD}, with
+ * {@link EnglishStemmingAnalyzer}; if several words share a stem, the one with the lowest document id wins. Lookups
+ * seek the term dictionary directly, without scoring.
+ */
+public class LuceneEmbeddingStore implements EmbeddingStore {
+  /**
+   * How words are matched.
+   */
+  public enum Matching {
+    /** Matches words as they are, on {@link IndexWordEmbeddings#FIELD_KEY}. */
+    EXACT,
+    /** Matches words by stem, on {@link IndexWordEmbeddings#FIELD_WORD}. */
+    STEMMED
+  }
+
+  private final IndexReader reader;
+  private final IndexSearcher searcher;
+  private final Analyzer analyzer;
+  private final Matching matching;
+  private final String field;
+  private final Bits liveDocs;
+  private final int dimensions;
+
+  /**
+   * Creates a store matching words exactly if the index has keys, and by stem otherwise.
+   */
+  public LuceneEmbeddingStore(IndexReader reader, String field) throws IOException {
+    this(reader, field, hasKeys(reader) ? Matching.EXACT : Matching.STEMMED);
+  }
+
+  public LuceneEmbeddingStore(IndexReader reader, String field, Matching matching) throws IOException {
+    if (matching == Matching.EXACT && !hasKeys(reader)) {
+      throw new IllegalArgumentException("The index has no " + IndexWordEmbeddings.FIELD_KEY +
+          " field for exact matching, rebuild it or match stems");
+    }
+    this.reader = reader;
+    this.searcher = new IndexSearcher(reader);
+    this.analyzer = new EnglishStemmingAnalyzer("porter"); // Default used in indexing.
+    this.matching = matching;
+    this.field = field;
+    this.liveDocs = MultiFields.getLiveDocs(reader);
+
+    int dimensions = 0;
+    for (int doc = 0; doc < reader.maxDoc(); doc++) {
+      if (liveDocs == null || liveDocs.get(doc)) {
+        float[] vector = Vectors.read(reader, doc, field);
+        dimensions = vector == null ? 0 : vector.length;
+        break;
+      }
+    }
+    this.dimensions = dimensions;
+  }
+
+  public static LuceneEmbeddingStore open(Path index, String field) throws IOException {
+    return open(index, field, false);
+  }
+
+  /**
+   * Opens an index, with {@code preload}, with its files memory-mapped and read into the page cache on open, so that
+   * the first lookups after a deployment don't wait on the disk.
+   */
+  public static LuceneEmbeddingStore open(Path index, String field, boolean preload) throws IOException {
+    return new LuceneEmbeddingStore(DirectoryReader.open(openDirectory(index, preload)), field);
+  }
+
+  public static LuceneEmbeddingStore open(Path index, String field, Matching matching) throws IOException {
+    return open(index, field, matching, false);
+  }
+
+  public static LuceneEmbeddingStore open(Path index, String field, Matching matching, boolean preload)
+      throws IOException {
+    DirectoryReader reader = DirectoryReader.open(openDirectory(index, preload));
+    try {
+      return new LuceneEmbeddingStore(reader, field, matching);
+    } catch (IllegalArgumentException e) {
+      reader.close();
+      throw e;
+    }
+  }
+
+  private static Directory openDirectory(Path index, boolean preload) throws IOException {
+    if (!preload) {
+      return FSDirectory.open(index);
+    }
+    MMapDirectory directory = new MMapDirectory(index);
+    directory.setPreload(true);
+    return directory;
+  }
+
+  private static boolean hasKeys(IndexReader reader) {
+    for (LeafReaderContext context : reader.leaves()) {
+      if (context.reader().getFieldInfos().fieldInfo(IndexWordEmbeddings.FIELD_KEY) != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public IndexReader getReader() {
+    return reader;
+  }
+
+  public IndexSearcher getSearcher() {
+    return searcher;
+  }
+
+  public Matching getMatching() {
+    return matching;
+  }
+
+  @Override
+  public int dimensions() {
+    return dimensions;
+  }
+
+  @Override
+  public int size() {
+    return reader.maxDoc();
+  }
+
+  @Override
+  public float[] lookup(String word) throws IOException {
+    return lookupAll(Collections.singletonList(word)).get(word);
+  }
+
+  /**
+   * Looks up the vectors of several words. The analyzed terms are sorted and each segment's term dictionary is
+   * walked once, in order; vectors are then read in document id order.
+   */
+  @Override
+  public Map<String, float[]> lookupAll(Collection<String> words) throws IOException {
+    // Words that analyze to the same term share a vector, so group them by term.
+    SortedMap<BytesRef, List<String>> terms = new TreeMap<>();
+    for (String word : words) {
+      if (matching == Matching.EXACT) {
+        terms.computeIfAbsent(new BytesRef(word), term -> new ArrayList<>(1)).add(word);
+        continue;
+      }
+      List<String> tokens = AnalyzerUtils.tokenize(analyzer, word);
+      if (tokens.size() == 1) {
+        terms.computeIfAbsent(new BytesRef(tokens.get(0)), term -> new ArrayList<>(1)).add(word);
+      }
+    }
+    String termField = matching == Matching.EXACT ? IndexWordEmbeddings.FIELD_KEY : IndexWordEmbeddings.FIELD_WORD;
+
+    Map<String, float[]> vectors = new HashMap<>();
+    PostingsEnum postings = null;
+    for (LeafReaderContext context : reader.leaves()) {
+      if (terms.isEmpty()) {
+        break;
+      }
+      LeafReader leafReader = context.reader();
+      Terms leafTerms = leafReader.terms(termField);
+      if (leafTerms == null) {
+        continue;
+      }
+
+      TermsEnum termsEnum = leafTerms.iterator();
+      Bits leafLiveDocs = leafReader.getLiveDocs();
+      int[] docs = new int[terms.size()];
+      List<List<String>> found = new ArrayList<>();
+      Iterator<Map.Entry<BytesRef, List<String>>> iterator = terms.entrySet().iterator();
+      while (iterator.hasNext()) {
+        Map.Entry<BytesRef, List<String>> entry = iterator.next();
+        if (!termsEnum.seekExact(entry.getKey())) {
+          continue;
+        }
+        postings = termsEnum.postings(postings, PostingsEnum.NONE);
+        int doc = postings.nextDoc();
+        while (doc != DocIdSetIterator.NO_MORE_DOCS && leafLiveDocs != null && !leafLiveDocs.get(doc)) {
+          doc = postings.nextDoc();
+        }
+        if (doc != DocIdSetIterator.NO_MORE_DOCS) {
+          docs[found.size()] = doc;
+          found.add(entry.getValue());
+          iterator.remove();
+        }
+      }
+
+      // Reading vectors in document id order lets doc values be read with a single forward iterator.
+      Integer[] order = new Integer[found.size()];
+      for (int i = 0; i < order.length; i++) {
+        order[i] = i;
+      }
+      Arrays.sort(order, Comparator.comparingInt(i -> docs[i]));
+      int[] sortedDocs = new int[order.length];
+      for (int i = 0; i < order.length; i++) {
+        sortedDocs[i] = docs[order[i]];
+      }
+
+      float[][] leafVectors = Vectors.read(leafReader, sortedDocs, sortedDocs.length, field);
+      for (int i = 0; i < order.length; i++) {
+        float[] vector = leafVectors[i];
+        if (vector == null) {
+          continue;
+        }
+        List<String> group = found.get(order[i]);
+        for (int j = 0; j < group.size(); j++) {
+          vectors.put(group.get(j), j == 0 ? vector : vector.clone());
+        }
+      }
+    }
+    return vectors;
+  }
+
+  /**
+   * Looks up the vector of a term, on {@link IndexWordEmbeddings#FIELD_KEY} with {@link Matching#EXACT} and on
+   * {@link IndexWordEmbeddings#FIELD_WORD} with {@link Matching#STEMMED}. In the latter case, the term must come from
+   * {@link EnglishStemmingAnalyzer}.
+   */
+  @Override
+  public boolean lookup(BytesRef term, float[] vector) throws IOException {
+    String termField = matching == Matching.EXACT ? IndexWordEmbeddings.FIELD_KEY : IndexWordEmbeddings.FIELD_WORD;
+    for (LeafReaderContext context : reader.leaves()) {
+      LeafReader leafReader = context.reader();
+      Terms leafTerms = leafReader.terms(termField);
+      if (leafTerms == null) {
+        continue;
+      }
+      TermsEnum termsEnum = leafTerms.iterator();
+      if (!termsEnum.seekExact(term)) {
+        continue;
+      }
+      Bits leafLiveDocs = leafReader.getLiveDocs();
+      PostingsEnum postings = termsEnum.postings(null, PostingsEnum.NONE);
+      for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+        if (leafLiveDocs == null || leafLiveDocs.get(doc)) {
+          return Vectors.read(leafReader, doc, field, vector);
+        }
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public String word(int row) throws IOException {
+    return reader.document(row, Collections.singleton(IndexWordEmbeddings.FIELD_WORD))
+        .get(IndexWordEmbeddings.FIELD_WORD);
+  }
+
+  @Override
+  public boolean vector(int row, float[] vector) throws IOException {
+    if (liveDocs != null && !liveDocs.get(row)) {
+      return false;
+    }
+    float[] value = Vectors.read(reader, row, field);
+    if (value == null) {
+      return false;
+    }
+    System.arraycopy(value, 0, vector, 0, vector.length);
+    return true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    reader.close();
+  }
+}
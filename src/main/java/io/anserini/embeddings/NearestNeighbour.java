@@ -16,32 +16,105 @@
 
 package io.anserini.embeddings;
 
-import io.anserini.util.AnalyzerUtils;
-import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.document.Document;
 import org.apache.lucene.document.FloatPointNearestNeighbor;
-import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.Term;
-import org.apache.lucene.search.*;
-import org.apache.lucene.store.FSDirectory;
 import org.kohsuke.args4j.*;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
- * Example illustrating how to perform word vectors nearest neighbour using Lucene {@link FloatPointNearestNeighbor}.
+ * Example illustrating how to perform word vectors nearest neighbour search, either using Lucene
+ * {@link FloatPointNearestNeighbor} on an index built by {@link IndexReducedWordEmbeddings}, or exactly by brute force
+ * on the full vectors of an index built by {@link IndexWordEmbeddings} or a {@link FlatEmbeddingStore}, or
+ * approximately on the same vectors with an {@link HnswGraph}. Neighbours found on reduced vectors can also be
+ * re-ranked on the full vectors, if the reduced index stores them, and candidates can be retrieved with LSH tokens.
  */
 public class NearestNeighbour {
-  public static final class Args {
-    @Option(name = "-word", metaVar = "[word]", required = true, usage = "word to look up")
+  public enum Method {
+    /** {@link PointNearestNeighbourSearcher} on reduced vectors. */
+    POINT,
+    /** {@link ExactNearestNeighbourSearcher} on full vectors. */
+    EXACT,
+    /** {@link HnswNearestNeighbourSearcher} on full vectors, with a graph built by {@link IndexHnswWordEmbeddings}. */
+    HNSW,
+    /** {@link RerankingNearestNeighbourSearcher}: candidates on reduced vectors, re-scored on full vectors. */
+    RERANK,
+    /** {@link LshNearestNeighbourSearcher} on full vectors, with LSH tokens indexed by {@link IndexWordEmbeddings}. */
+    LSH
+  }
+
+  public static class Args {
+    @Option(name = "-word", metaVar = "[word]", usage = "word to look up")
     public String word;
 
+    @Option(name = "-expression", metaVar = "[expression]",
+        usage = "weighted sum of words to search for, e.g., \"king - man + woman\" or \"0.5*paris +0.5*rome\"")
+    public String expression;
+
+    @Option(name = "-queries", metaVar = "[file]", usage = "file with one query word per line, '-' for stdin")
+    public String queries;
+
+    @Option(name = "-expressions", usage = "read an expression rather than a word from each line of -queries")
+    public boolean expressions = false;
+
+    @Option(name = "-concurrency", metaVar = "[int]", usage = "number of queries from -queries run concurrently")
+    public int concurrency = 1;
+
     @Option(name = "-index", metaVar = "[path]", required = true, usage = "index path")
     public Path index;
+
+    @Option(name = "-method", metaVar = "[method]",
+        usage = "search method, defaults to point for reduced indexes and exact otherwise")
+    public Method method;
+
+    @Option(name = "-similarity", metaVar = "[similarity]", usage = "similarity for exact search and re-ranking")
+    public Similarity similarity = Similarity.COSINE;
+
+    @Option(name = "-graph", metaVar = "[file]", usage = "HNSW graph file, defaults to " + HnswGraph.GRAPH_FILE +
+        " in the index directory")
+    public Path graph;
+
+    @Option(name = "-efSearch", metaVar = "[int]", usage = "size of the HNSW candidate list; higher is more accurate")
+    public int efSearch = 64;
+
+    @Option(name = "-candidates", metaVar = "[int]", usage = "number of reduced-vector or LSH candidates to re-rank")
+    public int candidates = 200;
+
+    @Option(name = "-encoding", metaVar = "[encoding]", usage = "encoding of the vectors scanned by exact search, " +
+        "FLOAT16 or INT8 to scan quantized codes; defaults to the encoding of a flat store")
+    public VectorEncoding encoding;
+
+    @Option(name = "-rerank", metaVar = "[int]",
+        usage = "number of neighbours found on quantized codes to re-score on the vectors of the store")
+    public int rerank = 0;
+
+    @Option(name = "-preload", usage = "read the index into the page cache on open")
+    public boolean preload = false;
+
+    @Option(name = "-subwords", usage = "synthesize vectors of query words not found from the character n-grams " +
+        "indexed by IndexSubwordEmbeddings")
+    public boolean subwords = false;
+
+    @Option(name = "-k", metaVar = "[int]", usage = "number of neighbours")
+    public int k = 5;
+
+    @Option(name = "-threads", metaVar = "[int]", usage = "number of threads for exact search")
+    public int threads = Runtime.getRuntime().availableProcessors();
   }
 
   public static void main(String[] args) throws Exception {
@@ -50,49 +123,119 @@ public class NearestNeighbour {
 
     try {
       parser.parseArgument(args);
+      int queries = (lookupArgs.word == null ? 0 : 1) + (lookupArgs.expression == null ? 0 : 1) +
+          (lookupArgs.queries == null ? 0 : 1);
+      if (queries != 1) {
+        throw new CmdLineException(parser, "Exactly one of -word, -expression and -queries is required", null);
+      }
     } catch (CmdLineException e) {
       System.err.println(e.getMessage());
       parser.printUsage(System.err);
       System.err.println("Example: "+ NearestNeighbour.class.getSimpleName() +
-          parser.printExample(OptionHandlerFilter.REQUIRED));
+          parser.printExample(OptionHandlerFilter.REQUIRED) + " -word thomas");
       return;
     }
 
-    IndexReader reader = DirectoryReader.open(FSDirectory.open(lookupArgs.index));
-    IndexSearcher searcher = new IndexSearcher(reader);
-
-    Analyzer analyzer = new EnglishStemmingAnalyzer("porter"); // Default used in indexing.
-    List<String> qtokens = AnalyzerUtils.tokenize(analyzer, lookupArgs.word);
-    if (qtokens.size() != 1) {
-      System.err.println("Error: word tokenizes to more than one token");
-      System.exit(-1);
-    }
-
-    TermQuery query = new TermQuery(new Term(IndexWordEmbeddings.FIELD_WORD, qtokens.get(0)));
+    try (NearestNeighbourIndex index = NearestNeighbourIndex.open(lookupArgs)) {
+      if (lookupArgs.queries != null) {
+        int missing = searchAll(index, lookupArgs);
+        if (missing > 0) {
+          System.err.println(missing + " words not found.");
+        }
+        return;
+      }
 
-    TopDocs topDocs = searcher.search(query, 1);
-    if (topDocs.totalHits == 0) {
-      System.err.println("Error: term not found!");
-      System.exit(-1);
+      List<Neighbour> neighbours;
+      if (lookupArgs.expression != null) {
+        VectorQuery query;
+        try {
+          query = VectorQuery.parse(lookupArgs.expression);
+        } catch (IllegalArgumentException e) {
+          System.err.println("Error: " + e.getMessage());
+          System.exit(-1);
+          return;
+        }
+        neighbours = index.search(query, lookupArgs.k);
+      } else {
+        neighbours = index.search(lookupArgs.word, lookupArgs.k);
+      }
+      if (neighbours == null) {
+        System.err.println("Error: term not found!");
+        System.exit(-1);
+      }
+      for (Neighbour neighbour : neighbours) {
+        System.out.println(neighbour.word);
+      }
     }
+  }
 
-
-    for ( int i=0; i<topDocs.scoreDocs.length; i++ ) {
-      Document doc = reader.document(topDocs.scoreDocs[i].doc);
-      byte[] value = doc.getField(IndexReducedWordEmbeddings.FIELD_REDUCED_VECTOR).binaryValue().bytes;
-      DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
-
-      int cnt = in.readInt();
-      float[] vector = new float[cnt];
-      for (int n=0; n<vector.length; n++) {
-        vector[n] = in.readFloat();
+  /**
+   * Searches the neighbours of every word in the query file on a pool of workers sharing the index, and prints them
+   * in input order, one "word neighbour1 ... neighbourk" line per word, tab-separated. Results are written as soon as
+   * the queries before them are done, and at most a fixed window of queries is in flight. With {@code -expressions},
+   * each line is parsed as a {@link VectorQuery} instead. There is one output line per input line, so that the output
+   * can be zipped with the queries: words (or expressions) that are not found are written without neighbours, and
+   * blank lines are written as they are.
+   *
+   * @return the number of words (or expressions) not found
+   */
+  private static int searchAll(NearestNeighbourIndex index, Args args) throws Exception {
+    BufferedReader in = "-".equals(args.queries) ?
+        new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)) :
+        Files.newBufferedReader(Paths.get(args.queries), StandardCharsets.UTF_8);
+    PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+    ExecutorService executor = Executors.newFixedThreadPool(args.concurrency);
+    Deque<String> words = new ArrayDeque<>();
+    Deque<Future<List<Neighbour>>> window = new ArrayDeque<>();
+    int windowSize = args.concurrency * 64;
+    int missing = 0;
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        String word = line.trim();
+        if (word.isEmpty()) {
+          window.add(CompletableFuture.completedFuture(Collections.emptyList()));
+        } else if (args.expressions) {
+          VectorQuery query;
+          try {
+            query = VectorQuery.parse(word);
+            window.add(executor.submit(() -> index.search(query, args.k)));
+          } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            window.add(CompletableFuture.completedFuture(null));
+          }
+        } else {
+          window.add(executor.submit(() -> index.search(word, args.k)));
+        }
+        words.add(word);
+        if (window.size() >= windowSize) {
+          missing += write(words.poll(), window.poll().get(), out);
+        }
+      }
+      while (!window.isEmpty()) {
+        missing += write(words.poll(), window.poll().get(), out);
       }
+    } finally {
+      executor.shutdownNow();
+      in.close();
+      out.flush();
+    }
+    return missing;
+  }
 
-      TopFieldDocs nearest = FloatPointNearestNeighbor.nearest(searcher, IndexReducedWordEmbeddings.FIELD_POINT, 5, vector);
-      for (ScoreDoc sd : nearest.scoreDocs) {
-        Document document = reader.document(sd.doc);
-        System.out.println(String.format("%s", document.getField(IndexWordEmbeddings.FIELD_WORD).stringValue()));
+  /**
+   * Writes the line of a query, with no neighbours if it was not found.
+   *
+   * @return 1 if the query was not found, 0 otherwise
+   */
+  private static int write(String word, List<Neighbour> neighbours, PrintWriter out) {
+    StringBuilder builder = new StringBuilder(word);
+    if (neighbours != null) {
+      for (Neighbour neighbour : neighbours) {
+        builder.append('\t').append(neighbour.word);
       }
     }
+    out.println(builder);
+    return neighbours == null ? 1 : 0;
   }
 }
@@ -0,0 +1,405 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * An index opened for nearest neighbour search of words with one of the {@link NearestNeighbour.Method}s, looking up
+ * query words in the vectors the method searches. Opening is expensive (readers, graphs, vectors loaded on the heap),
+ * so an instance should be opened once and shared; searches are thread-safe. Besides words, arbitrary vectors and
+ * {@link VectorQuery}s, such as analogies and centroids, can be searched for. With a {@link SubwordTable}, query words
+ * that are not found are replaced by vectors synthesized from their character n-grams, projected for reduced indexes.
+ * Sharded indexes are searched shard by shard in parallel with a {@link ShardedNearestNeighbourSearcher}.
+ */
+public class NearestNeighbourIndex implements Closeable {
+  private final NearestNeighbour.Method method;
+  private final VectorEncoding encoding;
+  private final Similarity similarity;
+  private final EmbeddingStore store;
+  private final EmbeddingStore fullStore;
+  private final NearestNeighbourSearcher searcher;
+  private final RerankingNearestNeighbourSearcher reranker;
+  private final ForkJoinPool pool;
+  // Set on open, when -subwords is given; the projection maps synthesized vectors to reduced ones.
+  private SubwordTable subwords;
+  private Projection projection;
+
+  private NearestNeighbourIndex(NearestNeighbour.Method method, Similarity similarity, EmbeddingStore store,
+                                EmbeddingStore fullStore, NearestNeighbourSearcher searcher,
+                                RerankingNearestNeighbourSearcher reranker, ForkJoinPool pool) {
+    this(method, VectorEncoding.FLOAT32, similarity, store, fullStore, searcher, reranker, pool);
+  }
+
+  private NearestNeighbourIndex(NearestNeighbour.Method method, VectorEncoding encoding, Similarity similarity,
+                                EmbeddingStore store, EmbeddingStore fullStore, NearestNeighbourSearcher searcher,
+                                RerankingNearestNeighbourSearcher reranker, ForkJoinPool pool) {
+    this.method = method;
+    this.encoding = encoding;
+    this.similarity = similarity;
+    this.store = store;
+    this.fullStore = fullStore;
+    this.searcher = searcher;
+    this.reranker = reranker;
+    this.pool = pool;
+  }
+
+  /**
+   * Opens the index for the method and parameters given on the command line, resolving the default method: point
+   * search for reduced indexes and exact search otherwise.
+   */
+  public static NearestNeighbourIndex open(NearestNeighbour.Args args) throws IOException {
+    EmbeddingStore store = ShardLayout.exists(args.index) ?
+        ShardedEmbeddingStore.open(args.index, IndexWordEmbeddings.FIELD_VECTOR, args.preload) :
+        EmbeddingStore.open(args.index, IndexReducedWordEmbeddings.FIELD_REDUCED_VECTOR, args.preload);
+    NearestNeighbourIndex index;
+    try {
+      index = open(args, store);
+    } catch (IOException | RuntimeException e) {
+      store.close();
+      throw e;
+    }
+    if (args.subwords) {
+      try {
+        index.openSubwords(args.index);
+      } catch (IOException | RuntimeException e) {
+        index.close();
+        throw e;
+      }
+    }
+    return index;
+  }
+
+  private void openSubwords(Path path) throws IOException {
+    if (!SubwordTable.exists(path)) {
+      throw new IllegalArgumentException(path + " has no subword table, index one with " +
+          IndexSubwordEmbeddings.class.getSimpleName());
+    }
+    int dimensions;
+    if (store == fullStore) {
+      dimensions = store.dimensions();
+    } else {
+      Path projectionFile = path.resolve(Projection.PROJECTION_FILE);
+      if (!Files.exists(projectionFile)) {
+        throw new IllegalArgumentException(path + " has no projection to reduce synthesized vectors with");
+      }
+      projection = Projection.read(projectionFile);
+      dimensions = projection.inputDimensions();
+    }
+    subwords = SubwordTable.open(path);
+    if (subwords.dimensions() != dimensions) {
+      throw new IllegalArgumentException("The subword table has " + subwords.dimensions() +
+          " dimensions but the index has " + dimensions);
+    }
+  }
+
+  private static NearestNeighbourIndex open(NearestNeighbour.Args args, EmbeddingStore store) throws IOException {
+    if (store instanceof ShardedEmbeddingStore) {
+      return openSharded(args, (ShardedEmbeddingStore) store);
+    }
+    boolean reduced = store instanceof LuceneEmbeddingStore && store.dimensions() > 0;
+    NearestNeighbour.Method method = args.method;
+    if (method == null) {
+      method = reduced ? NearestNeighbour.Method.POINT : NearestNeighbour.Method.EXACT;
+    }
+    boolean onReduced = method == NearestNeighbour.Method.POINT || method == NearestNeighbour.Method.RERANK;
+    if (onReduced && !reduced) {
+      throw new IllegalArgumentException(args.index + " is not an index of reduced vectors");
+    }
+
+    EmbeddingStore fullStore = store;
+    if (store instanceof LuceneEmbeddingStore) {
+      fullStore = new LuceneEmbeddingStore(((LuceneEmbeddingStore) store).getReader(),
+          IndexWordEmbeddings.FIELD_VECTOR);
+      if (fullStore.dimensions() == 0) {
+        fullStore = null;
+      }
+    }
+    if (!onReduced) {
+      // Methods on full vectors can't run on a reduced index that doesn't store them.
+      if (fullStore == null) {
+        throw new IllegalArgumentException(args.index + " does not store full vectors, rebuild it with -storeVectors");
+      }
+      store = fullStore;
+    }
+
+    switch (method) {
+      case POINT:
+        return new NearestNeighbourIndex(method, args.similarity, store, fullStore,
+            new PointNearestNeighbourSearcher((LuceneEmbeddingStore) store), null, null);
+      case RERANK:
+        if (fullStore == null) {
+          throw new IllegalArgumentException(args.index + " does not store full vectors, rebuild it with -storeVectors");
+        }
+        // With the projection, vector queries can be given as full vectors and projected for candidate retrieval.
+        Path projection = args.index.resolve(Projection.PROJECTION_FILE);
+        RerankingNearestNeighbourSearcher reranker = Files.exists(projection) ?
+            new RerankingNearestNeighbourSearcher((LuceneEmbeddingStore) store, Projection.read(projection),
+                args.similarity, args.candidates) :
+            new RerankingNearestNeighbourSearcher((LuceneEmbeddingStore) store, args.similarity, args.candidates);
+        return new NearestNeighbourIndex(method, args.similarity, store, fullStore, reranker, reranker, null);
+      case LSH:
+        if (!(store instanceof LuceneEmbeddingStore)) {
+          throw new IllegalArgumentException("LSH search needs an index built by IndexWordEmbeddings with -lshTables");
+        }
+        return new NearestNeighbourIndex(method, args.similarity, store, fullStore,
+            new LshNearestNeighbourSearcher((LuceneEmbeddingStore) store, args.similarity, args.candidates), null,
+            null);
+      case HNSW:
+        Path graphFile = args.graph != null ? args.graph : args.index.resolve(HnswGraph.GRAPH_FILE);
+        HnswGraph graph = HnswGraph.open(graphFile);
+        return new NearestNeighbourIndex(method, graph.similarity(), store, fullStore,
+            new HnswNearestNeighbourSearcher(store, graph, args.efSearch), null, null);
+      default:
+        VectorEncoding encoding = args.encoding;
+        if (encoding == null) {
+          encoding = store instanceof FlatEmbeddingStore ?
+              ((FlatEmbeddingStore) store).encoding() : VectorEncoding.FLOAT32;
+        }
+        ForkJoinPool pool = new ForkJoinPool(args.threads);
+        if (encoding == VectorEncoding.FLOAT32) {
+          return new NearestNeighbourIndex(method, args.similarity, store, fullStore,
+              new ExactNearestNeighbourSearcher(store, args.similarity, pool), null, pool);
+        }
+        return new NearestNeighbourIndex(method, encoding, args.similarity, store, fullStore,
+            new ExactNearestNeighbourSearcher(store, QuantizedMatrix.load(store, encoding), args.similarity, pool,
+                args.rerank), null, pool);
+    }
+  }
+
+  /**
+   * Opens a sharded index, with a searcher per shard whose results are merged. Shards only hold full vectors, so the
+   * methods on reduced vectors are not supported; HNSW graphs are built per shard.
+   */
+  private static NearestNeighbourIndex openSharded(NearestNeighbour.Args args, ShardedEmbeddingStore store)
+      throws IOException {
+    NearestNeighbour.Method method = args.method == null ? NearestNeighbour.Method.EXACT : args.method;
+    if (method == NearestNeighbour.Method.POINT || method == NearestNeighbour.Method.RERANK) {
+      throw new IllegalArgumentException(args.index + " is sharded, which only supports EXACT, HNSW and LSH search");
+    }
+    if (method == NearestNeighbour.Method.HNSW && args.graph != null) {
+      throw new IllegalArgumentException("-graph can't be used with sharded indexes, which have a graph per shard");
+    }
+
+    Similarity similarity = args.similarity;
+    VectorEncoding encoding = VectorEncoding.FLOAT32;
+    ForkJoinPool pool = method == NearestNeighbour.Method.EXACT ? new ForkJoinPool(args.threads) : null;
+    List<NearestNeighbourSearcher> searchers = new ArrayList<>(store.shards());
+    try {
+      for (int i = 0; i < store.shards(); i++) {
+        EmbeddingStore shard = store.getShard(i);
+        switch (method) {
+          case LSH:
+            if (!(shard instanceof LuceneEmbeddingStore)) {
+              throw new IllegalArgumentException(
+                  "LSH search needs an index built by IndexWordEmbeddings with -lshTables");
+            }
+            searchers.add(new LshNearestNeighbourSearcher((LuceneEmbeddingStore) shard, args.similarity,
+                args.candidates));
+            break;
+          case HNSW:
+            HnswGraph graph = HnswGraph.open(store.getLayout().path(i).resolve(HnswGraph.GRAPH_FILE));
+            similarity = graph.similarity();
+            searchers.add(new HnswNearestNeighbourSearcher(shard, graph, args.efSearch));
+            break;
+          default:
+            encoding = args.encoding;
+            if (encoding == null) {
+              encoding = shard instanceof FlatEmbeddingStore ?
+                  ((FlatEmbeddingStore) shard).encoding() : VectorEncoding.FLOAT32;
+            }
+            searchers.add(encoding == VectorEncoding.FLOAT32 ?
+                new ExactNearestNeighbourSearcher(shard, args.similarity, pool) :
+                new ExactNearestNeighbourSearcher(shard, QuantizedMatrix.load(shard, encoding), args.similarity, pool,
+                    args.rerank));
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      if (pool != null) {
+        pool.shutdown();
+      }
+      throw e;
+    }
+    return new NearestNeighbourIndex(method, encoding, similarity, store, store,
+        new ShardedNearestNeighbourSearcher(searchers, Executors.newFixedThreadPool(args.threads)), null, pool);
+  }
+
+  public NearestNeighbour.Method method() {
+    return method;
+  }
+
+  /**
+   * Returns the encoding of the vectors exact search scans, and {@link VectorEncoding#FLOAT32} for other methods.
+   */
+  public VectorEncoding encoding() {
+    return encoding;
+  }
+
+  /**
+   * Returns the store query words are looked up in: reduced vectors for {@link NearestNeighbour.Method#POINT} and
+   * {@link NearestNeighbour.Method#RERANK}, full vectors otherwise.
+   */
+  public EmbeddingStore getStore() {
+    return store;
+  }
+
+  /**
+   * Returns the store of full vectors, or null if a reduced index doesn't store them.
+   */
+  public EmbeddingStore getFullStore() {
+    return fullStore;
+  }
+
+  /**
+   * Returns the subword table query words that are not found are synthesized from, or null if there is none.
+   */
+  public SubwordTable getSubwords() {
+    return subwords;
+  }
+
+  /**
+   * Returns the k nearest neighbours of a word, which is usually its own nearest neighbour.
+   *
+   * @return the neighbours, or null if the word is not found and can't be synthesized
+   */
+  public List<Neighbour> search(String word, int k) throws IOException {
+    float[] vector = store.lookup(word);
+    if (vector == null) {
+      float[] full = subwords == null ? null : subwords.synthesize(word);
+      if (full == null) {
+        return null;
+      }
+      if (projection == null) {
+        return searcher.search(full, k);
+      }
+      float[] reduced = projection.project(full);
+      return reranker != null ? reranker.search(reduced, full, k) : searcher.search(reduced, k);
+    }
+    if (reranker != null) {
+      float[] full = fullStore.lookup(word);
+      return full == null ? null : reranker.search(vector, full, k);
+    }
+    return searcher.search(vector, k);
+  }
+
+  /**
+   * Returns the k nearest neighbours of an arbitrary vector. The vector is in the space of {@link #getStore()}, except
+   * with {@link NearestNeighbour.Method#RERANK}, where it is a full vector projected with the projection of the index.
+   *
+   * @throws IllegalStateException if a reranking index has no projection
+   */
+  public List<Neighbour> search(float[] query, int k) throws IOException {
+    return searcher.search(query, k);
+  }
+
+  /**
+   * Returns the k nearest neighbours of a weighted sum of word vectors, excluding the words of the query.
+   *
+   * @return the neighbours, or null if a word of the query is not found
+   */
+  public List<Neighbour> search(VectorQuery query, int k) throws IOException {
+    return searchAll(Collections.singletonList(query), k).get(0);
+  }
+
+  /**
+   * Returns the k nearest neighbours of several weighted sums of word vectors, excluding the words of each query. The
+   * words of all queries are looked up at once, so queries sharing words (e.g., centroids of overlapping sets) only
+   * read each vector once, and words that are not found are synthesized together. With cosine similarity, word
+   * vectors are normalized before they are weighted.
+   *
+   * @return the neighbours of each query, or null for queries with a word that is not found and can't be synthesized
+   */
+  public List<List<Neighbour>> searchAll(List<VectorQuery> queries, int k) throws IOException {
+    Set<String> words = new HashSet<>();
+    for (VectorQuery query : queries) {
+      words.addAll(query.words());
+    }
+    Map<String, float[]> vectors = store.lookupAll(words);
+    Map<String, float[]> fullVectors = reranker == null ? null : fullStore.lookupAll(words);
+    if (subwords != null) {
+      List<String> missing = new ArrayList<>();
+      for (String word : words) {
+        if (!vectors.containsKey(word) && (fullVectors == null || !fullVectors.containsKey(word))) {
+          missing.add(word);
+        }
+      }
+      for (Map.Entry<String, float[]> entry : subwords.synthesizeAll(missing).entrySet()) {
+        float[] full = entry.getValue();
+        vectors.put(entry.getKey(), projection == null ? full : projection.project(full));
+        if (fullVectors != null) {
+          fullVectors.put(entry.getKey(), full);
+        }
+      }
+    }
+    boolean normalize = similarity == Similarity.COSINE;
+
+    List<List<Neighbour>> results = new ArrayList<>(queries.size());
+    for (VectorQuery query : queries) {
+      float[] vector = query.evaluate(vectors, normalize);
+      float[] full = fullVectors == null ? null : query.evaluate(fullVectors, normalize);
+      if (vector == null || (reranker != null && full == null)) {
+        results.add(null);
+        continue;
+      }
+
+      // The query words are usually among the nearest neighbours, so enough extra neighbours are searched for to
+      // make up for them.
+      int n = k + query.words().size();
+      List<Neighbour> neighbours = reranker != null ? reranker.search(vector, full, n) : searcher.search(vector, n);
+      List<Neighbour> filtered = new ArrayList<>(k);
+      for (Neighbour neighbour : neighbours) {
+        if (filtered.size() == k) {
+          break;
+        }
+        if (!query.words().contains(neighbour.word)) {
+          filtered.add(neighbour);
+        }
+      }
+      results.add(filtered);
+    }
+    return results;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (pool != null) {
+      pool.shutdown();
+    }
+    if (searcher instanceof Closeable) {
+      ((Closeable) searcher).close();
+    }
+    if (subwords != null) {
+      subwords.close();
+    }
+    // A Lucene index has a single reader shared by both stores, and closing it twice is harmless.
+    store.close();
+    if (fullStore != null && fullStore != store) {
+      fullStore.close();
+    }
+  }
+}
@@ -0,0 +1,30 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Nearest neighbour search over word vectors. Implementations are thread-safe.
+ */
+public interface NearestNeighbourSearcher {
+  /**
+   * Returns the (approximate, depending on the implementation) k nearest neighbours of a vector, closest first.
+   */
+  List<Neighbour> search(float[] query, int k) throws IOException;
+}
@@ -0,0 +1,35 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+/**
+ * A word returned by a nearest neighbour search, with its similarity to the query (higher is closer).
+ */
+public final class Neighbour {
+  public final String word;
+  public final float score;
+
+  public Neighbour(String word, float score) {
+    this.word = word;
+    this.score = score;
+  }
+
+  @Override
+  public String toString() {
+    return word + " " + score;
+  }
+}
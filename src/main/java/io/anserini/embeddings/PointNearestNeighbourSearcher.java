@@ -0,0 +1,60 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import org.apache.lucene.document.FloatPointNearestNeighbor;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopFieldDocs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Nearest neighbour search with Lucene {@link FloatPointNearestNeighbor} on the reduced vectors of an index built by
+ * {@link IndexReducedWordEmbeddings}. Queries must be reduced vectors too; scores are negated Euclidean distances.
+ */
+public class PointNearestNeighbourSearcher implements NearestNeighbourSearcher {
+  private final LuceneEmbeddingStore store;
+
+  public PointNearestNeighbourSearcher(LuceneEmbeddingStore store) {
+    this.store = store;
+  }
+
+  public LuceneEmbeddingStore getStore() {
+    return store;
+  }
+
+  @Override
+  public List<Neighbour> search(float[] query, int k) throws IOException {
+    TopFieldDocs nearest = searchDocs(query, k);
+    List<Neighbour> neighbours = new ArrayList<>(nearest.scoreDocs.length);
+    for (ScoreDoc sd : nearest.scoreDocs) {
+      double distance = ((Number) ((FieldDoc) sd).fields[0]).doubleValue();
+      neighbours.add(new Neighbour(store.word(sd.doc), (float) -distance));
+    }
+    return neighbours;
+  }
+
+  /**
+   * Returns the documents of the k nearest neighbours of a reduced vector, closest first.
+   */
+  public TopFieldDocs searchDocs(float[] query, int k) throws IOException {
+    return FloatPointNearestNeighbor.nearest(store.getSearcher(), IndexReducedWordEmbeddings.FIELD_POINT, k, query);
+  }
+}
@@ -0,0 +1,199 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dimensionalityreduction.PCA;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Linear dimensionality reduction fitted with PCA: vectors are centered on the mean of the fitting sample and
+ * multiplied by the top principal components. {@link IndexReducedWordEmbeddings} writes the projection next to the
+ * index as {@link #PROJECTION_FILE}, so that query vectors can be reduced the same way as the indexed ones.
+ */
+public final class Projection {
+  public static final String PROJECTION_FILE = "projection.bin";
+
+  private static final int MAGIC = 0x50524f4a;
+  private static final int VERSION = 1;
+  private static final int HEADER_LENGTH = 16;
+
+  private final int inputDimensions;
+  private final int outputDimensions;
+  private final float[] mean;
+  // Principal components, row-major, one row of outputDimensions per input dimension.
+  private final float[] factor;
+
+  Projection(int inputDimensions, int outputDimensions, float[] mean, float[] factor) {
+    this.inputDimensions = inputDimensions;
+    this.outputDimensions = outputDimensions;
+    this.mean = mean;
+    this.factor = factor;
+  }
+
+  /**
+   * Fits a projection with PCA on the first {@code count} rows of {@code sample}.
+   */
+  public static Projection fit(float[][] sample, int count, int dimensions) {
+    int inputDimensions = sample[0].length;
+    float[] mean = new float[inputDimensions];
+    for (int i = 0; i < count; i++) {
+      for (int j = 0; j < inputDimensions; j++) {
+        mean[j] += sample[i][j];
+      }
+    }
+    for (int j = 0; j < inputDimensions; j++) {
+      mean[j] /= count;
+    }
+
+    float[][] centered = new float[count][inputDimensions];
+    for (int i = 0; i < count; i++) {
+      for (int j = 0; j < inputDimensions; j++) {
+        centered[i][j] = sample[i][j] - mean[j];
+      }
+    }
+    INDArray components = PCA.pca_factor(Nd4j.create(centered), dimensions, false);
+
+    float[] factor = new float[inputDimensions * dimensions];
+    for (int j = 0; j < inputDimensions; j++) {
+      for (int k = 0; k < dimensions; k++) {
+        factor[j * dimensions + k] = components.getFloat(j, k);
+      }
+    }
+    return new Projection(inputDimensions, dimensions, mean, factor);
+  }
+
+  public int inputDimensions() {
+    return inputDimensions;
+  }
+
+  public int outputDimensions() {
+    return outputDimensions;
+  }
+
+  /**
+   * Projects a vector into {@code output}, which must have {@link #outputDimensions()} components.
+   */
+  public void project(float[] input, float[] output) {
+    if (input.length != inputDimensions) {
+      throw new IllegalArgumentException("Expected a " + inputDimensions + "-dimensional vector but got " +
+          input.length);
+    }
+    Arrays.fill(output, 0, outputDimensions, 0);
+    for (int j = 0; j < inputDimensions; j++) {
+      float value = input[j] - mean[j];
+      int offset = j * outputDimensions;
+      for (int k = 0; k < outputDimensions; k++) {
+        output[k] += value * factor[offset + k];
+      }
+    }
+  }
+
+  public float[] project(float[] input) {
+    float[] output = new float[outputDimensions];
+    project(input, output);
+    return output;
+  }
+
+  public void write(Path file) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + Float.BYTES * (mean.length + factor.length))
+        .order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(MAGIC).putInt(VERSION).putInt(inputDimensions).putInt(outputDimensions);
+    for (float value : mean) {
+      buffer.putFloat(value);
+    }
+    for (float value : factor) {
+      buffer.putFloat(value);
+    }
+    buffer.flip();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+  }
+
+  public static Projection read(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+          .order(ByteOrder.LITTLE_ENDIAN);
+      if (buffer.getInt() != MAGIC) {
+        throw new IOException(file + " is not a projection file");
+      }
+      int version = buffer.getInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported projection version " + version);
+      }
+      int inputDimensions = buffer.getInt();
+      int outputDimensions = buffer.getInt();
+      float[] mean = new float[inputDimensions];
+      float[] factor = new float[inputDimensions * outputDimensions];
+      buffer.asFloatBuffer().get(mean).get(factor);
+      return new Projection(inputDimensions, outputDimensions, mean, factor);
+    }
+  }
+
+  /**
+   * Uniform sample of a stream of vectors, kept with reservoir sampling.
+   */
+  public static final class Sampler {
+    private final float[][] sample;
+    private final Random random = new Random(42);
+    private long seen;
+
+    public Sampler(int size) {
+      this.sample = new float[size][];
+    }
+
+    /**
+     * Offers a vector to the sample; it is copied if kept.
+     */
+    public void offer(float[] vector) {
+      long slot = seen < sample.length ? seen : (long) (random.nextDouble() * (seen + 1));
+      seen++;
+      if (slot < sample.length) {
+        int i = (int) slot;
+        if (sample[i] == null) {
+          sample[i] = vector.clone();
+        } else {
+          System.arraycopy(vector, 0, sample[i], 0, vector.length);
+        }
+      }
+    }
+
+    public float[][] sample() {
+      return sample;
+    }
+
+    /**
+     * Returns the number of vectors in the sample.
+     */
+    public int size() {
+      return (int) Math.min(seen, sample.length);
+    }
+  }
+}
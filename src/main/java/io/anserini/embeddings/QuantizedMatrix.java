@@ -0,0 +1,271 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The vectors of an {@link EmbeddingStore} held on the heap as {@link VectorEncoding#FLOAT16} or
+ * {@link VectorEncoding#INT8} codes, a half or a quarter of the memory of a {@link VectorMatrix}, and scored without
+ * decoding them. Vectors are not normalized; instead, the norm of each decoded vector is kept so that
+ * {@link Similarity#COSINE} and {@link Similarity#L2} scores can be derived from the dot product. For
+ * {@link VectorEncoding#INT8}, the dot product with a query {@code q} is {@code sum(q[j] * offset[j]) +
+ * sum(q[j] * scale[j] * code[j])}. The first term is computed once per query, and the weights {@code q[j] * scale[j]}
+ * of the second are themselves quantized to signed bytes (see {@link #prepare(Similarity, float[])}), so that the scan
+ * is an integer dot product, several times faster than converting every code to a float.
+ */
+public final class QuantizedMatrix {
+  // Rows per block; a block is a single byte[], so it must stay below 2^31 bytes for any dimensionality.
+  private static final int BLOCK_ROWS = 1 << 16;
+  // Number of store rows a quantizer is fitted on, when the store isn't quantized already.
+  private static final int SAMPLE_SIZE = 100000;
+
+  private final VectorEncoding encoding;
+  private final ScalarQuantizer quantizer;
+  private final int dimensions;
+  private final int rowBytes;
+  private final int size;
+  private final int[] rows;
+  private final byte[][] blocks;
+  private final float[] squaredNorms;
+  private final float[] inverseNorms;
+
+  private QuantizedMatrix(VectorEncoding encoding, ScalarQuantizer quantizer, int dimensions, int size, int[] rows,
+                          byte[][] blocks, float[] squaredNorms) {
+    this.encoding = encoding;
+    this.quantizer = quantizer;
+    this.dimensions = dimensions;
+    this.rowBytes = encoding.bytes() * dimensions;
+    this.size = size;
+    this.rows = rows;
+    this.blocks = blocks;
+    this.squaredNorms = squaredNorms;
+    this.inverseNorms = new float[size];
+    for (int i = 0; i < size; i++) {
+      inverseNorms[i] = squaredNorms[i] > 0 ? (float) (1 / Math.sqrt(squaredNorms[i])) : 0;
+    }
+  }
+
+  /**
+   * Encodes the vectors of a store. The codes of a {@link FlatEmbeddingStore} with the same encoding are copied as they
+   * are; otherwise, vectors are encoded, with a quantizer fitted on an evenly spaced sample of the store for
+   * {@link VectorEncoding#INT8}.
+   */
+  public static QuantizedMatrix load(EmbeddingStore store, VectorEncoding encoding) throws IOException {
+    if (encoding == VectorEncoding.FLOAT32) {
+      throw new IllegalArgumentException("Full precision vectors are held in a VectorMatrix");
+    }
+    int dimensions = store.dimensions();
+    FlatEmbeddingStore flat = null;
+    if (store instanceof FlatEmbeddingStore && ((FlatEmbeddingStore) store).encoding() == encoding) {
+      flat = (FlatEmbeddingStore) store;
+    }
+
+    ScalarQuantizer quantizer = null;
+    if (encoding == VectorEncoding.INT8) {
+      quantizer = flat != null ? flat.quantizer() : fit(store);
+    }
+
+    int rowBytes = encoding.bytes() * dimensions;
+    int[] rows = new int[store.size()];
+    float[] squaredNorms = new float[store.size()];
+    List<byte[]> blocks = new ArrayList<>();
+    float[] vector = new float[dimensions];
+    byte[] block = null;
+    int size = 0;
+    for (int row = 0; row < store.size(); row++) {
+      if (flat == null && !store.vector(row, vector)) {
+        continue;
+      }
+      if (size % BLOCK_ROWS == 0) {
+        block = new byte[BLOCK_ROWS * rowBytes];
+        blocks.add(block);
+      }
+      int offset = (size % BLOCK_ROWS) * rowBytes;
+      if (flat != null) {
+        flat.codes(row, block, offset);
+      } else {
+        encode(encoding, quantizer, vector, block, offset);
+      }
+      // Norms are those of the decoded codes, so that they agree with the dot products computed on the codes.
+      decode(encoding, quantizer, block, offset, vector);
+      squaredNorms[size] = Similarity.dot(vector, 0, vector, 0, dimensions);
+      rows[size++] = row;
+    }
+    return new QuantizedMatrix(encoding, quantizer, dimensions, size, rows, blocks.toArray(new byte[0][]),
+        squaredNorms);
+  }
+
+  private static ScalarQuantizer fit(EmbeddingStore store) throws IOException {
+    int step = Math.max(1, store.size() / SAMPLE_SIZE);
+    float[][] sample = new float[Math.min(store.size(), SAMPLE_SIZE)][store.dimensions()];
+    int count = 0;
+    for (int row = 0; row < store.size() && count < sample.length; row += step) {
+      if (store.vector(row, sample[count])) {
+        count++;
+      }
+    }
+    return ScalarQuantizer.fit(sample, count, store.dimensions());
+  }
+
+  private static void encode(VectorEncoding encoding, ScalarQuantizer quantizer, float[] vector, byte[] codes,
+                             int offset) {
+    if (encoding == VectorEncoding.INT8) {
+      quantizer.encode(vector, codes, offset);
+      return;
+    }
+    for (int j = 0; j < vector.length; j++) {
+      short half = Float16.encode(vector[j]);
+      codes[offset + 2 * j] = (byte) half;
+      codes[offset + 2 * j + 1] = (byte) (half >>> 8);
+    }
+  }
+
+  private static void decode(VectorEncoding encoding, ScalarQuantizer quantizer, byte[] codes, int offset,
+                             float[] vector) {
+    if (encoding == VectorEncoding.INT8) {
+      quantizer.decode(codes, offset, vector);
+      return;
+    }
+    for (int j = 0; j < vector.length; j++) {
+      vector[j] = Float16.decode(codes, offset + 2 * j);
+    }
+  }
+
+  public VectorEncoding encoding() {
+    return encoding;
+  }
+
+  public int dimensions() {
+    return dimensions;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the store row of the vector at position {@code i}.
+   */
+  public int row(int i) {
+    return rows[i];
+  }
+
+  /**
+   * Decodes the vector at position {@code i} into {@code vector}.
+   */
+  public void copy(int i, float[] vector) {
+    decode(encoding, quantizer, blocks[i / BLOCK_ROWS], (i % BLOCK_ROWS) * rowBytes, vector);
+  }
+
+  /**
+   * Prepares a query for scoring against the codes. For {@link Similarity#COSINE}, the query is normalized.
+   */
+  public Query prepare(Similarity similarity, float[] query) {
+    if (query.length != dimensions) {
+      throw new IllegalArgumentException("Expected a " + dimensions + "-dimensional query but got " + query.length);
+    }
+    float[] weights = query.clone();
+    if (similarity == Similarity.COSINE) {
+      Similarity.normalize(weights);
+    }
+    float squaredNorm = Similarity.dot(weights, 0, weights, 0, dimensions);
+    if (encoding != VectorEncoding.INT8) {
+      return new Query(similarity, weights, null, 1, 0, squaredNorm);
+    }
+
+    float bias = 0;
+    float max = 0;
+    for (int j = 0; j < dimensions; j++) {
+      bias += weights[j] * quantizer.offset(j);
+      weights[j] *= quantizer.scale(j);
+      max = Math.max(max, Math.abs(weights[j]));
+    }
+    float step = max > 0 ? max / Byte.MAX_VALUE : 1;
+    byte[] codes = new byte[dimensions];
+    for (int j = 0; j < dimensions; j++) {
+      codes[j] = (byte) Math.round(weights[j] / step);
+    }
+    return new Query(similarity, null, codes, step, bias, squaredNorm);
+  }
+
+  /**
+   * Returns the similarity between a prepared query and the vector at position {@code i}, as decoded from its codes.
+   */
+  public float score(Query query, int i) {
+    byte[] block = blocks[i / BLOCK_ROWS];
+    int offset = (i % BLOCK_ROWS) * rowBytes;
+    float dot = encoding == VectorEncoding.INT8 ?
+        query.bias + query.step * dotInt8(query.codes, block, offset) : dotFloat16(query.weights, block, offset);
+    switch (query.similarity) {
+      case COSINE:
+        return dot * inverseNorms[i];
+      case L2:
+        return -(query.squaredNorm - 2 * dot + squaredNorms[i]);
+      default:
+        return dot;
+    }
+  }
+
+  private int dotInt8(byte[] query, byte[] codes, int offset) {
+    // Integer additions are associative, so the JIT can vectorize this loop without unrolling it by hand; at most
+    // 127 * 255 per dimension, the sum can't overflow for any realistic dimensionality.
+    int sum = 0;
+    for (int j = 0; j < dimensions; j++) {
+      sum += query[j] * (codes[offset + j] & 0xff);
+    }
+    return sum;
+  }
+
+  private float dotFloat16(float[] weights, byte[] codes, int offset) {
+    int bound = dimensions & ~1;
+    float s0 = 0, s1 = 0;
+    for (int j = 0; j < bound; j += 2) {
+      s0 += weights[j] * Float16.decode(codes, offset + 2 * j);
+      s1 += weights[j + 1] * Float16.decode(codes, offset + 2 * j + 2);
+    }
+    if (bound < dimensions) {
+      s0 += weights[bound] * Float16.decode(codes, offset + 2 * bound);
+    }
+    return s0 + s1;
+  }
+
+  /**
+   * A query prepared for scoring against the codes of a {@link QuantizedMatrix}.
+   */
+  public static final class Query {
+    private final Similarity similarity;
+    // Weights of the components, for FLOAT16.
+    private final float[] weights;
+    // Quantized weights of the codes, their step and the constant term of the dot product, for INT8.
+    private final byte[] codes;
+    private final float step;
+    private final float bias;
+    private final float squaredNorm;
+
+    private Query(Similarity similarity, float[] weights, byte[] codes, float step, float bias, float squaredNorm) {
+      this.similarity = similarity;
+      this.weights = weights;
+      this.codes = codes;
+      this.step = step;
+      this.bias = bias;
+      this.squaredNorm = squaredNorm;
+    }
+  }
+}
@@ -0,0 +1,151 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.search.ScoreDoc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Two-stage nearest neighbour search on an index built by {@link IndexReducedWordEmbeddings} with
+ * {@code -storeVectors}: a pool of candidates is retrieved cheaply from the reduced vectors with
+ * {@link PointNearestNeighbourSearcher}, then re-scored exactly on the full vectors. This recovers most of the recall
+ * lost to the few dimensions points can be indexed with, while only reading the full vectors of the candidates.
+ */
+public class RerankingNearestNeighbourSearcher implements NearestNeighbourSearcher {
+  private final PointNearestNeighbourSearcher candidates;
+  private final Projection projection;
+  private final String field;
+  private final Similarity similarity;
+  private final int candidateCount;
+
+  /**
+   * @param store store reading the reduced vectors of the index
+   * @param similarity similarity of full vectors used for re-scoring
+   * @param candidateCount number of candidates retrieved from the reduced vectors
+   */
+  public RerankingNearestNeighbourSearcher(LuceneEmbeddingStore store, Similarity similarity, int candidateCount) {
+    this(store, null, similarity, candidateCount);
+  }
+
+  /**
+   * @param store store reading the reduced vectors of the index
+   * @param projection projection the index was reduced with, to search full query vectors; may be null
+   * @param similarity similarity of full vectors used for re-scoring
+   * @param candidateCount number of candidates retrieved from the reduced vectors
+   */
+  public RerankingNearestNeighbourSearcher(LuceneEmbeddingStore store, Projection projection, Similarity similarity,
+                                           int candidateCount) {
+    this.candidates = new PointNearestNeighbourSearcher(store);
+    this.projection = projection;
+    this.field = IndexWordEmbeddings.FIELD_VECTOR;
+    this.similarity = similarity;
+    this.candidateCount = candidateCount;
+  }
+
+  /**
+   * Returns the k nearest neighbours of a full vector, reduced with the projection of the index to retrieve the
+   * candidates.
+   *
+   * @throws IllegalStateException if the searcher has no projection
+   */
+  @Override
+  public List<Neighbour> search(float[] query, int k) throws IOException {
+    if (projection == null) {
+      throw new IllegalStateException("Searching full vectors needs the projection of the index");
+    }
+    return search(projection.project(query), query, k);
+  }
+
+  /**
+   * Returns the k nearest neighbours of a word among the candidates retrieved for its reduced vector.
+   *
+   * @param reduced the reduced vector of the query
+   * @param full the full vector of the query
+   */
+  public List<Neighbour> search(float[] reduced, float[] full, int k) throws IOException {
+    LuceneEmbeddingStore store = candidates.getStore();
+    IndexReader reader = store.getReader();
+    ScoreDoc[] scoreDocs = candidates.searchDocs(reduced, Math.max(k, candidateCount)).scoreDocs;
+
+    int[] docs = new int[scoreDocs.length];
+    for (int i = 0; i < docs.length; i++) {
+      docs[i] = scoreDocs[i].doc;
+    }
+    TopK top = rescore(reader, docs, field, similarity, full, k);
+
+    int[] ids = new int[top.size()];
+    float[] scores = new float[top.size()];
+    int n = top.drain(ids, scores);
+    List<Neighbour> neighbours = new ArrayList<>(n);
+    for (int j = 0; j < n; j++) {
+      neighbours.add(new Neighbour(store.word(ids[j]), scores[j]));
+    }
+    return neighbours;
+  }
+
+  /**
+   * Scores candidate documents exactly on their full vectors, reading them segment by segment in document id order.
+   *
+   * @param docs top-level document ids of the candidates; sorted in place
+   * @return the k best candidates
+   */
+  static TopK rescore(IndexReader reader, int[] docs, String field, Similarity similarity, float[] query, int k)
+      throws IOException {
+    if (similarity == Similarity.COSINE) {
+      query = query.clone();
+      Similarity.normalize(query);
+    }
+    Arrays.sort(docs);
+
+    TopK top = new TopK(k);
+    List<LeafReaderContext> leaves = reader.leaves();
+    int[] leafDocs = new int[docs.length];
+    int i = 0;
+    while (i < docs.length) {
+      LeafReaderContext context = leaves.get(ReaderUtil.subIndex(docs[i], leaves));
+      int end = context.docBase + context.reader().maxDoc();
+      int count = 0;
+      while (i < docs.length && docs[i] < end) {
+        leafDocs[count++] = docs[i++] - context.docBase;
+      }
+
+      float[][] vectors = Vectors.read(context.reader(), leafDocs, count, field);
+      for (int j = 0; j < count; j++) {
+        float[] vector = vectors[j];
+        if (vector == null) {
+          continue;
+        }
+        if (vector.length != query.length) {
+          throw new IllegalArgumentException("Expected a " + vector.length + "-dimensional query but got " +
+              query.length);
+        }
+        if (similarity == Similarity.COSINE) {
+          Similarity.normalize(vector);
+        }
+        top.offer(context.docBase + leafDocs[j], similarity.score(query, 0, vector, 0, query.length));
+      }
+    }
+    return top;
+  }
+}
@@ -0,0 +1,149 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Per-dimension scalar quantization of vectors into unsigned 8-bit codes: component {@code j} is encoded as
+ * {@code round((x - offset[j]) / scale[j])}, clamped to [0, 255], and decoded as {@code offset[j] + scale[j] * code}.
+ * The range of each dimension is fitted on a sample of vectors, leaving out the most extreme values so that a few
+ * outliers don't waste the resolution of the codes.
+ */
+public final class ScalarQuantizer {
+  private static final int LEVELS = 255;
+  // Fraction of the sampled values of a dimension left out at each end of its range.
+  private static final double CLIP_QUANTILE = 0.001;
+
+  private final float[] offsets;
+  private final float[] scales;
+
+  public ScalarQuantizer(float[] offsets, float[] scales) {
+    if (offsets.length != scales.length) {
+      throw new IllegalArgumentException("Expected " + offsets.length + " scales but got " + scales.length);
+    }
+    this.offsets = offsets;
+    this.scales = scales;
+  }
+
+  /**
+   * Fits the range of each dimension on a sample of vectors.
+   *
+   * @param sample sampled vectors; only the first {@code count} are used
+   */
+  public static ScalarQuantizer fit(float[][] sample, int count, int dimensions) {
+    if (count == 0) {
+      throw new IllegalArgumentException("Cannot fit a quantizer on no vectors");
+    }
+    float[] offsets = new float[dimensions];
+    float[] scales = new float[dimensions];
+    float[] column = new float[count];
+    int clip = (int) (CLIP_QUANTILE * count);
+    for (int j = 0; j < dimensions; j++) {
+      for (int i = 0; i < count; i++) {
+        column[i] = sample[i][j];
+      }
+      Arrays.sort(column);
+      float min = column[clip];
+      float max = column[count - 1 - clip];
+      offsets[j] = min;
+      scales[j] = (max - min) / LEVELS;
+    }
+    return new ScalarQuantizer(offsets, scales);
+  }
+
+  public int dimensions() {
+    return offsets.length;
+  }
+
+  public float offset(int dimension) {
+    return offsets[dimension];
+  }
+
+  public float scale(int dimension) {
+    return scales[dimension];
+  }
+
+  /**
+   * Encodes a vector into {@code codes}, starting at {@code offset}.
+   */
+  public void encode(float[] vector, byte[] codes, int offset) {
+    for (int j = 0; j < offsets.length; j++) {
+      codes[offset + j] = (byte) code(vector[j], j);
+    }
+  }
+
+  /**
+   * Returns the code of a component, between 0 and 255.
+   */
+  public int code(float value, int dimension) {
+    float scale = scales[dimension];
+    if (scale == 0) {
+      return 0;
+    }
+    int code = Math.round((value - offsets[dimension]) / scale);
+    return Math.max(0, Math.min(LEVELS, code));
+  }
+
+  /**
+   * Decodes the vector whose codes start at {@code offset} into {@code vector}.
+   */
+  public void decode(byte[] codes, int offset, float[] vector) {
+    for (int j = 0; j < offsets.length; j++) {
+      vector[j] = offsets[j] + scales[j] * (codes[offset + j] & 0xff);
+    }
+  }
+
+  /**
+   * Decodes a single component.
+   */
+  public float decode(byte code, int dimension) {
+    return offsets[dimension] + scales[dimension] * (code & 0xff);
+  }
+
+  /**
+   * Returns the number of bytes {@link #write(ByteBuffer)} takes.
+   */
+  public static int length(int dimensions) {
+    return 2 * Float.BYTES * dimensions;
+  }
+
+  /**
+   * Writes the offsets followed by the scales, in the byte order of the buffer.
+   */
+  public void write(ByteBuffer buffer) {
+    for (float offset : offsets) {
+      buffer.putFloat(offset);
+    }
+    for (float scale : scales) {
+      buffer.putFloat(scale);
+    }
+  }
+
+  public static ScalarQuantizer read(ByteBuffer buffer, int dimensions) {
+    float[] offsets = new float[dimensions];
+    float[] scales = new float[dimensions];
+    for (int j = 0; j < dimensions; j++) {
+      offsets[j] = buffer.getFloat();
+    }
+    for (int j = 0; j < dimensions; j++) {
+      scales[j] = buffer.getFloat();
+    }
+    return new ScalarQuantizer(offsets, scales);
+  }
+}
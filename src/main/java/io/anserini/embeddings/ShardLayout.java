@@ -0,0 +1,169 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * How the vocabulary of a sharded index is partitioned across shard directories, each an index of its own built by
+ * {@link IndexWordEmbeddings} or {@link IndexFlatWordEmbeddings}. The layout is written to {@value #SHARDS_FILE} in
+ * the index directory, and the shards are either subdirectories of it or, to spread them across disks, directories
+ * anywhere else.
+ */
+public final class ShardLayout {
+  public static final String SHARDS_FILE = "shards.properties";
+
+  private static final int HASH_SEED = 0;
+
+  public enum Partition {
+    /**
+     * By a hash of the word, which spreads words evenly and lets a lookup go straight to the one shard holding it.
+     */
+    HASH,
+    /**
+     * By contiguous ranges of rank in the input, which embeddings files usually list by decreasing frequency. Lookups
+     * try the shards in order, so that most of them, for frequent words, are answered by the first shard.
+     */
+    RANK
+  }
+
+  private final Partition partition;
+  private final Path[] paths;
+  // First rank of each shard, for RANK.
+  private final long[] ranks;
+
+  private ShardLayout(Partition partition, Path[] paths, long[] ranks) {
+    this.partition = partition;
+    this.paths = paths;
+    this.ranks = ranks;
+  }
+
+  /**
+   * Creates the layout of a new sharded index.
+   *
+   * @param paths directories of the shards, or null for subdirectories {@code shard-0}, {@code shard-1}, ... of the
+   *              index
+   * @param size number of words in the input, to split into equal ranges for RANK
+   */
+  public static ShardLayout create(Path index, Partition partition, int shards, List<Path> paths, long size) {
+    if (shards < 1) {
+      throw new IllegalArgumentException("Expected at least one shard but got " + shards);
+    }
+    if (paths != null && paths.size() != shards) {
+      throw new IllegalArgumentException("Expected " + shards + " shard paths but got " + paths.size());
+    }
+    Path[] shardPaths = new Path[shards];
+    long[] ranks = new long[shards];
+    long range = (size + shards - 1) / shards;
+    for (int i = 0; i < shards; i++) {
+      shardPaths[i] = paths != null ? paths.get(i) : index.resolve("shard-" + i);
+      ranks[i] = i * range;
+    }
+    return new ShardLayout(partition, shardPaths, ranks);
+  }
+
+  /**
+   * Returns true if the index in a directory is sharded.
+   */
+  public static boolean exists(Path index) {
+    return Files.exists(index.resolve(SHARDS_FILE));
+  }
+
+  public static ShardLayout read(Path index) throws IOException {
+    Properties properties = new Properties();
+    try (Reader reader = Files.newBufferedReader(index.resolve(SHARDS_FILE), StandardCharsets.UTF_8)) {
+      properties.load(reader);
+    }
+    try {
+      Partition partition = Partition.valueOf(properties.getProperty("partition"));
+      int shards = Integer.parseInt(properties.getProperty("shards"));
+      Path[] paths = new Path[shards];
+      long[] ranks = new long[shards];
+      for (int i = 0; i < shards; i++) {
+        // Relative paths are relative to the index, so that the index can be moved as a whole.
+        paths[i] = index.resolve(properties.getProperty("shard." + i));
+        ranks[i] = Long.parseLong(properties.getProperty("rank." + i, "0"));
+      }
+      return new ShardLayout(partition, paths, ranks);
+    } catch (RuntimeException e) {
+      throw new IOException("Invalid " + index.resolve(SHARDS_FILE) + ": " + e.getMessage(), e);
+    }
+  }
+
+  public void write(Path index) throws IOException {
+    Properties properties = new Properties();
+    properties.setProperty("partition", partition.name());
+    properties.setProperty("shards", Integer.toString(paths.length));
+    for (int i = 0; i < paths.length; i++) {
+      Path path = paths[i].startsWith(index) ? index.relativize(paths[i]) : paths[i].toAbsolutePath();
+      properties.setProperty("shard." + i, path.toString());
+      if (partition == Partition.RANK) {
+        properties.setProperty("rank." + i, Long.toString(ranks[i]));
+      }
+    }
+    Files.createDirectories(index);
+    try (Writer writer = Files.newBufferedWriter(index.resolve(SHARDS_FILE), StandardCharsets.UTF_8)) {
+      properties.store(writer, "Shards of a word embeddings index");
+    }
+  }
+
+  public Partition partition() {
+    return partition;
+  }
+
+  public int shards() {
+    return paths.length;
+  }
+
+  public Path path(int shard) {
+    return paths[shard];
+  }
+
+  /**
+   * Returns the shard a word at a rank in the input is indexed in.
+   */
+  public int shard(String word, long rank) {
+    if (partition == Partition.HASH) {
+      return shard(new BytesRef(word));
+    }
+    int shard = paths.length - 1;
+    while (shard > 0 && rank < ranks[shard]) {
+      shard--;
+    }
+    return shard;
+  }
+
+  /**
+   * Returns the shard holding a word given as UTF-8 bytes, or -1 if any shard may hold it, for RANK.
+   */
+  public int shard(BytesRef word) {
+    if (partition == Partition.RANK) {
+      return -1;
+    }
+    return (StringHelper.murmurhash3_x86_32(word, HASH_SEED) & Integer.MAX_VALUE) % paths.length;
+  }
+}
@@ -0,0 +1,209 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link EmbeddingStore} over the shards of a sharded index (see {@link ShardLayout}). Rows are numbered across the
+ * shards, the rows of the first shard first. Lookups go to the shard holding the word when the vocabulary is
+ * partitioned by hash, and try the shards in order when it is partitioned by rank; batched lookups are grouped by
+ * shard, so each shard walks its term dictionary once.
+ */
+public class ShardedEmbeddingStore implements EmbeddingStore {
+  private final ShardLayout layout;
+  private final EmbeddingStore[] shards;
+  // First row of each shard, and the total number of rows at the end.
+  private final int[] offsets;
+
+  public ShardedEmbeddingStore(ShardLayout layout, EmbeddingStore[] shards) {
+    if (shards.length != layout.shards()) {
+      throw new IllegalArgumentException("Expected " + layout.shards() + " shards but got " + shards.length);
+    }
+    for (EmbeddingStore shard : shards) {
+      if (shard.dimensions() != shards[0].dimensions()) {
+        throw new IllegalArgumentException("Shards have " + shards[0].dimensions() + " and " + shard.dimensions() +
+            " dimensions");
+      }
+    }
+    this.layout = layout;
+    this.shards = shards;
+    this.offsets = new int[shards.length + 1];
+    for (int i = 0; i < shards.length; i++) {
+      offsets[i + 1] = Math.addExact(offsets[i], shards[i].size());
+    }
+  }
+
+  /**
+   * Opens the shards of the index at {@code path}, reading vectors from {@code field} of Lucene shards.
+   */
+  public static ShardedEmbeddingStore open(Path path, String field, boolean preload) throws IOException {
+    ShardLayout layout = ShardLayout.read(path);
+    EmbeddingStore[] shards = new EmbeddingStore[layout.shards()];
+    try {
+      for (int i = 0; i < shards.length; i++) {
+        shards[i] = EmbeddingStore.open(layout.path(i), field, preload);
+      }
+      return new ShardedEmbeddingStore(layout, shards);
+    } catch (IOException | RuntimeException e) {
+      for (EmbeddingStore shard : shards) {
+        if (shard != null) {
+          shard.close();
+        }
+      }
+      throw e;
+    }
+  }
+
+  public ShardLayout getLayout() {
+    return layout;
+  }
+
+  public int shards() {
+    return shards.length;
+  }
+
+  public EmbeddingStore getShard(int shard) {
+    return shards[shard];
+  }
+
+  /**
+   * Returns the first row of a shard.
+   */
+  public int offset(int shard) {
+    return offsets[shard];
+  }
+
+  @Override
+  public int dimensions() {
+    return shards[0].dimensions();
+  }
+
+  @Override
+  public int size() {
+    return offsets[shards.length];
+  }
+
+  @Override
+  public float[] lookup(String word) throws IOException {
+    int shard = layout.shard(new BytesRef(word));
+    if (shard >= 0) {
+      return shards[shard].lookup(word);
+    }
+    for (EmbeddingStore store : shards) {
+      float[] vector = store.lookup(word);
+      if (vector != null) {
+        return vector;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public boolean lookup(BytesRef term, float[] vector) throws IOException {
+    int shard = layout.shard(term);
+    if (shard >= 0) {
+      return shards[shard].lookup(term, vector);
+    }
+    for (EmbeddingStore store : shards) {
+      if (store.lookup(term, vector)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public Map<String, float[]> lookupAll(Collection<String> words) throws IOException {
+    Map<String, float[]> vectors = new HashMap<>();
+    if (layout.partition() == ShardLayout.Partition.HASH) {
+      List<List<String>> groups = new ArrayList<>(shards.length);
+      for (int i = 0; i < shards.length; i++) {
+        groups.add(new ArrayList<>());
+      }
+      for (String word : words) {
+        groups.get(layout.shard(new BytesRef(word))).add(word);
+      }
+      for (int i = 0; i < shards.length; i++) {
+        if (!groups.get(i).isEmpty()) {
+          vectors.putAll(shards[i].lookupAll(groups.get(i)));
+        }
+      }
+      return vectors;
+    }
+
+    // Each shard only gets the words that the shards of more frequent words didn't have.
+    Collection<String> missing = words;
+    for (EmbeddingStore store : shards) {
+      vectors.putAll(store.lookupAll(missing));
+      List<String> next = new ArrayList<>();
+      for (String word : missing) {
+        if (!vectors.containsKey(word)) {
+          next.add(word);
+        }
+      }
+      if (next.isEmpty()) {
+        break;
+      }
+      missing = next;
+    }
+    return vectors;
+  }
+
+  @Override
+  public String word(int row) throws IOException {
+    int shard = shard(row);
+    return shards[shard].word(row - offsets[shard]);
+  }
+
+  @Override
+  public boolean vector(int row, float[] vector) throws IOException {
+    int shard = shard(row);
+    return shards[shard].vector(row - offsets[shard], vector);
+  }
+
+  private int shard(int row) {
+    int shard = shards.length - 1;
+    while (shard > 0 && row < offsets[shard]) {
+      shard--;
+    }
+    return shard;
+  }
+
+  @Override
+  public void close() throws IOException {
+    IOException failure = null;
+    for (EmbeddingStore shard : shards) {
+      try {
+        shard.close();
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+}
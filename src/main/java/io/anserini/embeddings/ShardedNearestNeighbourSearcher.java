@@ -0,0 +1,89 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Searches the shards of a sharded index (see {@link ShardLayout}) and merges their results. The shards are searched
+ * in parallel, all but one on an executor and the last on the calling thread, so that a query over a single shard
+ * doesn't wait on the executor, and the k best of the per-shard top k are returned. Since every shard returns its own
+ * k nearest neighbours, the result is as good as that of the per-shard searchers.
+ */
+public class ShardedNearestNeighbourSearcher implements NearestNeighbourSearcher, Closeable {
+  private final List<NearestNeighbourSearcher> shards;
+  private final ExecutorService executor;
+
+  /**
+   * @param executor executor the shards are searched on, shut down on {@link #close()}
+   */
+  public ShardedNearestNeighbourSearcher(List<NearestNeighbourSearcher> shards, ExecutorService executor) {
+    if (shards.isEmpty()) {
+      throw new IllegalArgumentException("Expected at least one shard");
+    }
+    this.shards = shards;
+    this.executor = executor;
+  }
+
+  @Override
+  public List<Neighbour> search(float[] query, int k) throws IOException {
+    int last = shards.size() - 1;
+    List<Future<List<Neighbour>>> futures = new ArrayList<>(last);
+    for (int i = 0; i < last; i++) {
+      NearestNeighbourSearcher shard = shards.get(i);
+      futures.add(executor.submit(() -> shard.search(query, k)));
+    }
+
+    List<Neighbour> neighbours;
+    try {
+      neighbours = new ArrayList<>(shards.get(last).search(query, k));
+      for (Future<List<Neighbour>> future : futures) {
+        neighbours.addAll(future.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while searching shards", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      if (e.getCause() instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) e.getCause()).getCause();
+      }
+      throw new IOException("Failed to search a shard", e.getCause());
+    } finally {
+      for (Future<List<Neighbour>> future : futures) {
+        future.cancel(false);
+      }
+    }
+
+    neighbours.sort((a, b) -> Float.compare(b.score, a.score));
+    return neighbours.size() > k ? new ArrayList<>(neighbours.subList(0, k)) : neighbours;
+  }
+
+  @Override
+  public void close() {
+    executor.shutdown();
+  }
+}
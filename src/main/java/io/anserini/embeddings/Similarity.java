@@ -0,0 +1,102 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+/**
+ * Vector similarities for nearest neighbour search. Higher scores are closer for all of them, so L2 scores are
+ * negated squared distances.
+ */
+public enum Similarity {
+  COSINE, DOT, L2;
+
+  /**
+   * Returns the dot product of the {@code n}-dimensional vectors starting at {@code aOffset} in {@code a} and at
+   * {@code bOffset} in {@code b}. The loop is unrolled into independent accumulators, which lets the CPU overlap the
+   * additions.
+   */
+  public static float dot(float[] a, int aOffset, float[] b, int bOffset, int n) {
+    int bound = n & ~3;
+    float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+    for (int i = 0; i < bound; i += 4) {
+      s0 += a[aOffset + i] * b[bOffset + i];
+      s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+      s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+      s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+    }
+    for (int i = bound; i < n; i++) {
+      s0 += a[aOffset + i] * b[bOffset + i];
+    }
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  /**
+   * Returns the squared L2 distance between the {@code n}-dimensional vectors starting at {@code aOffset} in
+   * {@code a} and at {@code bOffset} in {@code b}.
+   */
+  public static float squaredDistance(float[] a, int aOffset, float[] b, int bOffset, int n) {
+    int bound = n & ~3;
+    float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+    for (int i = 0; i < bound; i += 4) {
+      float d0 = a[aOffset + i] - b[bOffset + i];
+      float d1 = a[aOffset + i + 1] - b[bOffset + i + 1];
+      float d2 = a[aOffset + i + 2] - b[bOffset + i + 2];
+      float d3 = a[aOffset + i + 3] - b[bOffset + i + 3];
+      s0 += d0 * d0;
+      s1 += d1 * d1;
+      s2 += d2 * d2;
+      s3 += d3 * d3;
+    }
+    for (int i = bound; i < n; i++) {
+      float d = a[aOffset + i] - b[bOffset + i];
+      s0 += d * d;
+    }
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  /**
+   * Scales a vector to unit length in place; zero vectors are left alone.
+   */
+  public static void normalize(float[] vector) {
+    float norm = (float) Math.sqrt(dot(vector, 0, vector, 0, vector.length));
+    if (norm > 0) {
+      for (int i = 0; i < vector.length; i++) {
+        vector[i] /= norm;
+      }
+    }
+  }
+
+  /**
+   * Returns the similarity between {@code query} and the vector starting at {@code offset} in {@code vectors}. For
+   * {@link #COSINE}, both are expected to be normalized already.
+   */
+  public float score(float[] query, float[] vectors, int offset) {
+    return score(query, 0, vectors, offset, query.length);
+  }
+
+  /**
+   * Returns the similarity between the {@code n}-dimensional vectors starting at {@code aOffset} in {@code a} and at
+   * {@code bOffset} in {@code b}. For {@link #COSINE}, both are expected to be normalized already.
+   */
+  public float score(float[] a, int aOffset, float[] b, int bOffset, int n) {
+    switch (this) {
+      case L2:
+        return -squaredDistance(a, aOffset, b, bOffset, n);
+      default:
+        return dot(a, aOffset, b, bOffset, n);
+    }
+  }
+}
@@ -0,0 +1,346 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The character n-gram vectors of a fastText model, for synthesizing vectors of out-of-vocabulary words the way
+ * fastText does: the word is wrapped in {@code <} and {@code >}, each of its n-grams of {@link #minn()} to
+ * {@link #maxn()} characters is hashed with 32-bit FNV-1a into one of {@link #buckets()} rows, and the vector of the
+ * word is the average of those rows. The rows are written by {@link IndexSubwordEmbeddings} next to the word vectors
+ * as {@value #SUBWORDS_FILE}, a header followed by a row-major matrix of little-endian floats, which is memory-mapped
+ * on open. N-grams are hashed over the UTF-8 bytes of the word as they are enumerated, so synthesizing a vector
+ * allocates nothing per n-gram.
+ */
+public final class SubwordTable implements Closeable {
+  public static final String SUBWORDS_FILE = "subwords.bin";
+
+  private static final int MAGIC = 0x53554257;
+  private static final int VERSION = 1;
+  private static final int HEADER_LENGTH = 24;
+
+  private static final int FNV_OFFSET_BASIS = 0x811c9dc5;
+  private static final int FNV_PRIME = 0x01000193;
+  private static final byte BOW = '<';
+  private static final byte EOW = '>';
+
+  private final int buckets;
+  private final int dimensions;
+  private final int minn;
+  private final int maxn;
+
+  // The matrix is mapped in chunks of whole rows, since a single mapping can't exceed 2GB.
+  private final FloatBuffer[] chunks;
+  private final int rowsPerChunk;
+
+  private SubwordTable(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), HEADER_LENGTH))
+          .order(ByteOrder.LITTLE_ENDIAN);
+      if (header.remaining() < HEADER_LENGTH || header.getInt() != MAGIC) {
+        throw new IOException(file + " is not a subword table");
+      }
+      int version = header.getInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported " + SUBWORDS_FILE + " version " + version);
+      }
+      this.buckets = header.getInt();
+      this.dimensions = header.getInt();
+      this.minn = header.getInt();
+      this.maxn = header.getInt();
+
+      long rowBytes = (long) Float.BYTES * dimensions;
+      if (channel.size() != HEADER_LENGTH + rowBytes * buckets) {
+        throw new IOException(file + " is truncated");
+      }
+      this.rowsPerChunk = (int) Math.max(1, Integer.MAX_VALUE / rowBytes);
+      this.chunks = new FloatBuffer[(buckets + rowsPerChunk - 1) / rowsPerChunk];
+      for (int i = 0; i < chunks.length; i++) {
+        int rows = Math.min(rowsPerChunk, buckets - i * rowsPerChunk);
+        chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_LENGTH + i * rowsPerChunk * rowBytes,
+            rows * rowBytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+      }
+    }
+  }
+
+  /**
+   * Opens the table in an index directory.
+   */
+  public static SubwordTable open(Path directory) throws IOException {
+    return new SubwordTable(directory.resolve(SUBWORDS_FILE));
+  }
+
+  /**
+   * Returns true if an index directory has a subword table.
+   */
+  public static boolean exists(Path directory) {
+    return Files.exists(directory.resolve(SUBWORDS_FILE));
+  }
+
+  public int dimensions() {
+    return dimensions;
+  }
+
+  public int buckets() {
+    return buckets;
+  }
+
+  public int minn() {
+    return minn;
+  }
+
+  public int maxn() {
+    return maxn;
+  }
+
+  /**
+   * Synthesizes the vector of a word given as UTF-8 bytes into {@code vector}, without allocating.
+   *
+   * @return false if the word has no n-grams, e.g., because it is shorter than {@link #minn()}
+   */
+  public boolean synthesize(BytesRef word, float[] vector) {
+    Arrays.fill(vector, 0, dimensions, 0);
+    int count = 0;
+    int length = word.length + 2;
+    for (int i = 0; i < length; i++) {
+      if (isContinuation(word, i)) {
+        continue;
+      }
+      int hash = FNV_OFFSET_BASIS;
+      int j = i;
+      for (int n = 1; j < length && n <= maxn; n++) {
+        // Hash a whole character, then the n-gram ending with it is complete.
+        do {
+          hash = (hash ^ byteAt(word, j++)) * FNV_PRIME;
+        } while (j < length && isContinuation(word, j));
+        if (n >= minn && !(n == 1 && (i == 0 || j == length))) {
+          addRow(Integer.remainderUnsigned(hash, buckets), vector);
+          count++;
+        }
+      }
+    }
+    if (count == 0) {
+      return false;
+    }
+    float scale = 1f / count;
+    for (int d = 0; d < dimensions; d++) {
+      vector[d] *= scale;
+    }
+    return true;
+  }
+
+  /**
+   * Synthesizes the vector of a word.
+   *
+   * @return the vector, or null if the word has no n-grams
+   */
+  public float[] synthesize(String word) {
+    float[] vector = new float[dimensions];
+    return synthesize(new BytesRef(word), vector) ? vector : null;
+  }
+
+  /**
+   * Synthesizes the vectors of several words at once. The n-grams of all the words are hashed first, then sorted by
+   * bucket, so that the table is read in order and rows shared by several words are read while they are in cache;
+   * for a large batch of tail words, this turns random reads of a multi-gigabyte mapping into a sequential sweep.
+   *
+   * @return the vectors of the words that have n-grams
+   */
+  public Map<String, float[]> synthesizeAll(Collection<String> words) {
+    List<String> distinct = new ArrayList<>(new LinkedHashSet<>(words));
+
+    // Each n-gram is a bucket in the high half of a long and the index of its word in the low half.
+    long[] ngrams = new long[64];
+    int size = 0;
+    int[] counts = new int[distinct.size()];
+    for (int w = 0; w < distinct.size(); w++) {
+      BytesRef word = new BytesRef(distinct.get(w));
+      int length = word.length + 2;
+      for (int i = 0; i < length; i++) {
+        if (isContinuation(word, i)) {
+          continue;
+        }
+        int hash = FNV_OFFSET_BASIS;
+        int j = i;
+        for (int n = 1; j < length && n <= maxn; n++) {
+          do {
+            hash = (hash ^ byteAt(word, j++)) * FNV_PRIME;
+          } while (j < length && isContinuation(word, j));
+          if (n >= minn && !(n == 1 && (i == 0 || j == length))) {
+            ngrams = ArrayUtil.grow(ngrams, size + 1);
+            ngrams[size++] = (long) Integer.remainderUnsigned(hash, buckets) << 32 | w;
+            counts[w]++;
+          }
+        }
+      }
+    }
+    Arrays.sort(ngrams, 0, size);
+
+    float[][] vectors = new float[distinct.size()][];
+    for (int i = 0; i < size; i++) {
+      int w = (int) ngrams[i];
+      if (vectors[w] == null) {
+        vectors[w] = new float[dimensions];
+      }
+      addRow((int) (ngrams[i] >>> 32), vectors[w]);
+    }
+
+    Map<String, float[]> synthesized = new HashMap<>();
+    for (int w = 0; w < distinct.size(); w++) {
+      if (vectors[w] == null) {
+        continue;
+      }
+      float scale = 1f / counts[w];
+      for (int d = 0; d < dimensions; d++) {
+        vectors[w][d] *= scale;
+      }
+      synthesized.put(distinct.get(w), vectors[w]);
+    }
+    return synthesized;
+  }
+
+  private void addRow(int bucket, float[] vector) {
+    FloatBuffer chunk = chunks[bucket / rowsPerChunk];
+    int base = (bucket % rowsPerChunk) * dimensions;
+    for (int d = 0; d < dimensions; d++) {
+      vector[d] += chunk.get(base + d);
+    }
+  }
+
+  /**
+   * Returns the byte at position {@code i} of the word wrapped in {@link #BOW} and {@link #EOW}, sign-extended as
+   * fastText hashes it.
+   */
+  private static int byteAt(BytesRef word, int i) {
+    if (i == 0) {
+      return BOW;
+    }
+    if (i == word.length + 1) {
+      return EOW;
+    }
+    return word.bytes[word.offset + i - 1];
+  }
+
+  private static boolean isContinuation(BytesRef word, int i) {
+    return (byteAt(word, i) & 0xc0) == 0x80;
+  }
+
+  /**
+   * Nothing to release: mappings are unmapped when they are garbage collected.
+   */
+  @Override
+  public void close() {
+  }
+
+  /**
+   * Writes a {@link SubwordTable}, streaming rows to disk as they are added.
+   */
+  public static class Writer implements Closeable {
+    private final Path file;
+    private final int buckets;
+    private final int dimensions;
+    private final int minn;
+    private final int maxn;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private int size;
+
+    public Writer(Path directory, int buckets, int dimensions, int minn, int maxn) throws IOException {
+      if (minn < 1 || maxn < minn) {
+        throw new IllegalArgumentException("Invalid n-gram lengths " + minn + " to " + maxn);
+      }
+      this.file = directory.resolve(SUBWORDS_FILE);
+      this.buckets = buckets;
+      this.dimensions = dimensions;
+      this.minn = minn;
+      this.maxn = maxn;
+
+      Files.createDirectories(directory);
+      this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+          StandardOpenOption.WRITE);
+      this.channel.position(HEADER_LENGTH);
+      this.buffer = ByteBuffer.allocateDirect(Math.max(1 << 20, Float.BYTES * dimensions))
+          .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Appends the vector of the next bucket.
+     */
+    public void add(float[] row) throws IOException {
+      if (row.length != dimensions) {
+        throw new IllegalArgumentException("Expected " + dimensions + " dimensions but got " + row.length);
+      }
+      if (size == buckets) {
+        throw new IllegalStateException("All " + buckets + " buckets have been added");
+      }
+      if (buffer.remaining() < Float.BYTES * dimensions) {
+        flush();
+      }
+      buffer.asFloatBuffer().put(row);
+      buffer.position(buffer.position() + Float.BYTES * dimensions);
+      size++;
+    }
+
+    /**
+     * Writes the header, once all buckets have been added.
+     */
+    @Override
+    public void close() throws IOException {
+      try {
+        flush();
+        if (size != buckets) {
+          throw new IOException("Expected " + buckets + " buckets but got " + size);
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(buckets).putInt(dimensions).putInt(minn).putInt(maxn);
+        header.flip();
+        while (header.hasRemaining()) {
+          channel.write(header, header.position());
+        }
+      } finally {
+        channel.close();
+      }
+    }
+
+    private void flush() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      buffer.clear();
+    }
+  }
+}
@@ -0,0 +1,129 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+/**
+ * Bounded min-heap of the k best (id, score) pairs seen so far, on primitive arrays so that offering a candidate
+ * never allocates.
+ */
+public final class TopK {
+  private final int k;
+  private final int[] ids;
+  private final float[] scores;
+  private int size;
+
+  public TopK(int k) {
+    this.k = k;
+    this.ids = new int[k];
+    this.scores = new float[k];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the lowest score kept, or negative infinity while fewer than k candidates have been offered.
+   */
+  public float threshold() {
+    return size < k ? Float.NEGATIVE_INFINITY : scores[0];
+  }
+
+  /**
+   * Offers a candidate.
+   *
+   * @return true if it was kept
+   */
+  public boolean offer(int id, float score) {
+    if (size < k) {
+      ids[size] = id;
+      scores[size] = score;
+      siftUp(size++);
+      return true;
+    }
+    if (k == 0 || score <= scores[0]) {
+      return false;
+    }
+    ids[0] = id;
+    scores[0] = score;
+    siftDown(0);
+    return true;
+  }
+
+  /**
+   * Offers all candidates of another heap.
+   */
+  public void addAll(TopK other) {
+    for (int i = 0; i < other.size; i++) {
+      offer(other.ids[i], other.scores[i]);
+    }
+  }
+
+  /**
+   * Empties the heap into {@code ids} and {@code scores}, best first.
+   *
+   * @return the number of candidates
+   */
+  public int drain(int[] ids, float[] scores) {
+    int n = size;
+    for (int i = n - 1; i >= 0; i--) {
+      ids[i] = this.ids[0];
+      scores[i] = this.scores[0];
+      size--;
+      this.ids[0] = this.ids[size];
+      this.scores[0] = this.scores[size];
+      siftDown(0);
+    }
+    return n;
+  }
+
+  private void siftUp(int i) {
+    int id = ids[i];
+    float score = scores[i];
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (scores[parent] <= score) {
+        break;
+      }
+      ids[i] = ids[parent];
+      scores[i] = scores[parent];
+      i = parent;
+    }
+    ids[i] = id;
+    scores[i] = score;
+  }
+
+  private void siftDown(int i) {
+    int id = ids[i];
+    float score = scores[i];
+    int half = size >>> 1;
+    while (i < half) {
+      int child = 2 * i + 1;
+      if (child + 1 < size && scores[child + 1] < scores[child]) {
+        child++;
+      }
+      if (score <= scores[child]) {
+        break;
+      }
+      ids[i] = ids[child];
+      scores[i] = scores[child];
+      i = child;
+    }
+    ids[i] = id;
+    scores[i] = score;
+  }
+}
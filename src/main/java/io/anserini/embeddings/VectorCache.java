@@ -0,0 +1,237 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of decoded word vectors, bounded by an estimate of the memory it uses. Entries are kept in LRU order, but a
+ * new entry only displaces the least recently used ones if it has been requested more often than they have, as
+ * estimated by a count-min sketch of recent requests (TinyLFU admission). This keeps the head of a skewed word
+ * distribution cached while one-off words pass through. Cached vectors are shared and must not be modified.
+ */
+public class VectorCache {
+  // Rough per-entry overhead of the map entry, the key String and the array headers, on a 64-bit JVM.
+  private static final int ENTRY_OVERHEAD = 96;
+  private static final int SKETCH_DEPTH = 4;
+  private static final int[] SKETCH_SEEDS = { 0x9e3779b9, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f };
+
+  private final long maxBytes;
+  private final LinkedHashMap<String, float[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytes;
+
+  private final int[] sketch;
+  private final int sketchMask;
+  private final int sketchResetThreshold;
+  private int sketchIncrements;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * @param maxBytes memory budget
+   * @param dimensions dimensionality of the vectors, to size the frequency sketch
+   */
+  public VectorCache(long maxBytes, int dimensions) {
+    this.maxBytes = maxBytes;
+
+    long maxEntries = Math.max(1, maxBytes / weight("", dimensions));
+    int width = Integer.highestOneBit((int) Math.min(1 << 24, Math.max(1024, maxEntries)) * 2 - 1);
+    this.sketch = new int[SKETCH_DEPTH * width];
+    this.sketchMask = width - 1;
+    this.sketchResetThreshold = 10 * width;
+  }
+
+  /**
+   * Returns the cached vector of a word, or null. Every call counts towards the word's frequency.
+   */
+  public float[] get(String word) {
+    float[] vector;
+    synchronized (this) {
+      increment(word);
+      vector = entries.get(word);
+    }
+    if (vector == null) {
+      misses.increment();
+    } else {
+      hits.increment();
+    }
+    return vector;
+  }
+
+  /**
+   * Offers a vector to the cache.
+   *
+   * @return true if the vector was admitted
+   */
+  public synchronized boolean put(String word, float[] vector) {
+    long weight = weight(word, vector.length);
+    if (weight > maxBytes) {
+      return false;
+    }
+    // A vector already cached for the word is replaced, so its memory counts as free, but it is only removed once the
+    // new one is admitted.
+    float[] previous = entries.get(word);
+    long needed = bytes + weight - (previous == null ? 0 : weight(word, previous.length));
+
+    // Find the least recently used entries that would have to go, and only evict them if the new word is more
+    // frequent than each of them.
+    if (needed > maxBytes) {
+      int frequency = frequency(word);
+      long freed = 0;
+      int victims = 0;
+      for (Map.Entry<String, float[]> entry : entries.entrySet()) {
+        if (needed - freed <= maxBytes) {
+          break;
+        }
+        if (entry.getKey().equals(word)) {
+          continue;
+        }
+        if (frequency(entry.getKey()) >= frequency) {
+          return false;
+        }
+        freed += weight(entry.getKey(), entry.getValue().length);
+        victims++;
+      }
+
+      Iterator<Map.Entry<String, float[]>> iterator = entries.entrySet().iterator();
+      while (victims > 0) {
+        Map.Entry<String, float[]> entry = iterator.next();
+        if (entry.getKey().equals(word)) {
+          continue;
+        }
+        iterator.remove();
+        evictions.increment();
+        victims--;
+      }
+      needed -= freed;
+    }
+
+    entries.put(word, vector);
+    bytes = needed;
+    return true;
+  }
+
+  /**
+   * Adds a vector while warming the cache, without evicting anything. The word is counted as requested
+   * {@code frequency} times, so that it is only displaced later by words requested more often than that; warming
+   * with the rank of each word counted from the least frequent one keeps the head of the distribution cached.
+   *
+   * @return true if the vector fit in the cache
+   */
+  public synchronized boolean warm(String word, float[] vector, int frequency) {
+    float[] previous = entries.get(word);
+    long needed = bytes + weight(word, vector.length) - (previous == null ? 0 : weight(word, previous.length));
+    if (needed > maxBytes) {
+      return false;
+    }
+    entries.put(word, vector);
+    bytes = needed;
+
+    // Not counted towards the next halving of the sketch, since these are not actual requests.
+    int hash = word.hashCode();
+    for (int i = 0; i < SKETCH_DEPTH; i++) {
+      int index = i * (sketchMask + 1) + slot(hash, i);
+      sketch[index] = (int) Math.min(Integer.MAX_VALUE, (long) sketch[index] + frequency);
+    }
+    return true;
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+    bytes = 0;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Returns the estimated memory used by the cached entries, in bytes.
+   */
+  public synchronized long bytes() {
+    return bytes;
+  }
+
+  public long maxBytes() {
+    return maxBytes;
+  }
+
+  public long hitCount() {
+    return hits.sum();
+  }
+
+  public long missCount() {
+    return misses.sum();
+  }
+
+  public long evictionCount() {
+    return evictions.sum();
+  }
+
+  @Override
+  public String toString() {
+    long hitCount = hitCount();
+    long requests = hitCount + missCount();
+    return String.format("%d entries, %d/%d bytes, %d hits, %d misses (%.1f%% hit rate), %d evictions",
+        size(), bytes(), maxBytes, hitCount, missCount(), requests == 0 ? 0.0 : 100.0 * hitCount / requests,
+        evictionCount());
+  }
+
+  /**
+   * Returns the estimated memory used by an entry, in bytes.
+   */
+  static long weight(String word, int dimensions) {
+    return ENTRY_OVERHEAD + 2L * word.length() + (long) Float.BYTES * dimensions;
+  }
+
+  private void increment(String word) {
+    int hash = word.hashCode();
+    for (int i = 0; i < SKETCH_DEPTH; i++) {
+      int index = i * (sketchMask + 1) + slot(hash, i);
+      if (sketch[index] < Integer.MAX_VALUE) {
+        sketch[index]++;
+      }
+    }
+
+    // Periodically halve all counters so that the sketch follows changes in the word distribution.
+    if (++sketchIncrements >= sketchResetThreshold) {
+      for (int i = 0; i < sketch.length; i++) {
+        sketch[i] >>>= 1;
+      }
+      sketchIncrements /= 2;
+    }
+  }
+
+  private int frequency(String word) {
+    int hash = word.hashCode();
+    int frequency = Integer.MAX_VALUE;
+    for (int i = 0; i < SKETCH_DEPTH; i++) {
+      frequency = Math.min(frequency, sketch[i * (sketchMask + 1) + slot(hash, i)]);
+    }
+    return frequency;
+  }
+
+  private int slot(int hash, int row) {
+    int h = hash * SKETCH_SEEDS[row];
+    return (h ^ (h >>> 16)) & sketchMask;
+  }
+}
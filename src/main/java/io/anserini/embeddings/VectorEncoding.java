@@ -0,0 +1,42 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+/**
+ * Encodings of the components of a vector, from full precision to scalar-quantized codes.
+ */
+public enum VectorEncoding {
+  /** 32-bit floats. */
+  FLOAT32(Float.BYTES),
+  /** IEEE 754 half-precision floats, see {@link Float16}. */
+  FLOAT16(Short.BYTES),
+  /** Unsigned 8-bit codes, mapped back to floats with a per-dimension offset and scale, see {@link ScalarQuantizer}. */
+  INT8(Byte.BYTES);
+
+  private final int bytes;
+
+  VectorEncoding(int bytes) {
+    this.bytes = bytes;
+  }
+
+  /**
+   * Returns the number of bytes of an encoded component.
+   */
+  public int bytes() {
+    return bytes;
+  }
+}
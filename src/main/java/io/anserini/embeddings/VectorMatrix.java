@@ -0,0 +1,119 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The vectors of an {@link EmbeddingStore} copied into contiguous row-major blocks on the heap, for search methods
+ * that score many vectors per query. Empty store rows are skipped, so positions in the matrix are mapped back to
+ * store rows with {@link #row(int)}.
+ */
+public final class VectorMatrix {
+  // Rows per block; a block is a single float[], so it must stay below 2^31 floats for any dimensionality.
+  private static final int BLOCK_ROWS = 1 << 16;
+
+  private final int dimensions;
+  private final int size;
+  private final int[] rows;
+  private final float[][] blocks;
+
+  private VectorMatrix(int dimensions, int size, int[] rows, float[][] blocks) {
+    this.dimensions = dimensions;
+    this.size = size;
+    this.rows = rows;
+    this.blocks = blocks;
+  }
+
+  /**
+   * Copies the vectors of a store.
+   *
+   * @param normalize whether to scale the vectors to unit length, for {@link Similarity#COSINE}
+   */
+  public static VectorMatrix load(EmbeddingStore store, boolean normalize) throws IOException {
+    int dimensions = store.dimensions();
+    int[] rows = new int[store.size()];
+    List<float[]> blocks = new ArrayList<>();
+    float[] vector = new float[dimensions];
+    float[] block = null;
+    int size = 0;
+    for (int row = 0; row < store.size(); row++) {
+      if (!store.vector(row, vector)) {
+        continue;
+      }
+      if (normalize) {
+        Similarity.normalize(vector);
+      }
+      if (size % BLOCK_ROWS == 0) {
+        block = new float[BLOCK_ROWS * dimensions];
+        blocks.add(block);
+      }
+      System.arraycopy(vector, 0, block, (size % BLOCK_ROWS) * dimensions, dimensions);
+      rows[size++] = row;
+    }
+    return new VectorMatrix(dimensions, size, rows, blocks.toArray(new float[0][]));
+  }
+
+  public int dimensions() {
+    return dimensions;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the store row of the vector at position {@code i}.
+   */
+  public int row(int i) {
+    return rows[i];
+  }
+
+  /**
+   * Returns the block holding the vector at position {@code i}, which starts at {@link #offset(int)}.
+   */
+  public float[] block(int i) {
+    return blocks[i / BLOCK_ROWS];
+  }
+
+  public int offset(int i) {
+    return (i % BLOCK_ROWS) * dimensions;
+  }
+
+  /**
+   * Copies the vector at position {@code i} into {@code vector}.
+   */
+  public void copy(int i, float[] vector) {
+    System.arraycopy(block(i), offset(i), vector, 0, dimensions);
+  }
+
+  /**
+   * Returns the similarity between a query and the vector at position {@code i}.
+   */
+  public float score(Similarity similarity, float[] query, int i) {
+    return similarity.score(query, 0, block(i), offset(i), dimensions);
+  }
+
+  /**
+   * Returns the similarity between the vectors at positions {@code i} and {@code j}.
+   */
+  public float score(Similarity similarity, int i, int j) {
+    return similarity.score(block(i), offset(i), block(j), offset(j), dimensions);
+  }
+}
@@ -0,0 +1,174 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A nearest neighbour query given as a weighted sum of word vectors, e.g., {@code king - man + woman} for an analogy
+ * or the centroid of a set of words. The words of the query are excluded from its neighbours by
+ * {@link NearestNeighbourIndex#search(VectorQuery, int)}.
+ */
+public final class VectorQuery {
+  private final List<String> words;
+  private final float[] weights;
+
+  /**
+   * @param words distinct words
+   * @param weights weight of each word
+   */
+  public VectorQuery(List<String> words, float[] weights) {
+    if (words.size() != weights.length) {
+      throw new IllegalArgumentException("Expected " + words.size() + " weights but got " + weights.length);
+    }
+    if (words.isEmpty()) {
+      throw new IllegalArgumentException("A query needs at least one word");
+    }
+    this.words = Collections.unmodifiableList(new ArrayList<>(words));
+    this.weights = weights.clone();
+  }
+
+  /**
+   * Parses an expression of whitespace-separated terms, each an optional sign, an optional weight followed by
+   * {@code *}, and a word: {@code king - man + woman}, {@code king -man +woman} and {@code 0.5*paris +0.5*berlin} are
+   * all valid. Terms with the same word are summed.
+   *
+   * @throws IllegalArgumentException if the expression has no words or a dangling sign
+   */
+  public static VectorQuery parse(String expression) {
+    Map<String, Float> terms = new LinkedHashMap<>();
+    float sign = 1;
+    boolean dangling = false;
+    for (String token : expression.trim().split("\\s+")) {
+      if (token.isEmpty()) {
+        continue;
+      }
+      if (token.equals("+") || token.equals("-")) {
+        if (dangling) {
+          throw new IllegalArgumentException("Missing word after '" + (sign > 0 ? "+" : "-") + "' in " + expression);
+        }
+        sign = token.equals("-") ? -1 : 1;
+        dangling = true;
+        continue;
+      }
+
+      if (!dangling && token.length() > 1 && (token.charAt(0) == '+' || token.charAt(0) == '-')) {
+        sign = token.charAt(0) == '-' ? -1 : 1;
+        token = token.substring(1);
+      }
+      float weight = 1;
+      int star = token.indexOf('*');
+      if (star > 0 && star < token.length() - 1) {
+        try {
+          weight = Float.parseFloat(token.substring(0, star));
+          token = token.substring(star + 1);
+        } catch (NumberFormatException e) {
+          // Not a weight, the '*' is part of the word.
+        }
+      }
+      terms.merge(token, sign * weight, Float::sum);
+      sign = 1;
+      dangling = false;
+    }
+    if (dangling) {
+      throw new IllegalArgumentException("Missing word after the last sign in " + expression);
+    }
+    if (terms.isEmpty()) {
+      throw new IllegalArgumentException("No words in " + expression);
+    }
+
+    float[] weights = new float[terms.size()];
+    int i = 0;
+    for (float weight : terms.values()) {
+      weights[i++] = weight;
+    }
+    return new VectorQuery(new ArrayList<>(terms.keySet()), weights);
+  }
+
+  /**
+   * Returns the query for the centroid of a set of words, i.e., their mean vector.
+   */
+  public static VectorQuery centroid(Collection<String> words) {
+    List<String> distinct = new ArrayList<>(new LinkedHashSet<>(words));
+    float[] weights = new float[distinct.size()];
+    Arrays.fill(weights, 1.0f / distinct.size());
+    return new VectorQuery(distinct, weights);
+  }
+
+  public List<String> words() {
+    return words;
+  }
+
+  public float weight(int i) {
+    return weights[i];
+  }
+
+  /**
+   * Computes the query vector from the vectors of its words.
+   *
+   * @param vectors vectors of (at least) the words of the query, which are not modified
+   * @param normalize whether to normalize each word vector before weighting it, as is usual for cosine similarity
+   * @return the query vector, or null if a word has no vector
+   */
+  public float[] evaluate(Map<String, float[]> vectors, boolean normalize) {
+    float[] query = null;
+    float[] scratch = null;
+    for (int i = 0; i < words.size(); i++) {
+      float[] vector = vectors.get(words.get(i));
+      if (vector == null) {
+        return null;
+      }
+      if (query == null) {
+        query = new float[vector.length];
+        scratch = new float[vector.length];
+      } else if (vector.length != query.length) {
+        throw new IllegalArgumentException("Expected a " + query.length + "-dimensional vector for " + words.get(i));
+      }
+      System.arraycopy(vector, 0, scratch, 0, vector.length);
+      if (normalize) {
+        Similarity.normalize(scratch);
+      }
+      for (int j = 0; j < scratch.length; j++) {
+        query[j] += weights[i] * scratch[j];
+      }
+    }
+    return query;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < words.size(); i++) {
+      float weight = weights[i];
+      if (i > 0 || weight < 0) {
+        builder.append(i > 0 ? (weight < 0 ? " - " : " + ") : "-");
+      }
+      if (Math.abs(weight) != 1) {
+        builder.append(Math.abs(weight)).append('*');
+      }
+      builder.append(words.get(i));
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,217 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Encoding and decoding of word vectors in the index. Vectors are stored in one of two layouts:
+ * <ul>
+ *   <li>as a stored field holding the number of components followed by big-endian floats, i.e., what
+ *   {@link java.io.DataOutputStream} writes;</li>
+ *   <li>as {@link BinaryDocValues} holding the raw little-endian floats, which can be decoded in bulk without going
+ *   through stored fields.</li>
+ * </ul>
+ */
+public final class Vectors {
+  private Vectors() {}
+
+  /**
+   * Returns the number of bytes needed to encode a vector of the given dimensionality in the stored field layout.
+   */
+  public static int storedLength(int dimensions) {
+    return Integer.BYTES + Float.BYTES * dimensions;
+  }
+
+  /**
+   * Returns the number of bytes needed to encode a vector of the given dimensionality in the packed layout.
+   */
+  public static int packedLength(int dimensions) {
+    return Float.BYTES * dimensions;
+  }
+
+  /**
+   * Encodes a vector in the stored field layout into {@code buffer}, starting at position 0.
+   */
+  public static void encodeStored(float[] vector, ByteBuffer buffer) {
+    buffer.clear();
+    buffer.order(ByteOrder.BIG_ENDIAN);
+    buffer.putInt(vector.length);
+    buffer.asFloatBuffer().put(vector);
+  }
+
+  /**
+   * Encodes a vector in the packed layout into {@code buffer}, starting at position 0.
+   */
+  public static void encodePacked(float[] vector, ByteBuffer buffer) {
+    buffer.clear();
+    buffer.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().put(vector);
+  }
+
+  /**
+   * Decodes a vector in the stored field layout.
+   */
+  public static float[] decodeStored(BytesRef bytes) {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes.bytes, bytes.offset, bytes.length);
+    float[] vector = new float[buffer.getInt()];
+    buffer.asFloatBuffer().get(vector);
+    return vector;
+  }
+
+  /**
+   * Decodes a vector in the stored field layout into {@code vector}, which must have the right dimensionality.
+   */
+  public static void decodeStored(BytesRef bytes, float[] vector) {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes.bytes, bytes.offset, bytes.length);
+    if (buffer.getInt() != vector.length) {
+      throw new IllegalArgumentException("Expected a " + vector.length + "-dimensional vector");
+    }
+    buffer.asFloatBuffer().get(vector);
+  }
+
+  /**
+   * Decodes a vector in the packed layout into {@code vector}, which must have the right dimensionality.
+   */
+  public static void decodePacked(BytesRef bytes, float[] vector) {
+    ByteBuffer.wrap(bytes.bytes, bytes.offset, bytes.length).order(ByteOrder.LITTLE_ENDIAN)
+        .asFloatBuffer().get(vector);
+  }
+
+  /**
+   * Decodes a vector in the packed layout.
+   */
+  public static float[] decodePacked(BytesRef bytes) {
+    float[] vector = new float[bytes.length / Float.BYTES];
+    decodePacked(bytes, vector);
+    return vector;
+  }
+
+  /**
+   * Returns true if vectors in {@code field} are stored as {@link BinaryDocValues}.
+   */
+  public static boolean hasDocValues(IndexReader reader, String field) {
+    for (LeafReaderContext context : reader.leaves()) {
+      FieldInfo info = context.reader().getFieldInfos().fieldInfo(field);
+      if (info != null) {
+        return info.getDocValuesType() == DocValuesType.BINARY;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Reads the vector of a document, from doc values if the field has them and from stored fields otherwise.
+   *
+   * @param docID top-level document id
+   * @return the vector, or null if the document has none
+   */
+  public static float[] read(IndexReader reader, int docID, String field) throws IOException {
+    List<LeafReaderContext> leaves = reader.leaves();
+    LeafReaderContext context = leaves.get(ReaderUtil.subIndex(docID, leaves));
+    return read(context.reader(), docID - context.docBase, field);
+  }
+
+  /**
+   * Reads the vector of a document, from doc values if the field has them and from stored fields otherwise.
+   *
+   * @param docID segment-level document id
+   * @return the vector, or null if the document has none
+   */
+  public static float[] read(LeafReader reader, int docID, String field) throws IOException {
+    FieldInfo info = reader.getFieldInfos().fieldInfo(field);
+    if (info == null) {
+      return null;
+    }
+    if (info.getDocValuesType() == DocValuesType.BINARY) {
+      BinaryDocValues values = DocValues.getBinary(reader, field);
+      return values.advanceExact(docID) ? decodePacked(values.binaryValue()) : null;
+    }
+    BytesRef bytes = reader.document(docID, Collections.singleton(field)).getBinaryValue(field);
+    return bytes == null ? null : decodeStored(bytes);
+  }
+
+  /**
+   * Reads the vector of a document into {@code vector}, which must have the right dimensionality.
+   *
+   * @param docID segment-level document id
+   * @return false if the document has no vector
+   */
+  public static boolean read(LeafReader reader, int docID, String field, float[] vector) throws IOException {
+    FieldInfo info = reader.getFieldInfos().fieldInfo(field);
+    if (info == null) {
+      return false;
+    }
+    if (info.getDocValuesType() == DocValuesType.BINARY) {
+      BinaryDocValues values = DocValues.getBinary(reader, field);
+      if (!values.advanceExact(docID)) {
+        return false;
+      }
+      decodePacked(values.binaryValue(), vector);
+      return true;
+    }
+    BytesRef bytes = reader.document(docID, Collections.singleton(field)).getBinaryValue(field);
+    if (bytes == null) {
+      return false;
+    }
+    decodeStored(bytes, vector);
+    return true;
+  }
+
+  /**
+   * Reads the vectors of several documents of a segment, from doc values if the field has them and from stored
+   * fields otherwise. With doc values, a single iterator is used for all documents.
+   *
+   * @param docIDs segment-level document ids, in increasing order
+   * @param count number of document ids to read
+   * @return the vectors, with null entries for documents that have none
+   */
+  public static float[][] read(LeafReader reader, int[] docIDs, int count, String field) throws IOException {
+    float[][] vectors = new float[count][];
+    FieldInfo info = reader.getFieldInfos().fieldInfo(field);
+    if (info == null) {
+      return vectors;
+    }
+    if (info.getDocValuesType() == DocValuesType.BINARY) {
+      BinaryDocValues values = DocValues.getBinary(reader, field);
+      for (int i = 0; i < count; i++) {
+        if (values.advanceExact(docIDs[i])) {
+          vectors[i] = decodePacked(values.binaryValue());
+        }
+      }
+    } else {
+      for (int i = 0; i < count; i++) {
+        BytesRef bytes = reader.document(docIDs[i], Collections.singleton(field)).getBinaryValue(field);
+        vectors[i] = bytes == null ? null : decodeStored(bytes);
+      }
+    }
+    return vectors;
+  }
+}
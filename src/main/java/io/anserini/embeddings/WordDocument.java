@@ -0,0 +1,165 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FloatPoint;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.util.BytesRef;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The Lucene document of a word, as {@link IndexWordEmbeddings} and {@link IndexReducedWordEmbeddings} index it. The
+ * document, its fields and the buffers vectors are encoded into are created once and reused for every word, since the
+ * {@link IndexWriter} is done with them once {@link IndexWriter#addDocument} returns. Instances are not thread-safe,
+ * so each indexing thread has its own.
+ */
+public final class WordDocument {
+  private final Document doc = new Document();
+  private final Field wordField;
+  private final Field keyField;
+  // Full vector, unless a reduced index doesn't store it.
+  private final VectorField vectorField;
+  // Reduced vector, as a point and as a vector, for reduced indexes only.
+  private final FloatPoint pointField;
+  private final VectorField reducedField;
+  private final LshHasher lsh;
+  private final Field[] lshFields;
+  private final WordOrder sort;
+  private final Field sortField;
+
+  private WordDocument(boolean docValues, boolean vectors, int reducedDimensions, LshHasher lsh, WordOrder sort) {
+    this.wordField = new TextField(IndexWordEmbeddings.FIELD_WORD, "", Field.Store.YES);
+    this.keyField = new StringField(IndexWordEmbeddings.FIELD_KEY, "", Field.Store.NO);
+    doc.add(wordField);
+    doc.add(keyField);
+
+    if (reducedDimensions > 0) {
+      this.pointField = new FloatPoint(IndexReducedWordEmbeddings.FIELD_POINT, new float[reducedDimensions]);
+      this.reducedField = new VectorField(IndexReducedWordEmbeddings.FIELD_REDUCED_VECTOR, docValues);
+      doc.add(pointField);
+      doc.add(reducedField.field);
+    } else {
+      this.pointField = null;
+      this.reducedField = null;
+    }
+    this.vectorField = vectors ? new VectorField(IndexWordEmbeddings.FIELD_VECTOR, docValues) : null;
+    if (vectorField != null) {
+      doc.add(vectorField.field);
+    }
+
+    this.lsh = lsh;
+    this.lshFields = new Field[lsh == null ? 0 : lsh.tables()];
+    for (int i = 0; i < lshFields.length; i++) {
+      lshFields[i] = new StringField(LshHasher.FIELD_LSH, "", Field.Store.NO);
+      doc.add(lshFields[i]);
+    }
+    this.sort = sort;
+    this.sortField = sort == null ? null : sort.newField();
+    if (sortField != null) {
+      doc.add(sortField);
+    }
+  }
+
+  /**
+   * Creates the document of an index of full vectors, built by {@link IndexWordEmbeddings}.
+   *
+   * @param docValues whether vectors are stored in doc values rather than stored fields
+   * @param lsh hasher of the LSH tokens to index, or null
+   * @param sort order the index is sorted in, or null
+   */
+  public static WordDocument full(boolean docValues, LshHasher lsh, WordOrder sort) {
+    return new WordDocument(docValues, true, 0, lsh, sort);
+  }
+
+  /**
+   * Creates the document of an index of reduced vectors, built by {@link IndexReducedWordEmbeddings}.
+   *
+   * @param docValues whether vectors are stored in doc values rather than stored fields
+   * @param dimensions dimensionality of the reduced vectors
+   * @param storeVectors whether the full vectors are stored too
+   * @param sort order the index is sorted in, or null
+   */
+  public static WordDocument reduced(boolean docValues, int dimensions, boolean storeVectors, WordOrder sort) {
+    return new WordDocument(docValues, storeVectors, dimensions, null, sort);
+  }
+
+  /**
+   * Sets the fields of the document to a word.
+   *
+   * @param vector full vector, ignored if the index doesn't store it
+   * @param reduced reduced vector, for reduced indexes
+   * @param rank rank of the word in the input, for {@link WordOrder#RANK}
+   * @return the document, valid until the next call
+   */
+  public Document set(String word, float[] vector, float[] reduced, long rank) {
+    wordField.setStringValue(word);
+    keyField.setStringValue(word);
+    if (pointField != null) {
+      pointField.setFloatValues(reduced);
+      reducedField.set(reduced);
+    }
+    if (vectorField != null) {
+      vectorField.set(vector);
+    }
+    if (lsh != null) {
+      String[] tokens = lsh.tokens(vector);
+      for (int i = 0; i < tokens.length; i++) {
+        lshFields[i].setStringValue(tokens[i]);
+      }
+    }
+    if (sortField != null) {
+      sort.set(sortField, word, rank);
+    }
+    return doc;
+  }
+
+  /**
+   * A vector field with the buffer it is encoded into, grown as needed.
+   */
+  private static final class VectorField {
+    final Field field;
+    final boolean docValues;
+    final BytesRef bytes = new BytesRef();
+    ByteBuffer buffer;
+
+    VectorField(String name, boolean docValues) {
+      this.docValues = docValues;
+      this.field = docValues ? new BinaryDocValuesField(name, bytes) : new StoredField(name, bytes);
+    }
+
+    void set(float[] vector) {
+      int length = docValues ? Vectors.packedLength(vector.length) : Vectors.storedLength(vector.length);
+      if (buffer == null || buffer.capacity() < length) {
+        buffer = ByteBuffer.allocate(length);
+      }
+      if (docValues) {
+        Vectors.encodePacked(vector, buffer);
+      } else {
+        Vectors.encodeStored(vector, buffer);
+      }
+      bytes.bytes = buffer.array();
+      bytes.length = length;
+    }
+  }
+}
@@ -0,0 +1,235 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Long-lived, thread-safe access to word vectors, for applications that look up many words. Opening is expensive
+ * (index readers, analyzers, mappings), so a single instance should be opened once and shared. An optional
+ * {@link VectorCache} keeps the vectors of frequent words decoded in memory, and an optional {@link SubwordTable}
+ * synthesizes vectors for words that are not found from their character n-grams, as fastText does.
+ */
+public class WordEmbeddings implements Closeable {
+  private final EmbeddingStore store;
+  private final VectorCache cache;
+  private final SubwordTable subwords;
+
+  public WordEmbeddings(EmbeddingStore store) {
+    this(store, null);
+  }
+
+  /**
+   * @param cache cache in front of the store, or null
+   */
+  public WordEmbeddings(EmbeddingStore store, VectorCache cache) {
+    this(store, cache, null);
+  }
+
+  /**
+   * @param cache cache in front of the store, or null
+   * @param subwords n-gram vectors for words that are not in the store, or null
+   */
+  public WordEmbeddings(EmbeddingStore store, VectorCache cache, SubwordTable subwords) {
+    if (subwords != null && subwords.dimensions() != store.dimensions()) {
+      throw new IllegalArgumentException("The subword table has " + subwords.dimensions() +
+          " dimensions but the store has " + store.dimensions());
+    }
+    this.store = store;
+    this.cache = cache;
+    this.subwords = subwords;
+  }
+
+  /**
+   * Opens the embeddings at {@code path}, either a Lucene index built by {@link IndexWordEmbeddings} or a
+   * {@link FlatEmbeddingStore}.
+   */
+  public static WordEmbeddings open(Path path) throws IOException {
+    return new WordEmbeddings(EmbeddingStore.open(path, IndexWordEmbeddings.FIELD_VECTOR));
+  }
+
+  /**
+   * Opens the embeddings at {@code path} with a cache of at most {@code cacheBytes}.
+   */
+  public static WordEmbeddings open(Path path, long cacheBytes) throws IOException {
+    EmbeddingStore store = EmbeddingStore.open(path, IndexWordEmbeddings.FIELD_VECTOR);
+    return new WordEmbeddings(store, new VectorCache(cacheBytes, store.dimensions()));
+  }
+
+  public EmbeddingStore getStore() {
+    return store;
+  }
+
+  /**
+   * Returns the cache, or null if there is none.
+   */
+  public VectorCache getCache() {
+    return cache;
+  }
+
+  /**
+   * Returns the subword table, or null if there is none.
+   */
+  public SubwordTable getSubwords() {
+    return subwords;
+  }
+
+  public int dimensions() {
+    return store.dimensions();
+  }
+
+  /**
+   * Looks up the vector of a word, or synthesizes it from the subword table if the word is not found. With a cache,
+   * the returned array may be shared and must not be modified.
+   *
+   * @return the vector, or null if the word is not found and has no n-grams
+   */
+  public float[] lookup(String word) throws IOException {
+    if (cache == null) {
+      return find(word);
+    }
+    float[] vector = cache.get(word);
+    if (vector == null) {
+      vector = find(word);
+      if (vector != null) {
+        cache.put(word, vector);
+      }
+    }
+    return vector;
+  }
+
+  private float[] find(String word) throws IOException {
+    float[] vector = store.lookup(word);
+    if (vector == null && subwords != null) {
+      vector = subwords.synthesize(word);
+    }
+    return vector;
+  }
+
+  /**
+   * Looks up the vectors of several words at once, which is cheaper than looking them up one by one. The vectors of
+   * words that are not found are synthesized together from the subword table. With a cache, the returned arrays may
+   * be shared and must not be modified.
+   *
+   * @return the vectors of the words that are found or synthesized
+   */
+  public Map<String, float[]> lookupAll(Collection<String> words) throws IOException {
+    if (cache == null) {
+      return findAll(words);
+    }
+
+    Map<String, float[]> vectors = new HashMap<>();
+    List<String> misses = new ArrayList<>();
+    for (String word : words) {
+      float[] vector = cache.get(word);
+      if (vector == null) {
+        misses.add(word);
+      } else {
+        vectors.put(word, vector);
+      }
+    }
+    if (!misses.isEmpty()) {
+      Map<String, float[]> found = findAll(misses);
+      for (Map.Entry<String, float[]> entry : found.entrySet()) {
+        cache.put(entry.getKey(), entry.getValue());
+      }
+      vectors.putAll(found);
+    }
+    return vectors;
+  }
+
+  private Map<String, float[]> findAll(Collection<String> words) throws IOException {
+    Map<String, float[]> vectors = store.lookupAll(words);
+    if (subwords == null || vectors.size() == words.size()) {
+      return vectors;
+    }
+    List<String> missing = new ArrayList<>();
+    for (String word : words) {
+      if (!vectors.containsKey(word)) {
+        missing.add(word);
+      }
+    }
+    vectors.putAll(subwords.synthesizeAll(missing));
+    return vectors;
+  }
+
+  /**
+   * Fills the cache with the vectors of the given words, e.g., the most frequent words of a corpus in decreasing
+   * order of frequency, until it is full. The words that fit are cached least frequent first, so that the most
+   * frequent are the most recently used, and each is counted as requested as often as its rank from the end, so that
+   * words looked up later only displace warmed words ranked below them.
+   *
+   * @return the number of words cached
+   */
+  public int warm(Collection<String> words) throws IOException {
+    if (cache == null) {
+      return 0;
+    }
+
+    List<String> warmWords = new ArrayList<>();
+    List<float[]> warmVectors = new ArrayList<>();
+    long bytes = cache.bytes();
+    List<String> batch = new ArrayList<>();
+    Iterator<String> iterator = words.iterator();
+    boolean full = false;
+    while (iterator.hasNext() && !full) {
+      batch.clear();
+      while (iterator.hasNext() && batch.size() < 1000) {
+        batch.add(iterator.next());
+      }
+
+      Map<String, float[]> vectors = store.lookupAll(batch);
+      for (String word : batch) {
+        float[] vector = vectors.get(word);
+        if (vector == null) {
+          continue;
+        }
+        bytes += VectorCache.weight(word, vector.length);
+        if (bytes > cache.maxBytes()) {
+          full = true;
+          break;
+        }
+        warmWords.add(word);
+        warmVectors.add(vector);
+      }
+    }
+
+    int cached = 0;
+    for (int i = warmWords.size() - 1; i >= 0; i--) {
+      if (cache.warm(warmWords.get(i), warmVectors.get(i), warmWords.size() - i)) {
+        cached++;
+      }
+    }
+    return cached;
+  }
+
+  @Override
+  public void close() throws IOException {
+    store.close();
+    if (subwords != null) {
+      subwords.close();
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Orders the documents of an index built by {@link IndexWordEmbeddings} or {@link IndexReducedWordEmbeddings} can be
+ * sorted in, as an index sort. Documents are then laid out in that order within each segment, rather than in the
+ * order the indexing threads happened to add them, so that words looked up together are read from nearby places.
+ */
+public enum WordOrder {
+  /**
+   * By word, in the byte order of the UTF-8 encoding, like the terms of {@link IndexWordEmbeddings#FIELD_KEY}. A
+   * batch of lookups walks the terms in order, so it then reads the vectors in order too.
+   */
+  WORD,
+  /**
+   * By rank in the input, which embeddings files usually list by decreasing frequency, so that frequent words are
+   * stored together at the start of the index. Once the index is merged into a single segment, the document id of a
+   * word, and so its row in a {@link LuceneEmbeddingStore}, is its row in the input. Words replaced by an update keep
+   * their rank, and words added by it are ranked after the existing ones, in input order.
+   */
+  RANK;
+
+  /**
+   * Returns the index sort of this order.
+   */
+  public Sort sort() {
+    return new Sort(this == WORD ?
+        new SortField(IndexWordEmbeddings.FIELD_KEY, SortField.Type.STRING) :
+        new SortField(IndexWordEmbeddings.FIELD_RANK, SortField.Type.LONG));
+  }
+
+  /**
+   * Returns a new field holding the value documents are sorted on, to be added to each document and set with
+   * {@link #set(Field, String, long)}.
+   */
+  public Field newField() {
+    return this == WORD ?
+        new SortedDocValuesField(IndexWordEmbeddings.FIELD_KEY, new BytesRef()) :
+        new NumericDocValuesField(IndexWordEmbeddings.FIELD_RANK, 0);
+  }
+
+  /**
+   * Sets the value of a field created by {@link #newField()} for a word at a rank.
+   */
+  public void set(Field field, String word, long rank) {
+    if (this == WORD) {
+      field.setBytesValue(new BytesRef(word));
+    } else {
+      field.setLongValue(rank);
+    }
+  }
+
+  /**
+   * Returns the order the documents of an index are sorted in, or null if they are not sorted in one of these orders.
+   */
+  public static WordOrder of(IndexReader reader) {
+    for (LeafReaderContext context : reader.leaves()) {
+      Sort sort = context.reader().getMetaData().getSort();
+      for (WordOrder order : values()) {
+        if (order.sort().equals(sort)) {
+          return order;
+        }
+      }
+    }
+    return null;
+  }
+}
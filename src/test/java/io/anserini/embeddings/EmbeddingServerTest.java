@@ -0,0 +1,217 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs an {@link EmbeddingServer} on a free port over a tiny flat store written to a temporary directory.
+ */
+public class EmbeddingServerTest {
+  private Path dir;
+  private EmbeddingServer server;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("embedding-server");
+    writeStore(dir.resolve("index"), "alpha", "beta", "gamma");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    if (server != null) {
+      server.close();
+    }
+    try (Stream<Path> files = Files.walk(dir)) {
+      files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+    }
+  }
+
+  @Test
+  public void testLookup() throws IOException {
+    start(2, 1024);
+
+    Response response = request("GET", "/lookup?word=alpha&word=missing", null);
+    assertEquals(200, response.status);
+    assertTrue(response.body.startsWith("{\"alpha\": [1.0, 0.0, 0.0]"));
+    assertFalse(response.body.contains("missing"));
+
+    response = request("POST", "/lookup", "beta\ngamma\n");
+    assertEquals(200, response.status);
+    assertEquals("{\"beta\": [2.0, 0.0, 0.0], \"gamma\": [3.0, 0.0, 0.0]}", response.body);
+
+    assertEquals(400, request("GET", "/lookup", null).status);
+  }
+
+  @Test
+  public void testCoalescing() throws Exception {
+    // Without lookup threads, requests wait in the queue until one is started, then all go in one batch.
+    start(0, 1024);
+    ExecutorService clients = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Response>> futures = new ArrayList<>();
+      String[] words = {"alpha", "beta", "gamma"};
+      for (int i = 0; i < 8; i++) {
+        String word = words[i % words.length];
+        futures.add(clients.submit(() -> request("GET", "/lookup?word=" + word, null)));
+      }
+      waitFor("\"waiting\": 8");
+      server.startLookupThread();
+      for (int i = 0; i < futures.size(); i++) {
+        Response response = futures.get(i).get(10, TimeUnit.SECONDS);
+        assertEquals(200, response.status);
+        assertTrue(response.body.startsWith("{\"" + words[i % words.length] + "\": "));
+      }
+      assertTrue(request("GET", "/health", null).body.contains("\"batches\": 1}"));
+    } finally {
+      clients.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testQueueFull() throws Exception {
+    start(0, 1);
+    ExecutorService clients = Executors.newSingleThreadExecutor();
+    try {
+      Future<Response> waiting = clients.submit(() -> request("GET", "/lookup?word=alpha", null));
+      waitFor("\"waiting\": 1");
+
+      Response response = request("GET", "/lookup?word=beta", null);
+      assertEquals(503, response.status);
+      assertEquals("1", response.retryAfter);
+
+      server.startLookupThread();
+      assertEquals(200, waiting.get(10, TimeUnit.SECONDS).status);
+    } finally {
+      clients.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testReopen() throws IOException {
+    start(1, 1024);
+    assertEquals("{}", request("GET", "/lookup?word=delta", null).body);
+
+    // A flat store is rewritten in place, so the new one is written aside and moved into place.
+    Path next = dir.resolve("next");
+    writeStore(next, "alpha", "beta", "gamma", "delta");
+    for (String file : new String[] {FlatEmbeddingStore.VECTORS_FILE, FlatEmbeddingStore.DICTIONARY_FILE}) {
+      Files.move(next.resolve(file), dir.resolve("index").resolve(file), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    assertEquals(405, request("GET", "/reopen", null).status);
+    Response response = request("POST", "/reopen", "");
+    assertEquals(200, response.status);
+    assertTrue(response.body.contains("\"words\": 4"));
+    assertTrue(response.body.contains("\"generation\": 2"));
+    assertEquals("{\"delta\": [4.0, 0.0, 0.0]}", request("GET", "/lookup?word=delta", null).body);
+  }
+
+  private void start(int lookupThreads, int queueSize) throws IOException {
+    EmbeddingServer.Args args = new EmbeddingServer.Args();
+    args.index = dir.resolve("index");
+    args.port = 0;
+    args.httpThreads = 16;
+    args.lookupThreads = lookupThreads;
+    args.queueSize = queueSize;
+    args.reopenSeconds = 0;
+    server = new EmbeddingServer(args);
+    server.start();
+  }
+
+  /**
+   * Writes a store where the i-th word has the vector (i + 1, 0, 0).
+   */
+  private static void writeStore(Path path, String... words) throws IOException {
+    try (FlatEmbeddingStore.Writer writer = new FlatEmbeddingStore.Writer(path, 3)) {
+      for (int i = 0; i < words.length; i++) {
+        writer.add(words[i], new float[] {i + 1, 0, 0});
+      }
+    }
+  }
+
+  private void waitFor(String health) throws Exception {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (!request("GET", "/health", null).body.contains(health)) {
+      assertTrue("Timed out waiting for " + health, System.nanoTime() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  private Response request(String method, String path, String body) throws IOException {
+    HttpURLConnection connection =
+        (HttpURLConnection) new URL("http://localhost:" + server.port() + path).openConnection();
+    connection.setRequestMethod(method);
+    if (body != null) {
+      connection.setDoOutput(true);
+      try (OutputStream out = connection.getOutputStream()) {
+        out.write(body.getBytes(StandardCharsets.UTF_8));
+      }
+    }
+    int status = connection.getResponseCode();
+    InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    if (in != null) {
+      try (InputStream stream = in) {
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = stream.read(buffer)) > 0) {
+          bytes.write(buffer, 0, n);
+        }
+      }
+    }
+    return new Response(status, new String(bytes.toByteArray(), StandardCharsets.UTF_8),
+        connection.getHeaderField("Retry-After"));
+  }
+
+  private static final class Response {
+    final int status;
+    final String body;
+    final String retryAfter;
+
+    Response(int status, String body, String retryAfter) {
+      this.status = status;
+      this.body = body;
+      this.retryAfter = retryAfter;
+    }
+  }
+}
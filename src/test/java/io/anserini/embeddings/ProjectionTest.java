@@ -0,0 +1,57 @@
+/**
+ * Anserini: A toolkit for reproducible information retrieval research built on Lucene
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.anserini.embeddings;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ProjectionTest {
+  private Path file;
+
+  @Before
+  public void setUp() throws IOException {
+    file = Files.createTempFile("projection", ".bin");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    float[] mean = { 1.0f, -2.0f, 0.5f };
+    float[] factor = { 0.1f, 0.2f, 0.3f, 0.4f, 0.5f, 0.6f };
+    Projection projection = new Projection(3, 2, mean, factor);
+    projection.write(file);
+    assertEquals(16 + Float.BYTES * (mean.length + factor.length), Files.size(file));
+
+    Projection read = Projection.read(file);
+    assertEquals(3, read.inputDimensions());
+    assertEquals(2, read.outputDimensions());
+    float[] vector = { 3.0f, 1.0f, -1.0f };
+    assertArrayEquals(projection.project(vector), read.project(vector), 0.0f);
+  }
+}